@@ -0,0 +1,87 @@
+package com.projecki.economy.manager;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and updates of cached balances, the path {@link EconomyManager#getBalance} and
+ * {@link EconomyManager#setBalance} take for online players. Every update is journaled, so updates measure the
+ * journal too
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BalanceCacheBenchmark {
+
+    @Param({"10000"})
+    public int accounts;
+
+    private Path directory;
+    private TransactionJournal journal;
+    private BalanceCache cache;
+    private UUID[] uuids;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("economy-benchmark");
+        journal = new TransactionJournal(directory, 4 * 1024 * 1024);
+        cache = new BalanceCache(journal);
+        uuids = new UUID[accounts];
+        for (int i = 0; i < accounts; i++) {
+            uuids[i] = UUID.randomUUID();
+            cache.putIfAbsent(uuids[i], 1_000_000);
+        }
+    }
+
+    /**
+     * Confirm everything journaled so far, as a flush would, so used segments are deleted between iterations
+     */
+    @TearDown(Level.Iteration)
+    public void confirm() throws IOException {
+        journal.confirm(journal.lastSequence());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        EconomyBenchmarks.delete(directory);
+    }
+
+    @Benchmark
+    public long getBalance() {
+        BalanceCache.Account account = cache.get(randomUUID());
+        return account == null ? -1 : account.getBalance();
+    }
+
+    @Benchmark
+    public boolean setBalance() {
+        BalanceCache.Account account = cache.get(randomUUID());
+        return account != null && account.setBalance(ThreadLocalRandom.current().nextLong(1_000_000));
+    }
+
+    @Benchmark
+    public boolean deposit() {
+        BalanceCache.Account account = cache.get(randomUUID());
+        return account != null && account.deposit(1);
+    }
+
+    @Benchmark
+    public boolean transfer() {
+        BalanceCache.Account from = cache.get(randomUUID()), to = cache.get(randomUUID());
+        return from != null && to != null && BalanceCache.Account.transfer(from, to, 1);
+    }
+
+    private UUID randomUUID() {
+        return uuids[ThreadLocalRandom.current().nextInt(uuids.length)];
+    }
+
+}
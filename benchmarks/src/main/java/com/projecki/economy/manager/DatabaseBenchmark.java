@@ -0,0 +1,114 @@
+package com.projecki.economy.manager;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Loading and saving balances through {@link EconomyDatabase}, against an embedded H2 database and the in-memory
+ * database. Saves are measured per row, so single row saves compare directly with batched saves
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    private static final int ROWS = 100;
+
+    @Param({"h2", "memory"})
+    public String storage;
+
+    @Param({"10000"})
+    public int accounts;
+
+    private Path directory;
+    private EconomyDatabase database;
+    private UUID[] uuids;
+    private Map<UUID, Long> batch;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("economy-benchmark");
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        if (storage.equals("h2")) {
+            database = Database.h2(Logger.getLogger("Economy"), EconomyBenchmarks.defaultConfig(),
+                    directory.resolve("economy"), () -> ready.complete(null));
+        } else {
+            database = new MemoryDatabase(EconomyBenchmarks.defaultConfig().getScanPageSize());
+            ready.complete(null);
+        }
+        ready.join();
+
+        uuids = new UUID[accounts];
+        Map<UUID, Long> rows = new HashMap<>();
+        for (int i = 0; i < accounts; i++) {
+            uuids[i] = UUID.randomUUID();
+            rows.put(uuids[i], (long) i);
+            if (rows.size() == 1000 || i == accounts - 1) {
+                database.saveBalances(rows).join();
+                rows.clear();
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void prepareBatch() {
+        batch = new HashMap<>();
+        while (batch.size() < ROWS) {
+            batch.put(randomUUID(), ThreadLocalRandom.current().nextLong(1_000_000));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        database.close();
+        EconomyBenchmarks.delete(directory);
+    }
+
+    @Benchmark
+    public OptionalLong getBalance() {
+        return database.getBalance(randomUUID()).join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void saveSingleRows() {
+        for (Map.Entry<UUID, Long> entry : batch.entrySet()) {
+            database.saveBalance(entry.getKey(), entry.getValue()).join();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void saveBatch() {
+        database.saveBalances(batch).join();
+    }
+
+    /**
+     * Every row, streamed in pages
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public long scan() {
+        return database.forEachBalance(row -> {
+        }).join();
+    }
+
+    private UUID randomUUID() {
+        return uuids[ThreadLocalRandom.current().nextInt(uuids.length)];
+    }
+
+}
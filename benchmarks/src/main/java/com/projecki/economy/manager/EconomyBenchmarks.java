@@ -0,0 +1,69 @@
+package com.projecki.economy.manager;
+
+import com.projecki.economy.util.Config;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Runs the benchmarks with the GC profiler, so allocation rate is reported alongside throughput. The cache benchmarks
+ * run at 1, 4, 16 and 64 threads to show how they scale, the rest once.
+ * <p>
+ * Given any arguments, they are passed to the JMH command line instead, e.g {@code -prof gc -t 8 DatabaseBenchmark}
+ */
+public final class EconomyBenchmarks {
+
+    private static final int[] CACHE_THREADS = {1, 4, 16, 64};
+
+    private EconomyBenchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        for (int threads : CACHE_THREADS) {
+            new Runner(new OptionsBuilder()
+                    .include(BalanceCacheBenchmark.class.getSimpleName())
+                    .addProfiler(GCProfiler.class)
+                    .threads(threads)
+                    .build()).run();
+        }
+        new Runner(new OptionsBuilder()
+                .include(DatabaseBenchmark.class.getSimpleName())
+                .include(UUIDEncodingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    /**
+     * @return A config with every value at its default, as no config.yml is read outside a server
+     */
+    static Config defaultConfig() {
+        return new Config(new YamlConfiguration());
+    }
+
+    /**
+     * Delete a temporary directory and everything in it
+     *
+     * @param directory The directory
+     * @throws IOException If anything couldn't be deleted
+     */
+    static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) return;
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,381 @@
+package com.projecki.economy.manager;
+
+import com.projecki.economy.util.Config;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * A load and soak test of the whole economy. Thousands of simulated players log in, join, change balances and quit
+ * against an embedded H2 database, through the same {@link EconomyManager} a server runs. Its flushes, evictions and
+ * change log polls run on timers shortened so they race the players. Players often quit and rejoin straight away,
+ * while their balance is still cached, or quit and rejoin as soon as a flush has saved their balance and evicted it,
+ * so the balance loaded as they rejoin races the save of the balance they quit with.
+ * <p>
+ * Once the run ends every player quits, the manager shuts down, and the database is reopened to check each players
+ * balance is exactly what their successful changes add up to. Throughput and latency are reported per action, and
+ * the process exits with 1 if any balance is wrong, if no player rejoined after their balance was evicted, or if
+ * anything was logged as severe, such as a flush that failed to save, so it can gate a deploy:
+ * <pre>
+ *   java -cp benchmarks/target/benchmarks.jar com.projecki.economy.manager.SoakTest [players] [seconds] [threads]
+ * </pre>
+ */
+public final class SoakTest {
+
+    private static final int DEFAULT_PLAYERS = 5000;
+    private static final int DEFAULT_SECONDS = 60;
+    private static final int DEFAULT_THREADS = 32;
+    private static final int MAX_AMOUNT = 1000;
+
+    private final SimulatedPlayer[] players;
+    private final int threads;
+    private final EconomyManager manager;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Action.values().length];
+    /**
+     * The number of joins that loaded a balance evicted since the player quit
+     */
+    private final LongAdder reloads = new LongAdder();
+    private volatile long end;
+
+    private SoakTest(int players, int threads, @NotNull EconomyManager manager) {
+        this.players = new SimulatedPlayer[players];
+        for (int i = 0; i < players; i++) {
+            this.players[i] = new SimulatedPlayer("soak" + i);
+        }
+        this.threads = threads;
+        this.manager = manager;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PLAYERS;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_THREADS;
+
+        Path directory = Files.createTempDirectory("economy-soak");
+        // Every join logs at INFO, which would drown the report
+        Logger logger = Logger.getLogger("Economy");
+        logger.setLevel(Level.WARNING);
+        SevereCounter severe = new SevereCounter();
+        logger.addHandler(severe);
+        Config config = soakConfig(players);
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        EconomyManager manager = new EconomyManager(null, host(directory, logger, scheduler), config);
+
+        SoakTest test = new SoakTest(players, threads, manager);
+        System.out.println("Running " + players + " players on " + threads + " threads for " + seconds + "s...");
+        long start = System.nanoTime();
+        test.run(TimeUnit.SECONDS.toNanos(seconds));
+        long elapsed = System.nanoTime() - start;
+        test.report(elapsed);
+
+        System.out.println("Shutting down...");
+        manager.shutdown();
+        scheduler.shutdownNow();
+        int wrong = test.verify(config, directory.resolve("economy"), logger);
+        EconomyBenchmarks.delete(directory);
+
+        boolean passed = wrong == 0;
+        if (test.reloads.sum() == 0) {
+            System.out.println("No player rejoined after their balance was evicted, so no rejoin raced a save");
+            passed = false;
+        }
+        if (severe.count.sum() > 0) {
+            System.out.println(severe.count.sum() + " severe errors were logged, such as failed saves");
+            passed = false;
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * A config with flushes, evictions and polls far more frequent than a server would use, so they overlap the
+     * players as often as possible
+     */
+    private static Config soakConfig(int players) {
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.set("storage.type", "h2");
+        yaml.set("flush.interval", 1);
+        yaml.set("changes.poll-interval", 100);
+        yaml.set("cache.offline-ttl", 0);
+        yaml.set("cache.maximum-size", Math.max(1, players / 10));
+        return new Config(yaml);
+    }
+
+    /**
+     * Stands in for the server, running the managers timers on a scheduler
+     */
+    private static EconomyHost host(Path directory, Logger logger, ScheduledExecutorService scheduler) {
+        return new EconomyHost() {
+            @Override
+            public Logger getLogger() {
+                return logger;
+            }
+
+            @Override
+            public Path getDataFolder() {
+                return directory;
+            }
+
+            @Override
+            public Task runRepeatingAsync(@NotNull Runnable task, long periodTicks) {
+                long period = periodTicks * 50;
+                // A task that throws would silently stop repeating, where the server would log it and carry on
+                ScheduledFuture<?> future = scheduler.scheduleAtFixedRate(() -> {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "A repeating task failed", e);
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
+                return () -> future.cancel(false);
+            }
+        };
+    }
+
+    /**
+     * Drive the players until the duration has passed, then make every player still online quit
+     */
+    private void run(long durationNanos) throws InterruptedException {
+        end = System.nanoTime() + durationNanos;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int worker = i;
+            workers[i] = new Thread(() -> drive(worker), "soak-" + i);
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (SimulatedPlayer player : players) {
+            if (player.online) quit(player);
+        }
+    }
+
+    /**
+     * Drive the players owned by one worker, each player is only ever driven by its own worker, as a player only ever
+     * logs in once at a time. Other players are still the target of transfers
+     */
+    private void drive(int worker) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int owned = (players.length - worker + threads - 1) / threads;
+        if (owned <= 0) return;
+        while (System.nanoTime() < end) {
+            SimulatedPlayer player = players[worker + threads * random.nextInt(owned)];
+            if (!player.online) {
+                if (!player.awaitingEviction) {
+                    join(player);
+                } else if (!manager.isCached(player.uuid)) {
+                    // Flushed and evicted since quitting, so the join loads the balance the flush saved
+                    player.awaitingEviction = false;
+                    join(player);
+                    reloads.increment();
+                } else Thread.yield();
+                continue;
+            }
+            int roll = random.nextInt(100);
+            if (roll < 5) {
+                // A fast rejoin, while the balance just quit with is still cached and may be mid save
+                quit(player);
+                join(player);
+            } else if (roll < 6) {
+                // Rejoins as soon as the balance is evicted, racing whatever save or load is still in flight. Rarer
+                // than the others, as the player waits out a flush meanwhile
+                quit(player);
+                player.awaitingEviction = true;
+            } else if (roll < 10) {
+                quit(player);
+            } else if (roll < 40) {
+                long amount = 1 + random.nextInt(MAX_AMOUNT);
+                long start = System.nanoTime();
+                boolean deposited = manager.deposit(player.player, amount);
+                latencies[Action.DEPOSIT.ordinal()].recordSince(start);
+                if (deposited) player.expected.addAndGet(amount);
+            } else if (roll < 60) {
+                long amount = 1 + random.nextInt(MAX_AMOUNT);
+                long start = System.nanoTime();
+                boolean withdrawn = manager.withdraw(player.player, amount);
+                latencies[Action.WITHDRAW.ordinal()].recordSince(start);
+                if (withdrawn) player.expected.addAndGet(-amount);
+            } else if (roll < 90) {
+                SimulatedPlayer receiver = players[random.nextInt(players.length)];
+                // A transfer would keep the balance of a player waiting for eviction changed, and so cached
+                if (receiver == player || receiver.awaitingEviction) continue;
+                long amount = 1 + random.nextInt(MAX_AMOUNT);
+                long start = System.nanoTime();
+                boolean transferred = manager.transfer(player.player, receiver.player, amount);
+                latencies[Action.TRANSFER.ordinal()].recordSince(start);
+                if (transferred) {
+                    player.expected.addAndGet(-amount);
+                    receiver.expected.addAndGet(amount);
+                }
+            } else {
+                long start = System.nanoTime();
+                manager.getBalance(player.player);
+                latencies[Action.BALANCE.ordinal()].recordSince(start);
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void join(SimulatedPlayer player) {
+        long start = System.nanoTime();
+        // Blocks until the balance is loaded, as it would the async login thread
+        manager.onPreLogin(new AsyncPlayerPreLoginEvent(player.name, InetAddress.getLoopbackAddress(), player.uuid));
+        latencies[Action.LOGIN.ordinal()].recordSince(start);
+        player.online = true;
+        start = System.nanoTime();
+        manager.onJoin(new PlayerJoinEvent(player.player, ""));
+        latencies[Action.JOIN.ordinal()].recordSince(start);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void quit(SimulatedPlayer player) {
+        player.online = false;
+        long start = System.nanoTime();
+        manager.onQuit(new PlayerQuitEvent(player.player, ""));
+        latencies[Action.QUIT.ordinal()].recordSince(start);
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.println(String.format("%-10s %12s %12s %10s %10s %10s", "Action", "Count", "Ops/s", "p50 ms",
+                "p99 ms", "Max ms"));
+        long total = 0;
+        for (Action action : Action.values()) {
+            LatencyHistogram latency = latencies[action.ordinal()];
+            total += latency.getCount();
+            System.out.println(String.format("%-10s %12d %12.0f %10s %10s %10s", action, latency.getCount(),
+                    latency.getCount() / seconds, LatencyHistogram.millis(latency.getPercentile(50)),
+                    LatencyHistogram.millis(latency.getPercentile(99)), LatencyHistogram.millis(latency.getMax())));
+        }
+        System.out.println(String.format("%-10s %12d %12.0f", "Total", total, total / seconds));
+
+        EconomyMetrics metrics = manager.getMetrics();
+        System.out.println("Cache: " + metrics.getCacheSize() + " balances, "
+                + String.format("%.1f", metrics.getCacheHitRate() * 100) + "% hit rate, " + reloads.sum()
+                + " rejoins loaded an evicted balance");
+        for (EconomyMetrics.Operation operation : EconomyMetrics.Operation.values()) {
+            if (metrics.getCallCounts().get(operation.getName()) == 0) continue;
+            System.out.println("  " + operation.getName() + ": " + metrics.describe(operation));
+        }
+    }
+
+    /**
+     * Reopen the database and compare every players balance with what their successful changes add up to
+     *
+     * @return The number of players whose balance is wrong
+     */
+    private int verify(Config config, Path file, Logger logger) {
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        Database database = Database.h2(logger, config, file, () -> ready.complete(null));
+        ready.join();
+        Map<UUID, Long> stored = new HashMap<>(players.length * 2);
+        database.forEachBalance(row -> stored.put(row.uuid(), row.balance())).join();
+        database.close();
+
+        int wrong = 0;
+        long expectedTotal = 0, storedTotal = 0;
+        for (SimulatedPlayer player : players) {
+            long expected = player.expected.get();
+            Long balance = stored.get(player.uuid);
+            expectedTotal += expected;
+            if (balance != null) storedTotal += balance;
+            // Players who never joined have no row, and their balance is 0
+            if ((balance == null ? 0 : balance) == expected) continue;
+            if (++wrong <= 10) {
+                System.out.println("  " + player.name + " has " + balance + ", expected " + expected);
+            }
+        }
+        System.out.println("Expected total " + expectedTotal + ", stored total " + storedTotal);
+        if (wrong == 0) {
+            System.out.println("Every balance matches");
+        } else System.out.println(wrong + " of " + players.length + " balances are wrong");
+        return wrong;
+    }
+
+    /**
+     * Counts every record logged as severe, which the economy only logs for errors like failed saves
+     */
+    private static final class SevereCounter extends Handler {
+
+        private final LongAdder count = new LongAdder();
+
+        @Override
+        public void publish(LogRecord record) {
+            if (record.getLevel().intValue() >= Level.SEVERE.intValue()) count.increment();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private enum Action {
+        LOGIN, JOIN, DEPOSIT, WITHDRAW, TRANSFER, BALANCE, QUIT
+    }
+
+    /**
+     * A player, as far as the economy looks at one
+     */
+    private static final class SimulatedPlayer {
+
+        private final UUID uuid = UUID.randomUUID();
+        private final String name;
+        private final Player player;
+        /**
+         * The balance the successful changes to this player add up to
+         */
+        private final AtomicLong expected = new AtomicLong();
+        private volatile boolean online;
+        /**
+         * Whether the player quit to rejoin only once their balance has been evicted
+         */
+        private volatile boolean awaitingEviction;
+
+        private SimulatedPlayer(String name) {
+            this.name = name;
+            this.player = (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class[]{Player.class},
+                    (proxy, method, args) -> switch (method.getName()) {
+                        case "getUniqueId" -> uuid;
+                        case "getName" -> this.name;
+                        case "isOnline" -> online;
+                        case "hashCode" -> uuid.hashCode();
+                        case "equals" -> proxy == args[0];
+                        case "toString" -> this.name;
+                        default -> throw new UnsupportedOperationException(method.getName());
+                    });
+        }
+
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.projecki.economy.manager;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of binding and reading uuids as the 16 bytes the economy table stores, compared with text
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UUIDEncodingBenchmark {
+
+    private UUID uuid;
+    private String text;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        uuid = UUID.randomUUID();
+        text = uuid.toString();
+        bytes = Database.toBytes(uuid);
+    }
+
+    @Benchmark
+    public String toText() {
+        return uuid.toString();
+    }
+
+    @Benchmark
+    public UUID fromText() {
+        return UUID.fromString(text);
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return Database.toBytes(uuid);
+    }
+
+    @Benchmark
+    public UUID fromBytes() {
+        return Database.fromBytes(bytes);
+    }
+
+}
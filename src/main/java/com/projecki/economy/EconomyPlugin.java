@@ -2,21 +2,24 @@ package com.projecki.economy;
 
 import com.projecki.economy.manager.EconomyEngine;
 import com.projecki.economy.manager.EconomyManager;
+import com.projecki.economy.vault.VaultEconomy;
 import org.bukkit.plugin.java.JavaPlugin;
 
 public class EconomyPlugin extends JavaPlugin {
 
     private static EconomyEngine engine;
+    private EconomyManager manager;
 
     @Override
     public void onEnable() {
         saveDefaultConfig();
-        engine = new EconomyManager(this);
+        engine = manager = new EconomyManager(this);
+        if (getServer().getPluginManager().getPlugin("Vault") != null) VaultEconomy.register(this, engine);
     }
 
     @Override
     public void onDisable() {
-
+        if (manager != null) manager.shutdown();
     }
 
     /**
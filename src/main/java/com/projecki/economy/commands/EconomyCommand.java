@@ -2,9 +2,16 @@ package com.projecki.economy.commands;
 
 import co.aikar.commands.BaseCommand;
 import co.aikar.commands.annotation.CommandAlias;
+import co.aikar.commands.annotation.CommandCompletion;
 import co.aikar.commands.annotation.CommandPermission;
 import co.aikar.commands.annotation.Default;
+import co.aikar.commands.annotation.Subcommand;
+import com.projecki.economy.manager.ArchiveResult;
+import com.projecki.economy.manager.BalanceRow;
 import com.projecki.economy.manager.EconomyEngine;
+import com.projecki.economy.manager.EconomyMetrics;
+import com.projecki.economy.manager.HistoryEntry;
+import com.projecki.economy.manager.PlayerName;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.OfflinePlayer;
@@ -15,10 +22,34 @@ import org.jetbrains.annotations.NotNull;
 import javax.annotation.Nullable;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 
 @CommandAlias("economy")
 public class EconomyCommand extends BaseCommand {
 
+    private static final int TOP_PAGE_SIZE = 10;
+    private static final int HISTORY_PAGE_SIZE = 10;
+    private static final DateTimeFormatter HISTORY_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * The last entry id of each history page a sender has viewed, keyed by sender name, so the next page continues
+     * from where the last one ended rather than reading every page before it again
+     */
+    private final Map<String, HistoryCursor> historyCursors = new ConcurrentHashMap<>();
+
     @Default
     public void viewBalance(@NotNull Player p) {
         EconomyEngine.getInstance().getBalance(p).ifPresentOrElse(balance -> {
@@ -27,6 +58,7 @@ public class EconomyCommand extends BaseCommand {
     }
 
     @CommandAlias("balance|bal")
+    @CommandCompletion("@economyplayers")
     public void viewBalance(@NotNull CommandSender sender, @Nullable String name) {
         if (name == null) {
             if (sender instanceof Player p) {
@@ -34,37 +66,363 @@ public class EconomyCommand extends BaseCommand {
             } else sender.sendMessage(ChatColor.RED + "Console unable to view balance of self");
             return;
         }
-        OfflinePlayer target = Bukkit.getOfflinePlayer(name);
-        if (!target.hasPlayedBefore() && !target.isOnline()) {
-            sender.sendMessage(ChatColor.RED + "Unable to find player " + name);
-            return;
-        }
-        EconomyEngine.getInstance().getBalance(target).ifPresentOrElse(balance -> {
-            sender.sendMessage(ChatColor.GOLD + target.getName() + "'s Balance: " + ChatColor.WHITE + balance);
-        }, () -> sender.sendMessage(ChatColor.RED + target.getName() + "'s balance is loading..."));
+        EconomyEngine engine = EconomyEngine.getInstance();
+        withPlayer(sender, name, target -> engine.loadBalance(Bukkit.getOfflinePlayer(target.uuid()))
+                .whenComplete((balance, e) -> Bukkit.getScheduler().runTask(engine.getPlugin(), () -> {
+                    if (e != null) {
+                        sender.sendMessage(ChatColor.RED + "Unable to load " + target.name() + "'s balance");
+                    } else sender.sendMessage(ChatColor.GOLD + target.name() + "'s Balance: " + ChatColor.WHITE + balance);
+                })));
     }
 
     @CommandAlias("setbalance|setbal")
     @CommandPermission("economy.admin")
+    @CommandCompletion("@economyplayers")
     public void setBalance(@NotNull CommandSender sender, @NotNull String name, @NotNull String value) {
-        OfflinePlayer target = Bukkit.getOfflinePlayer(name);
-        if (!target.hasPlayedBefore() && !target.isOnline()) {
-            sender.sendMessage(ChatColor.RED + "Unable to find player " + name);
+        Long balance = parseAmount(sender, value);
+        if (balance == null) return;
+        EconomyEngine engine = EconomyEngine.getInstance();
+        withPlayer(sender, name, target -> {
+            OfflinePlayer player = Bukkit.getOfflinePlayer(target.uuid());
+            // Loaded first, so the balance is set by the time the sender is told it was
+            engine.loadBalance(player).whenComplete((previous, e) ->
+                    Bukkit.getScheduler().runTask(engine.getPlugin(), () -> {
+                        if (e != null) {
+                            sender.sendMessage(ChatColor.RED + "Unable to load " + target.name()
+                                    + "'s balance, it wasn't set");
+                            return;
+                        }
+                        engine.setBalance(player, balance, actorOf(sender), "Set");
+                        sender.sendMessage(ChatColor.GREEN + target.name() + "'s balance has been set to " + balance);
+                    }));
+        });
+    }
+
+    @Subcommand("top")
+    @CommandAlias("baltop|balancetop")
+    public void viewTopBalances(@NotNull CommandSender sender, @Default("1") int page) {
+        EconomyEngine engine = EconomyEngine.getInstance();
+        if (page < 1) {
+            sender.sendMessage(ChatColor.RED + "Page must be at least 1, tried '" + page + "'");
+            return;
+        }
+        List<BalanceRow> rows = engine.getTopBalances((page - 1) * TOP_PAGE_SIZE, TOP_PAGE_SIZE);
+        if (rows.isEmpty()) {
+            sender.sendMessage(ChatColor.RED + "There are no balances on page " + page);
             return;
         }
+        List<UUID> uuids = new ArrayList<>(rows.size());
+        for (BalanceRow row : rows) {
+            uuids.add(row.uuid());
+        }
+        engine.getNames(uuids).whenComplete((names, e) -> Bukkit.getScheduler().runTask(engine.getPlugin(), () -> {
+            // Players whose names couldn't be read are shown by uuid rather than failing the whole page
+            if (e != null) engine.getPlugin().getLogger().log(Level.WARNING, "Unable to read player names", e);
+            sender.sendMessage(ChatColor.GOLD + "Top Balances (page " + page + ")");
+            int rank = (page - 1) * TOP_PAGE_SIZE;
+            for (BalanceRow row : rows) {
+                String name = names == null ? null : names.get(row.uuid());
+                sender.sendMessage(ChatColor.GOLD + "#" + ++rank + " " + ChatColor.WHITE
+                        + (name == null ? row.uuid() : name) + ChatColor.GRAY + " - " + ChatColor.WHITE + row.balance());
+            }
+            if (sender instanceof Player p) {
+                engine.getRank(p).ifPresent(r -> p.sendMessage(ChatColor.GOLD + "Your rank is " + ChatColor.WHITE + "#" + r));
+            }
+        }));
+    }
+
+    @Subcommand("giveall")
+    @CommandPermission("economy.admin")
+    public void giveAll(@NotNull CommandSender sender, @NotNull String value) {
+        Long amount = parseAmount(sender, value);
+        if (amount == null) return;
+        sender.sendMessage(ChatColor.GOLD + "Giving " + amount + " to every player...");
+        reply(sender, EconomyEngine.getInstance().giveAll(amount, actorOf(sender)), "Gave " + amount + " to");
+    }
+
+    @Subcommand("interest")
+    @CommandPermission("economy.admin")
+    public void payInterest(@NotNull CommandSender sender, @NotNull String value, @Nullable String capValue) {
+        BigDecimal percent;
         try {
-            long balance = Long.parseLong(value);
-            EconomyEngine.getInstance().setBalance(target, balance);
-            sender.sendMessage(ChatColor.GREEN + target.getName() + "'s balance has been set to " + balance);
+            percent = new BigDecimal(value);
+        } catch (NumberFormatException e) {
+            sender.sendMessage(ChatColor.RED + "Unable to pay interest at a non-number, tried '" + value + "'");
+            return;
+        }
+        if (percent.signum() < 0) {
+            sender.sendMessage(ChatColor.RED + "Only able to pay positive interest, tried '" + value + "'");
+            return;
+        }
+        Long cap = capValue == null ? Long.valueOf(Long.MAX_VALUE) : parseAmount(sender, capValue);
+        if (cap == null) return;
+        String description = percent.stripTrailingZeros().toPlainString() + "% interest"
+                + (capValue == null ? "" : ", at most " + cap + ",");
+        sender.sendMessage(ChatColor.GOLD + "Paying " + description + " to every player...");
+        reply(sender, EconomyEngine.getInstance().payInterest(percent, cap, actorOf(sender)),
+                "Paid " + description + " to");
+    }
+
+    @Subcommand("reset")
+    @CommandPermission("economy.admin")
+    public void resetAll(@NotNull CommandSender sender, @NotNull String value, @Nullable String confirm) {
+        Long balance = parseAmount(sender, value);
+        if (balance == null) return;
+        if (!"confirm".equalsIgnoreCase(confirm)) {
+            sender.sendMessage(ChatColor.RED + "This sets every players balance to " + balance + ", run '/economy reset "
+                    + balance + " confirm' to continue");
+            return;
+        }
+        sender.sendMessage(ChatColor.GOLD + "Setting every balance to " + balance + "...");
+        reply(sender, EconomyEngine.getInstance().resetAll(balance, actorOf(sender)),
+                "Set the balance to " + balance + " for");
+    }
+
+    @Subcommand("history")
+    @CommandPermission("economy.admin")
+    @CommandCompletion("@economyplayers")
+    public void viewHistory(@NotNull CommandSender sender, @NotNull String name, @Default("1") int page) {
+        if (page < 1) {
+            sender.sendMessage(ChatColor.RED + "Page must be at least 1, tried '" + page + "'");
+            return;
+        }
+        EconomyEngine engine = EconomyEngine.getInstance();
+        withPlayer(sender, name, target -> {
+            // Continue from the furthest page already viewed, up to the one before this
+            HistoryCursor cursor = historyCursors.get(sender.getName());
+            List<Long> lastIds = new ArrayList<>();
+            if (cursor != null && cursor.target().equals(target.uuid())) {
+                lastIds.addAll(cursor.lastIds().subList(0, Math.min(cursor.lastIds().size(), page - 1)));
+            }
+            CompletableFuture<List<HistoryEntry>> read = readHistoryPage(engine,
+                    Bukkit.getOfflinePlayer(target.uuid()), lastIds, page);
+            // The other players involved are named before replying, so the reply never looks a name up itself
+            CompletableFuture<Map<UUID, String>> actors = read.thenCompose(entries -> {
+                List<UUID> uuids = new ArrayList<>();
+                for (HistoryEntry entry : entries) {
+                    if (entry.actor() != null) uuids.add(entry.actor());
+                }
+                return engine.getNames(uuids).exceptionally(e -> Map.of());
+            });
+            actors.whenComplete((names, e) -> Bukkit.getScheduler().runTask(engine.getPlugin(), () -> {
+                if (e != null) {
+                    engine.getPlugin().getLogger().log(Level.WARNING, "Unable to read " + target.name() + "'s history", e);
+                    sender.sendMessage(ChatColor.RED + "Unable to read " + target.name() + "'s history");
+                    return;
+                }
+                List<HistoryEntry> entries = read.join();
+                historyCursors.put(sender.getName(), new HistoryCursor(target.uuid(), lastIds));
+                if (entries.isEmpty()) {
+                    sender.sendMessage(ChatColor.RED + "There is no history on page " + page);
+                    return;
+                }
+                sender.sendMessage(ChatColor.GOLD + target.name() + "'s History (page " + page + ")");
+                for (HistoryEntry entry : entries) {
+                    sender.sendMessage(describe(entry, names));
+                }
+            }));
+        });
+    }
+
+    @Subcommand("export")
+    @CommandPermission("economy.admin")
+    public void exportBalances(@NotNull CommandSender sender, @NotNull String name) {
+        sender.sendMessage(ChatColor.GOLD + "Exporting every balance to '" + name + "'...");
+        archive(sender, () -> EconomyEngine.getInstance().exportBalances(name), "Exported", "export");
+    }
+
+    @Subcommand("import")
+    @CommandPermission("economy.admin")
+    public void importBalances(@NotNull CommandSender sender, @NotNull String name, @Nullable String confirm) {
+        if (!"confirm".equalsIgnoreCase(confirm)) {
+            sender.sendMessage(ChatColor.RED + "This replaces the balance of every player in '" + name
+                    + "', run '/economy import " + name + " confirm' to continue");
+            return;
+        }
+        sender.sendMessage(ChatColor.GOLD + "Importing every balance from '" + name + "'...");
+        archive(sender, () -> EconomyEngine.getInstance().importBalances(name, actorOf(sender)), "Imported", "import");
+    }
+
+    @Subcommand("stats")
+    @CommandPermission("economy.admin")
+    public void viewStats(@NotNull CommandSender sender) {
+        EconomyMetrics metrics = EconomyEngine.getInstance().getMetrics();
+        sender.sendMessage(ChatColor.GOLD + "Economy Stats");
+        sender.sendMessage(ChatColor.GOLD + "Cache: " + ChatColor.WHITE + metrics.getCacheSize() + " balances, "
+                + String.format("%.1f", metrics.getCacheHitRate() * 100) + "% hit rate ("
+                + metrics.getCacheHits() + " hits, " + metrics.getCacheMisses() + " misses)");
+        sender.sendMessage(ChatColor.GOLD + "Writes: " + ChatColor.WHITE + metrics.getPendingWrites() + " pending, "
+                + metrics.getInFlightWrites() + " in flight");
+        sender.sendMessage(ChatColor.GOLD + "Database calls: " + ChatColor.WHITE + metrics.getInFlightCalls()
+                + " in flight, " + metrics.getQueuedCalls() + " queued");
+        sender.sendMessage(ChatColor.GOLD + "History: " + ChatColor.WHITE + metrics.getPendingHistory() + " pending, "
+                + metrics.getDroppedHistory() + " dropped");
+        if (metrics.isCircuitOpen()) {
+            sender.sendMessage(ChatColor.RED + "Database unreachable, calls are refused until it is back");
+        }
+        for (EconomyMetrics.Operation operation : EconomyMetrics.Operation.values()) {
+            sender.sendMessage(ChatColor.GRAY + " " + operation.getName() + ": " + ChatColor.WHITE
+                    + metrics.describe(operation));
+        }
+        String waits = metrics.describeConnectionWaits();
+        if (waits != null) {
+            sender.sendMessage(ChatColor.GOLD + "Connection waits: " + ChatColor.WHITE + waits);
+            sender.sendMessage(ChatColor.GOLD + "Reconnects: " + ChatColor.WHITE + metrics.getReconnects()
+                    + ", outages: " + metrics.getCircuitOpens());
+        }
+    }
+
+    /**
+     * Read a page of history by keyset, walking forward from the last page whose end is known. Each page read adds
+     * its last id to the list
+     *
+     * @param lastIds The last id of each page before the one to read, as far as known
+     * @return The entries of the page, or none if the history ends before it
+     */
+    private CompletableFuture<List<HistoryEntry>> readHistoryPage(@NotNull EconomyEngine engine,
+                                                                  @NotNull OfflinePlayer target,
+                                                                  @NotNull List<Long> lastIds, int page) {
+        long before = lastIds.isEmpty() ? Long.MAX_VALUE : lastIds.get(lastIds.size() - 1);
+        return engine.getHistory(target, before, HISTORY_PAGE_SIZE).thenCompose(entries -> {
+            if (!entries.isEmpty()) lastIds.add(entries.get(entries.size() - 1).id());
+            if (lastIds.size() >= page) return CompletableFuture.completedFuture(entries);
+            if (entries.size() < HISTORY_PAGE_SIZE) return CompletableFuture.completedFuture(List.of());
+            return readHistoryPage(engine, target, lastIds, page);
+        });
+    }
+
+    /**
+     * Describe a history entry as a line of chat, naming the other player involved if any
+     *
+     * @param names The names of the players involved, players missing are shown by uuid
+     */
+    private String describe(@NotNull HistoryEntry entry, @NotNull Map<UUID, String> names) {
+        StringBuilder line = new StringBuilder().append(ChatColor.GRAY)
+                .append(HISTORY_TIME_FORMAT.format(Instant.ofEpochMilli(entry.time()))).append(' ');
+        if (entry.delta() != 0 || entry.target() != null) {
+            line.append(entry.delta() < 0 ? ChatColor.RED : ChatColor.GREEN).append(entry.delta() < 0 ? "" : "+")
+                    .append(entry.delta()).append(' ');
+        }
+        line.append(ChatColor.WHITE).append(entry.reason());
+        if (entry.actor() != null) {
+            String name = names.get(entry.actor());
+            line.append(ChatColor.GRAY).append(" (").append(name == null ? entry.actor() : name).append(')');
+        }
+        if (entry.target() != null) {
+            line.append(ChatColor.GRAY).append(" - ").append(ChatColor.WHITE).append(entry.balance());
+        }
+        return line.toString();
+    }
+
+    /**
+     * Find a player by name, then act on them on the main thread, telling the sender if they weren't found. Names are
+     * only looked up in the economy's own index, and in the names the server already knows for players the economy
+     * hasn't seen join, never with Mojang, so no command waits on a profile lookup
+     *
+     * @param action Called with the player found, on the main thread
+     */
+    private void withPlayer(@NotNull CommandSender sender, @NotNull String name, @NotNull Consumer<PlayerName> action) {
+        EconomyEngine engine = EconomyEngine.getInstance();
+        engine.findPlayer(name).whenComplete((found, e) -> Bukkit.getScheduler().runTask(engine.getPlugin(), () -> {
+            if (e != null) {
+                engine.getPlugin().getLogger().log(Level.WARNING, "Unable to look up player " + name, e);
+                sender.sendMessage(ChatColor.RED + "Unable to look up player " + name);
+                return;
+            }
+            PlayerName target = found;
+            if (target == null) {
+                OfflinePlayer known = Bukkit.getOfflinePlayerIfCached(name);
+                if (known != null && known.getName() != null) {
+                    target = new PlayerName(known.getUniqueId(), known.getName());
+                    engine.recordName(target.uuid(), target.name());
+                }
+            }
+            if (target == null) {
+                sender.sendMessage(ChatColor.RED + "Unable to find player " + name);
+                return;
+            }
+            action.accept(target);
+        }));
+    }
+
+    /**
+     * @return The uuid of the player running a command, or null for the console
+     */
+    private static @Nullable UUID actorOf(@NotNull CommandSender sender) {
+        return sender instanceof Player p ? p.getUniqueId() : null;
+    }
+
+    /**
+     * Parse a whole, positive amount, telling the sender if it isn't one
+     *
+     * @return The amount, or null if invalid
+     */
+    private @Nullable Long parseAmount(@NotNull CommandSender sender, @NotNull String value) {
+        try {
+            long amount = Long.parseLong(value);
+            if (amount >= 0) return amount;
         } catch (NumberFormatException e) {
             try {
                 Double.parseDouble(value);
             } catch (NumberFormatException ex) {
-                sender.sendMessage(ChatColor.RED + "Unable to set balance to a non-number, tried '" + value + "'");
-                return;
+                sender.sendMessage(ChatColor.RED + "Unable to use a non-number, tried '" + value + "'");
+                return null;
             }
-            sender.sendMessage(ChatColor.RED + "Only able to set whole, positive numbers, tried '" + value + "'");
         }
+        sender.sendMessage(ChatColor.RED + "Only able to use whole, positive numbers, tried '" + value + "'");
+        return null;
+    }
+
+    /**
+     * Tell the sender how many balances a change to every balance updated once it completes, on the main thread
+     */
+    private void reply(@NotNull CommandSender sender, @NotNull CompletableFuture<Long> update, @NotNull String done) {
+        EconomyEngine engine = EconomyEngine.getInstance();
+        long start = System.currentTimeMillis();
+        update.whenComplete((count, e) -> Bukkit.getScheduler().runTask(engine.getPlugin(), () -> {
+            if (e != null) {
+                engine.getPlugin().getLogger().log(Level.SEVERE, "Unable to update every balance", e);
+                sender.sendMessage(ChatColor.RED + "Unable to update every balance, some may have been updated already."
+                        + " See the console for details");
+            } else sender.sendMessage(ChatColor.GREEN + done + " " + count + " players in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }));
+    }
+
+    /**
+     * Tell the sender how an export or import went once it completes, on the main thread
+     *
+     * @param start     Starts the export or import
+     * @param done      What a successful run did, e.g 'Exported'
+     * @param operation What is run, for failures, e.g 'export'
+     */
+    private void archive(@NotNull CommandSender sender, @NotNull Supplier<CompletableFuture<ArchiveResult>> start,
+                         @NotNull String done, @NotNull String operation) {
+        EconomyEngine engine = EconomyEngine.getInstance();
+        CompletableFuture<ArchiveResult> run;
+        try {
+            run = start.get();
+        } catch (IllegalStateException e) {
+            sender.sendMessage(ChatColor.RED + e.getMessage());
+            return;
+        }
+        run.whenComplete((result, e) -> Bukkit.getScheduler().runTask(engine.getPlugin(), () -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                engine.getPlugin().getLogger().log(Level.SEVERE, "Unable to " + operation + " balances", cause);
+                sender.sendMessage(ChatColor.RED + "Unable to " + operation + " balances: " + cause.getMessage());
+                return;
+            }
+            sender.sendMessage(ChatColor.GREEN + done + " " + result.rows() + " balances (" + result.bytes() / 1024
+                    + " KB) in " + result.millis() + "ms, " + result.rowsPerSecond() + " balances/s");
+        }));
+    }
+
+    /**
+     * @param target  The player whose history was viewed
+     * @param lastIds The last entry id of each page viewed, in page order
+     */
+    private record HistoryCursor(@NotNull UUID target, @NotNull List<Long> lastIds) {
     }
 
 }
@@ -0,0 +1,19 @@
+package com.projecki.economy.manager;
+
+/**
+ * The outcome of exporting or importing balances
+ *
+ * @param rows   The number of balances exported or imported
+ * @param bytes  The size of the archive, in bytes
+ * @param millis How long it took, in milliseconds
+ */
+public record ArchiveResult(long rows, long bytes, long millis) {
+
+    /**
+     * @return The number of balances exported or imported per second
+     */
+    public long rowsPerSecond() {
+        return millis == 0 ? rows * 1000 : rows * 1000 / millis;
+    }
+
+}
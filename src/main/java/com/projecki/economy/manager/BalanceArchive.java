@@ -0,0 +1,259 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+/**
+ * A compact binary file of balances, for backups and moving the economy between databases.
+ * <p>
+ * Files are written and read through fixed-size buffers, so any number of balances takes the same memory. A file is
+ * a header, one record per balance, and a footer:
+ * <pre>
+ *   header: magic (4) | version (1)
+ *   record: uuid most significant bits (8) | uuid least significant bits (8) | balance (1 to 10, unsigned varint)
+ *   footer: record count (8) | crc32c of the header and records (4) | magic (4)
+ * </pre>
+ * Balances are small numbers for most players, so the varint keeps the average record close to 19 bytes. A file
+ * missing its footer was never finished, and one failing its checksum or count is corrupt.
+ */
+final class BalanceArchive {
+
+    /**
+     * The extension of archive files
+     */
+    static final String EXTENSION = ".econ";
+
+    private static final int MAGIC = 0x45434131; // "ECA1"
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final int FOOTER_SIZE = 16;
+    private static final int MAX_RECORD_SIZE = 16 + 10;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private BalanceArchive() {
+    }
+
+    /**
+     * Writes an archive, record by record. The file is only valid once {@link #finish()} has written its footer
+     */
+    static final class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CRC32C crc = new CRC32C();
+        private long rows, bytes;
+
+        /**
+         * @param file The file to write, which must not exist yet
+         * @throws IOException If the file couldn't be created
+         */
+        Writer(@NotNull Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            buffer.putInt(MAGIC).put(VERSION);
+        }
+
+        /**
+         * Append a balance
+         *
+         * @param uuid    The uuid of the player
+         * @param balance The balance of the player
+         * @throws IOException If the file couldn't be written
+         */
+        void write(@NotNull UUID uuid, long balance) throws IOException {
+            if (buffer.remaining() < MAX_RECORD_SIZE) drain();
+            buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+            long value = balance;
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+            rows++;
+        }
+
+        /**
+         * Write the footer and force the file to disk
+         *
+         * @throws IOException If the file couldn't be written
+         */
+        void finish() throws IOException {
+            drain();
+            buffer.putLong(rows).putInt((int) crc.getValue()).putInt(MAGIC).flip();
+            while (buffer.hasRemaining()) {
+                bytes += channel.write(buffer);
+            }
+            buffer.clear();
+            channel.force(true);
+        }
+
+        /**
+         * @return The number of balances written
+         */
+        long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return The number of bytes written to the file so far
+         */
+        long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            crc.update(buffer);
+            buffer.rewind();
+            while (buffer.hasRemaining()) {
+                bytes += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+    }
+
+    /**
+     * Reads an archive, record by record. The checksum and count are checked once every record has been read, so a
+     * caller that mustn't act on a corrupt file reads it through once before acting on it
+     */
+    static final class Reader implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CRC32C crc = new CRC32C();
+        private final long recordsEnd, expectedRows;
+        private final int expectedCrc;
+        private long position, rows;
+        private UUID uuid;
+        private long balance;
+
+        /**
+         * @param file The file to read
+         * @throws IOException If the file couldn't be read, or isn't a finished archive
+         */
+        Reader(@NotNull Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size < HEADER_SIZE + FOOTER_SIZE) throw new IOException("Not a balance archive, or unfinished");
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+                while (footer.hasRemaining()) {
+                    if (channel.read(footer, size - FOOTER_SIZE + footer.position()) < 0) {
+                        throw new IOException("Unable to read the archive footer");
+                    }
+                }
+                footer.flip();
+                this.expectedRows = footer.getLong();
+                this.expectedCrc = footer.getInt();
+                if (footer.getInt() != MAGIC) throw new IOException("Not a balance archive, or unfinished");
+                this.recordsEnd = size - FOOTER_SIZE;
+                buffer.limit(0);
+                fill();
+                if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                    throw new IOException("Not a balance archive");
+                }
+                byte version = buffer.get();
+                if (version != VERSION) throw new IOException("Unsupported balance archive version " + version);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Read the next balance
+         *
+         * @return True if a balance was read, false once every balance has been read and the file checked
+         * @throws IOException If the file couldn't be read, or is corrupt
+         */
+        boolean next() throws IOException {
+            if (buffer.remaining() < MAX_RECORD_SIZE) fill();
+            if (!buffer.hasRemaining()) {
+                if (rows != expectedRows || (int) crc.getValue() != expectedCrc) {
+                    throw new IOException("The archive is corrupt, its checksum doesn't match");
+                }
+                return false;
+            }
+            if (buffer.remaining() < 16) throw new IOException("The archive is corrupt, a record is cut short");
+            uuid = new UUID(buffer.getLong(), buffer.getLong());
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (!buffer.hasRemaining() || shift > 63) {
+                    throw new IOException("The archive is corrupt, a balance is cut short");
+                }
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            balance = value;
+            rows++;
+            return true;
+        }
+
+        /**
+         * @return The uuid of the balance last read
+         */
+        @NotNull UUID getUUID() {
+            return uuid;
+        }
+
+        /**
+         * @return The balance last read
+         */
+        long getBalance() {
+            return balance;
+        }
+
+        /**
+         * @return The number of balances read so far
+         */
+        long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return The size of the file, in bytes
+         */
+        long getSize() {
+            return recordsEnd + FOOTER_SIZE;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * Top the buffer up with the next bytes of the records, checksumming them as they are read
+         */
+        private void fill() throws IOException {
+            buffer.compact();
+            int start = buffer.position();
+            buffer.limit((int) Math.min(buffer.capacity(), start + (recordsEnd - position)));
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) throw new IOException("The archive is cut short");
+                position += read;
+            }
+            buffer.flip();
+            buffer.position(start);
+            crc.update(buffer);
+            buffer.position(0);
+        }
+
+    }
+
+}
@@ -0,0 +1,398 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The local cache of player balances, safe to read and update from any thread.
+ * <p>
+ * Each player has one {@link Account} for as long as they are cached, holding their balance as a primitive long.
+ * Reads never lock, and updates lock only the accounts involved, so updating one balance never allocates or waits
+ * on updates to another. Every update is also recorded in the {@link TransactionJournal}.
+ * <p>
+ * The cache is bounded by {@link #evict(int, long)}. Accounts of online players are pinned and never evicted, nor are
+ * accounts with changes not yet flushed. An evicted account refuses further updates, so callers holding one must
+ * look the player up again.
+ */
+class BalanceCache implements Iterable<BalanceCache.Account> {
+
+    private final ConcurrentHashMap<UUID, Account> accounts = new ConcurrentHashMap<>();
+    private final TransactionJournal journal;
+
+    /**
+     * @param journal The journal to record every update in
+     */
+    BalanceCache(@NotNull TransactionJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Get the cached account of a player
+     *
+     * @param uuid The uuid of the player
+     * @return The account, or null if not cached
+     */
+    @Nullable Account get(@NotNull UUID uuid) {
+        Account account = accounts.get(uuid);
+        if (account != null) account.lastAccess = System.currentTimeMillis();
+        return account;
+    }
+
+    /**
+     * Cache an account for the player with the given balance, unless one is already cached. The balance isn't based
+     * on a known row version, so it is saved whatever the database holds
+     *
+     * @param uuid    The uuid of the player
+     * @param balance The balance of a newly cached account
+     * @return The cached account, which is not new if the player was already cached
+     */
+    @NotNull Account putIfAbsent(@NotNull UUID uuid, long balance) {
+        return putIfAbsent(uuid, balance, VersionedBalance.UNKNOWN);
+    }
+
+    /**
+     * Cache an account for the player with the given balance, unless one is already cached
+     *
+     * @param uuid    The uuid of the player
+     * @param balance The balance of a newly cached account
+     * @param version The version of the database row the balance was read from
+     * @return The cached account, which is not new if the player was already cached
+     */
+    @NotNull Account putIfAbsent(@NotNull UUID uuid, long balance, long version) {
+        Account account = accounts.get(uuid);
+        if (account != null) return account;
+        Account created = new Account(journal, uuid, balance, version);
+        account = accounts.putIfAbsent(uuid, created);
+        return account == null ? created : account;
+    }
+
+    /**
+     * Cache an account for the player with changes of its own made to the given row, unless one is already cached.
+     * The account is marked dirty, so its changes are saved if the row is still at that version, and are otherwise
+     * rebased onto the newer row
+     *
+     * @param uuid    The uuid of the player
+     * @param balance The balance including the changes
+     * @param base    The balance of the database row the changes were made to
+     * @param version The version of that row
+     * @return The cached account, which is not new if the player was already cached
+     */
+    @NotNull Account restore(@NotNull UUID uuid, long balance, long base, long version) {
+        Account account = accounts.get(uuid);
+        if (account != null) return account;
+        Account created = new Account(journal, uuid, balance, version);
+        created.base = base;
+        created.dirty = true;
+        account = accounts.putIfAbsent(uuid, created);
+        return account == null ? created : account;
+    }
+
+    /**
+     * Check if a player has a cached account
+     *
+     * @param uuid The uuid of the player
+     * @return True if the player is cached, otherwise false
+     */
+    boolean contains(@NotNull UUID uuid) {
+        return accounts.containsKey(uuid);
+    }
+
+    /**
+     * Pin or unpin a players account, pinned accounts are never evicted
+     *
+     * @param uuid   The uuid of the player
+     * @param pinned True to pin the account, false to let it be evicted once idle
+     */
+    void setPinned(@NotNull UUID uuid, boolean pinned) {
+        Account account = get(uuid);
+        if (account != null) account.pinned = pinned;
+    }
+
+    /**
+     * Evict unpinned accounts with no unflushed changes, first those idle for longer than the time to live, then the
+     * least recently used until the cache is back within its maximum size
+     *
+     * @param maximumSize The maximum number of accounts to keep
+     * @param ttlMillis   How long an unpinned account may go unused before it is evicted
+     * @return The number of accounts evicted
+     */
+    int evict(int maximumSize, long ttlMillis) {
+        long expiry = System.currentTimeMillis() - ttlMillis;
+        int evicted = 0;
+        List<Account> candidates = new ArrayList<>();
+        for (Account account : accounts.values()) {
+            if (account.pinned || account.dirty) continue;
+            if (account.lastAccess < expiry) {
+                if (tryEvict(account)) evicted++;
+            } else candidates.add(account);
+        }
+        int excess = accounts.size() - maximumSize;
+        if (excess > 0) {
+            candidates.sort(Comparator.comparingLong(account -> account.lastAccess));
+            for (int i = 0; i < candidates.size() && excess > 0; i++) {
+                if (tryEvict(candidates.get(i))) {
+                    evicted++;
+                    excess--;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return The number of cached accounts
+     */
+    int size() {
+        return accounts.size();
+    }
+
+    private boolean tryEvict(Account account) {
+        synchronized (account) {
+            if (account.pinned || account.dirty) return false;
+            account.evicted = true;
+            accounts.remove(account.uuid, account);
+            return true;
+        }
+    }
+
+    /**
+     * Count the accounts with changes not yet written to the database
+     *
+     * @return The number of dirty accounts
+     */
+    int countDirty() {
+        int count = 0;
+        for (Account account : accounts.values()) {
+            if (account.dirty) count++;
+        }
+        return count;
+    }
+
+    @Override
+    public @NotNull Iterator<Account> iterator() {
+        return accounts.values().iterator();
+    }
+
+    /**
+     * A cached balance. All updates are made while holding the account's monitor, and mark the account dirty until
+     * it is next flushed. Updates are journaled after being marked dirty, so that a flush which has seen a journal
+     * sequence number has also seen every account changed up to it
+     * <p>
+     * The account also tracks the balance and version of its database row as last known, its base. Local changes are
+     * the difference between the balance and the base, so when another server changes the row they are rebased onto
+     * the new balance rather than lost or overwriting it
+     */
+    static final class Account {
+
+        private final TransactionJournal journal;
+        private final UUID uuid;
+        private volatile long balance;
+        private volatile boolean dirty, pinned, evicted;
+        private volatile long lastAccess = System.currentTimeMillis();
+        // Guarded by the monitor
+        private long base, version;
+        private boolean saving;
+        private long pendingBalance, pendingVersion = VersionedBalance.UNKNOWN;
+
+        private Account(TransactionJournal journal, UUID uuid, long balance, long version) {
+            this.journal = journal;
+            this.uuid = uuid;
+            this.balance = balance;
+            this.base = balance;
+            this.version = version;
+        }
+
+        UUID getUniqueId() {
+            return uuid;
+        }
+
+        long getBalance() {
+            return balance;
+        }
+
+        /**
+         * Replace the balance
+         *
+         * @param balance The new balance
+         * @return True if replaced, false if the account was evicted
+         */
+        synchronized boolean setBalance(long balance) {
+            if (evicted) return false;
+            this.balance = balance;
+            dirty = true;
+            journal.append(uuid, balance, base, version);
+            return true;
+        }
+
+        /**
+         * Add to the balance
+         *
+         * @param amount The non-negative amount to add
+         * @return True if added, false if the balance would overflow or the account was evicted
+         */
+        synchronized boolean deposit(long amount) {
+            long current = balance;
+            if (evicted || current > Long.MAX_VALUE - amount) return false;
+            balance = current + amount;
+            dirty = true;
+            journal.append(uuid, balance, base, version);
+            return true;
+        }
+
+        /**
+         * Take from the balance
+         *
+         * @param amount The non-negative amount to take
+         * @return True if taken, false if the balance is less than the amount or the account was evicted
+         */
+        synchronized boolean withdraw(long amount) {
+            long current = balance;
+            if (evicted || current < amount) return false;
+            balance = current - amount;
+            dirty = true;
+            journal.append(uuid, balance, base, version);
+            return true;
+        }
+
+        /**
+         * Move an amount between two accounts, so that no reader ever sees it taken from one but not yet given to
+         * the other
+         *
+         * @param from   The account to take from
+         * @param to     The account to give to
+         * @param amount The non-negative amount to move
+         * @return True if moved, false if both are the same account, the sender has less than the amount, the
+         * receiver would overflow, or either account was evicted
+         */
+        static boolean transfer(@NotNull Account from, @NotNull Account to, long amount) {
+            if (from == to) return false;
+            // Always lock in the same order, so two opposing transfers can't deadlock
+            boolean fromFirst = from.uuid.compareTo(to.uuid) < 0;
+            Account first = fromFirst ? from : to, second = fromFirst ? to : from;
+            synchronized (first) {
+                synchronized (second) {
+                    if (from.evicted || to.evicted) return false;
+                    if (from.balance < amount || to.balance > Long.MAX_VALUE - amount) return false;
+                    from.balance -= amount;
+                    to.balance += amount;
+                    from.dirty = true;
+                    to.dirty = true;
+                    from.journal.append(from.uuid, from.balance, from.base, from.version);
+                    to.journal.append(to.uuid, to.balance, to.base, to.version);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Whether the account has been evicted, after which it refuses all updates
+         *
+         * @return True if evicted, otherwise false
+         */
+        boolean isEvicted() {
+            return evicted;
+        }
+
+        /**
+         * Mark the account as changed since it was last written to the database
+         */
+        void markDirty() {
+            dirty = true;
+        }
+
+        /**
+         * Clear the dirty mark before the balance is read for writing to the database. A change made after this
+         * call marks the account dirty again, so it is never lost
+         *
+         * @return True if the account was dirty, otherwise false
+         */
+        boolean clearDirty() {
+            if (!dirty) return false;
+            dirty = false;
+            return true;
+        }
+
+        /**
+         * Start saving the balance. Until the save ends, changes from other servers are held back, as it isn't yet
+         * known whether they include the balance being saved
+         *
+         * @return The balance to save, with the version of the row it is based on
+         */
+        synchronized VersionedBalance beginSave() {
+            saving = true;
+            return new VersionedBalance(balance, version);
+        }
+
+        /**
+         * End a save that was written, or confirm one seen in the change log, whichever comes first
+         *
+         * @param balance The balance saved
+         * @param version The version of the row written, or {@link VersionedBalance#UNKNOWN} if not versioned
+         */
+        synchronized void endSave(long balance, long version) {
+            if (version != VersionedBalance.UNKNOWN && version <= this.version) return;
+            saving = false;
+            if (version != VersionedBalance.UNKNOWN) {
+                base = balance;
+                this.version = version;
+            }
+            rebasePending();
+        }
+
+        /**
+         * End a save that wasn't written, because it failed or the row had changed
+         */
+        synchronized void failSave() {
+            saving = false;
+            rebasePending();
+        }
+
+        /**
+         * Rebase local changes onto a newer balance of the database row, written by another server. If local changes
+         * take more than the new balance holds, such as the same money spent on two servers at once, the balance is
+         * capped at zero
+         *
+         * @param balance The balance of the row
+         * @param version The version of the row, ignored unless newer than the base
+         */
+        synchronized void rebase(long balance, long version) {
+            if (saving) {
+                if (version > pendingVersion) {
+                    pendingBalance = balance;
+                    pendingVersion = version;
+                }
+                return;
+            }
+            if (evicted || this.version == VersionedBalance.UNKNOWN || version <= this.version) return;
+            long local = this.balance - base;
+            long rebased = local > 0 && balance > Long.MAX_VALUE - local ? Long.MAX_VALUE : Math.max(0, balance + local);
+            base = balance;
+            this.version = version;
+            this.balance = rebased;
+            // Unsaved changes are journaled at their rebased balance, so a replay doesn't undo the other server's
+            if (local != 0) journal.append(uuid, rebased, base, this.version);
+        }
+
+        /**
+         * Forget the version of the database row, after it was found deleted, so the balance is next saved as is
+         */
+        synchronized void forgetVersion() {
+            version = VersionedBalance.UNKNOWN;
+        }
+
+        private void rebasePending() {
+            long pending = pendingVersion;
+            pendingVersion = VersionedBalance.UNKNOWN;
+            if (pending != VersionedBalance.UNKNOWN) rebase(pendingBalance, pending);
+        }
+
+    }
+
+}
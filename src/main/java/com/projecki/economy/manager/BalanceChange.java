@@ -0,0 +1,18 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+
+/**
+ * An entry of the database change log, recorded by every write to a balance
+ *
+ * @param id      The id of the entry, increasing with every write
+ * @param uuid    The uuid of the player
+ * @param balance The balance of the player after the write
+ * @param version The version of the row after the write
+ * @param local   Whether the write was a {@link EconomyDatabase#compareAndSaveBalances} through this same database,
+ *                whose caller already holds the balance
+ */
+public record BalanceChange(long id, @NotNull UUID uuid, long balance, long version, boolean local) {
+}
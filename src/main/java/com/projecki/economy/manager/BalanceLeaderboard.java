@@ -0,0 +1,198 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Every known balance ranked from richest to poorest, kept up to date one change at a time.
+ * <p>
+ * Balances are held in a treap, a binary search tree balanced by random priorities, where every node also counts the
+ * nodes beneath it. That makes finding a players rank and finding the player at a rank both O(log n). Equal balances
+ * are ordered by uuid.
+ */
+class BalanceLeaderboard {
+
+    private final Map<UUID, Node> nodes = new HashMap<>();
+    private Node root;
+
+    /**
+     * Set a players balance, moving them to their new rank
+     *
+     * @param uuid    The uuid of the player
+     * @param balance Their current balance
+     */
+    synchronized void update(@NotNull UUID uuid, long balance) {
+        Node node = nodes.get(uuid);
+        if (node != null) {
+            if (node.balance == balance) return;
+            root = remove(root, node);
+            node.balance = balance;
+        } else {
+            node = new Node(uuid, balance);
+            nodes.put(uuid, node);
+        }
+        root = insert(root, node);
+    }
+
+    /**
+     * Add a players balance, unless they are already ranked. Used when rebuilding from the database, so that
+     * balances loaded while a rebuild is in progress aren't replaced by older values
+     *
+     * @param uuid    The uuid of the player
+     * @param balance Their balance
+     */
+    synchronized void offer(@NotNull UUID uuid, long balance) {
+        if (!nodes.containsKey(uuid)) update(uuid, balance);
+    }
+
+    /**
+     * Get a players rank, starting from 1 for the richest
+     *
+     * @param uuid The uuid of the player
+     * @return Their rank, or 0 if they aren't ranked
+     */
+    synchronized int rank(@NotNull UUID uuid) {
+        Node node = nodes.get(uuid);
+        if (node == null) return 0;
+        int before = 0;
+        Node current = root;
+        while (current != node) {
+            if (compare(node, current) < 0) {
+                current = current.left;
+            } else {
+                before += size(current.left) + 1;
+                current = current.right;
+            }
+        }
+        return before + size(node.left) + 1;
+    }
+
+    /**
+     * Get a page of ranked balances
+     *
+     * @param offset The number of ranks to skip, 0 to start from the richest
+     * @param limit  The maximum number of balances to return
+     * @return The balances, richest first
+     */
+    synchronized List<BalanceRow> page(int offset, int limit) {
+        int end = Math.min(size(root), offset + limit);
+        List<BalanceRow> rows = new ArrayList<>(Math.max(0, end - offset));
+        for (int index = Math.max(0, offset); index < end; index++) {
+            Node node = select(index);
+            rows.add(new BalanceRow(node.uuid, node.balance));
+        }
+        return rows;
+    }
+
+    /**
+     * @return The number of ranked players
+     */
+    synchronized int size() {
+        return size(root);
+    }
+
+    private Node select(int index) {
+        Node current = root;
+        while (true) {
+            int leftSize = size(current.left);
+            if (index < leftSize) {
+                current = current.left;
+            } else if (index == leftSize) {
+                return current;
+            } else {
+                index -= leftSize + 1;
+                current = current.right;
+            }
+        }
+    }
+
+    private Node insert(Node tree, Node node) {
+        node.left = node.right = null;
+        node.size = 1;
+        if (tree == null) return node;
+        if (node.priority > tree.priority) {
+            Node[] split = split(tree, node);
+            node.left = split[0];
+            node.right = split[1];
+            node.size = size(node.left) + size(node.right) + 1;
+            return node;
+        }
+        if (compare(node, tree) < 0) {
+            tree.left = insert(tree.left, node);
+        } else tree.right = insert(tree.right, node);
+        tree.size++;
+        return tree;
+    }
+
+    private Node remove(Node tree, Node node) {
+        if (tree == node) return merge(tree.left, tree.right);
+        if (compare(node, tree) < 0) {
+            tree.left = remove(tree.left, node);
+        } else tree.right = remove(tree.right, node);
+        tree.size--;
+        return tree;
+    }
+
+    /**
+     * Split a tree into the nodes ranked before the key and the nodes ranked after it
+     */
+    private Node[] split(Node tree, Node key) {
+        if (tree == null) return new Node[2];
+        if (compare(tree, key) < 0) {
+            Node[] split = split(tree.right, key);
+            tree.right = split[0];
+            tree.size = size(tree.left) + size(tree.right) + 1;
+            split[0] = tree;
+            return split;
+        }
+        Node[] split = split(tree.left, key);
+        tree.left = split[1];
+        tree.size = size(tree.left) + size(tree.right) + 1;
+        split[1] = tree;
+        return split;
+    }
+
+    private Node merge(Node left, Node right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.size = size(left.left) + size(left.right) + 1;
+            return left;
+        }
+        right.left = merge(left, right.left);
+        right.size = size(right.left) + size(right.right) + 1;
+        return right;
+    }
+
+    private static int compare(Node a, Node b) {
+        if (a.balance != b.balance) return a.balance > b.balance ? -1 : 1;
+        return a.uuid.compareTo(b.uuid);
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static final class Node {
+
+        private final UUID uuid;
+        private final int priority = ThreadLocalRandom.current().nextInt();
+        private long balance;
+        private int size = 1;
+        private Node left, right;
+
+        private Node(UUID uuid, long balance) {
+            this.uuid = uuid;
+            this.balance = balance;
+        }
+
+    }
+
+}
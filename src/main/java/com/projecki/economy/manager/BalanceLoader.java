@@ -0,0 +1,95 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces loads of single balances into batched queries, so a burst of loads, such as players joining after a
+ * restart, costs a query per batch rather than one per player.
+ * <p>
+ * The first load starts a batch, which collects every load made within the window after it and is then read with
+ * a single {@link EconomyDatabase#getBalances} call. A batch that reaches the maximum size is read straight away.
+ * Each load still completes on its own, with its own balance.
+ */
+class BalanceLoader {
+
+    private final EconomyDatabase database;
+    private final Executor delay;
+    private final int batchSize;
+    private final boolean batching;
+    private Map<UUID, CompletableFuture<@Nullable VersionedBalance>> pending = new HashMap<>();
+
+    /**
+     * @param database     The database to load from
+     * @param windowMillis How long a batch collects loads, or 0 to load every balance with a query of its own
+     * @param batchSize    The most balances in a batch
+     */
+    BalanceLoader(@NotNull EconomyDatabase database, long windowMillis, int batchSize) {
+        this.database = database;
+        this.delay = CompletableFuture.delayedExecutor(windowMillis, TimeUnit.MILLISECONDS);
+        this.batchSize = batchSize;
+        this.batching = windowMillis > 0 && batchSize > 1;
+    }
+
+    /**
+     * Load a balance as part of the next batch
+     *
+     * @param uuid The uuid of the player
+     * @return The balance and version, or null if not found, completed once the batch is read, or exceptionally if it
+     * couldn't be
+     */
+    CompletableFuture<@Nullable VersionedBalance> load(@NotNull UUID uuid) {
+        if (!batching) return database.getVersionedBalance(uuid);
+        CompletableFuture<@Nullable VersionedBalance> load;
+        Map<UUID, CompletableFuture<@Nullable VersionedBalance>> full = null;
+        synchronized (this) {
+            load = pending.get(uuid);
+            if (load != null) return load;
+            load = new CompletableFuture<>();
+            pending.put(uuid, load);
+            if (pending.size() >= batchSize) {
+                full = pending;
+                pending = new HashMap<>();
+            } else if (pending.size() == 1) {
+                Map<UUID, CompletableFuture<@Nullable VersionedBalance>> batch = pending;
+                delay.execute(() -> sendIfPending(batch));
+            }
+        }
+        if (full != null) send(full);
+        return load;
+    }
+
+    /**
+     * Read a batch once its window has passed, unless it filled up and was read already
+     */
+    private void sendIfPending(Map<UUID, CompletableFuture<@Nullable VersionedBalance>> batch) {
+        synchronized (this) {
+            if (pending != batch) return;
+            pending = new HashMap<>();
+        }
+        send(batch);
+    }
+
+    private void send(Map<UUID, CompletableFuture<@Nullable VersionedBalance>> batch) {
+        CompletableFuture<Map<UUID, VersionedBalance>> rows;
+        try {
+            rows = database.getBalances(new ArrayList<>(batch.keySet()));
+        } catch (RuntimeException e) {
+            rows = CompletableFuture.failedFuture(e);
+        }
+        rows.whenComplete((found, e) -> batch.forEach((uuid, load) -> {
+            if (e != null) {
+                load.completeExceptionally(e);
+            } else load.complete(found.get(uuid));
+        }));
+    }
+
+}
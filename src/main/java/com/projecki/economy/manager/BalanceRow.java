@@ -0,0 +1,14 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+
+/**
+ * A players balance as stored in the database
+ *
+ * @param uuid    The uuid of the player
+ * @param balance The balance of the player
+ */
+public record BalanceRow(@NotNull UUID uuid, long balance) {
+}
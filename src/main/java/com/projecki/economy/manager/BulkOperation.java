@@ -0,0 +1,101 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * A change applied to every balance at once, such as a server wide payday
+ *
+ * @param type    The kind of change
+ * @param amount  The amount given for {@link Type#GIVE}, the most interest paid to one player for
+ *                {@link Type#INTEREST}, or the new balance for {@link Type#RESET}
+ * @param percent The interest rate in percent for {@link Type#INTEREST}, otherwise zero
+ */
+public record BulkOperation(@NotNull Type type, long amount, @NotNull BigDecimal percent) {
+
+    private static final BigDecimal HUNDRED = BigDecimal.valueOf(100);
+    /**
+     * The highest interest rate, as the database computes interest with 20 whole digits of rate
+     */
+    private static final BigDecimal MAX_PERCENT = BigDecimal.TEN.pow(12);
+    private static final int PERCENT_SCALE = 10;
+
+    public BulkOperation {
+        if (amount < 0) throw new IllegalStateException("Unable to apply a negative amount to every balance");
+        if (percent.signum() < 0) throw new IllegalStateException("Unable to pay negative interest");
+        if (percent.compareTo(MAX_PERCENT) > 0) {
+            throw new IllegalStateException("Unable to pay more than " + MAX_PERCENT.toPlainString() + "% interest");
+        }
+        if (percent.scale() > PERCENT_SCALE) percent = percent.setScale(PERCENT_SCALE, RoundingMode.DOWN);
+    }
+
+    /**
+     * Give an amount to every player, capping balances that would overflow
+     *
+     * @param amount The non-negative amount to give
+     * @return The operation
+     */
+    public static BulkOperation give(long amount) {
+        return new BulkOperation(Type.GIVE, amount, BigDecimal.ZERO);
+    }
+
+    /**
+     * Pay interest on every balance, rounded down to a whole amount
+     *
+     * @param percent The non-negative interest rate in percent, to at most 10 decimal places
+     * @param cap     The most interest paid to one player
+     * @return The operation
+     */
+    public static BulkOperation interest(@NotNull BigDecimal percent, long cap) {
+        return new BulkOperation(Type.INTEREST, cap, percent);
+    }
+
+    /**
+     * Set every balance to the same value
+     *
+     * @param balance The non-negative balance to set
+     * @return The operation
+     */
+    public static BulkOperation reset(long balance) {
+        return new BulkOperation(Type.RESET, balance, BigDecimal.ZERO);
+    }
+
+    /**
+     * Apply the operation to a single balance, as the database applies it to every row
+     *
+     * @param balance The balance before
+     * @return The balance after
+     */
+    public long apply(long balance) {
+        return switch (type) {
+            case GIVE -> balance > Long.MAX_VALUE - amount ? Long.MAX_VALUE : balance + amount;
+            case INTEREST -> {
+                if (balance <= 0) yield balance;
+                long interest = BigDecimal.valueOf(balance).multiply(percent).divide(HUNDRED, 0, RoundingMode.FLOOR)
+                        .min(BigDecimal.valueOf(amount)).longValue();
+                yield balance > Long.MAX_VALUE - interest ? Long.MAX_VALUE : balance + interest;
+            }
+            case RESET -> amount;
+        };
+    }
+
+    public enum Type {
+
+        /**
+         * Give the same amount to every player
+         */
+        GIVE,
+        /**
+         * Pay every player a percentage of their balance, up to a cap
+         */
+        INTEREST,
+        /**
+         * Set every balance to the same value
+         */
+        RESET
+
+    }
+
+}
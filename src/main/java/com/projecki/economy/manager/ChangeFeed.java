@@ -0,0 +1,103 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Follows the change log of a database shared with other servers, handing every new entry to a consumer.
+ * <p>
+ * Ids are given out as changes are written but only become visible once they commit, so an entry can appear after
+ * one with a higher id. Each poll reads on from the highest id seen, and the ids it skipped are remembered as gaps and
+ * looked up again on later polls, until they appear or are old enough that their write must have rolled back. An
+ * entry may therefore be handed over after newer ones, the consumer tells them apart by version.
+ * <p>
+ * Polls must not overlap, each one should start only once the previous one has completed.
+ */
+class ChangeFeed {
+
+    private static final long GAP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final int MAX_GAPS = 1000;
+
+    private final EconomyDatabase database;
+    private final int batchSize;
+    private final Consumer<BalanceChange> consumer;
+    /**
+     * Skipped ids, each with the time it was first skipped, oldest first
+     */
+    private final LinkedHashMap<Long, Long> gaps = new LinkedHashMap<>();
+    private long lastId = -1;
+
+    /**
+     * @param database  The database to follow
+     * @param batchSize The maximum number of entries read in one query
+     * @param consumer  Called with each entry, on a database thread
+     */
+    ChangeFeed(@NotNull EconomyDatabase database, int batchSize, @NotNull Consumer<BalanceChange> consumer) {
+        this.database = database;
+        this.batchSize = batchSize;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Start following the log from its latest entry, unless already started
+     *
+     * @return Completed once started, or exceptionally if the log couldn't be read
+     */
+    CompletableFuture<Void> start() {
+        if (lastId >= 0) return CompletableFuture.completedFuture(null);
+        return database.getLastChangeId().thenAccept(id -> lastId = id);
+    }
+
+    /**
+     * Hand every entry written since the last poll to the consumer, reading until caught up, starting first if need be
+     *
+     * @return Completed once caught up, or exceptionally if the log couldn't be read, in which case the next poll
+     * reads on from the last entry handed over
+     */
+    CompletableFuture<Void> poll() {
+        return start().thenCompose(v -> pollGaps()).thenCompose(v -> pollNew());
+    }
+
+    private CompletableFuture<Void> pollNew() {
+        return database.getChanges(lastId, batchSize).thenCompose(changes -> {
+            for (BalanceChange change : changes) {
+                for (long id = Math.max(lastId + 1, change.id() - MAX_GAPS); id < change.id(); id++) {
+                    addGap(id);
+                }
+                lastId = change.id();
+                consumer.accept(change);
+            }
+            if (changes.size() < batchSize) return CompletableFuture.completedFuture(null);
+            return pollNew();
+        });
+    }
+
+    private CompletableFuture<Void> pollGaps() {
+        long expiry = System.currentTimeMillis() - GAP_TIMEOUT_MILLIS;
+        gaps.values().removeIf(skipped -> skipped < expiry);
+        if (gaps.isEmpty()) return CompletableFuture.completedFuture(null);
+        return database.getChanges(new ArrayList<>(gaps.keySet())).thenAccept(changes -> {
+            for (BalanceChange change : changes) {
+                gaps.remove(change.id());
+                consumer.accept(change);
+            }
+        });
+    }
+
+    private void addGap(long id) {
+        gaps.put(id, System.currentTimeMillis());
+        if (gaps.size() > MAX_GAPS) {
+            Iterator<Map.Entry<Long, Long>> oldest = gaps.entrySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.projecki.economy.manager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fails database calls fast while the database is unreachable, rather than have each one hold a thread for the
+ * connection timeout.
+ * <p>
+ * The circuit opens after a number of consecutive connection failures. While open, every call is refused and only
+ * the health check reaches the database, backing off exponentially between attempts. The first health check that
+ * succeeds closes the circuit again.
+ */
+class CircuitBreaker {
+
+    private final int failureThreshold;
+    private final long initialBackoffMillis, maximumBackoffMillis;
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong opens = new AtomicLong();
+    private volatile boolean open;
+    private volatile long openedAt;
+    /**
+     * Health checks failed since the circuit opened, only used by the health check
+     */
+    private int attempts;
+
+    /**
+     * @param failureThreshold     The number of consecutive connection failures that opens the circuit
+     * @param initialBackoffMillis The wait before the first health check once open
+     * @param maximumBackoffMillis The longest wait between health checks
+     */
+    CircuitBreaker(int failureThreshold, long initialBackoffMillis, long maximumBackoffMillis) {
+        this.failureThreshold = failureThreshold;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maximumBackoffMillis = Math.max(initialBackoffMillis, maximumBackoffMillis);
+    }
+
+    /**
+     * @return True if calls should be refused
+     */
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Record a call that reached the database
+     */
+    void recordSuccess() {
+        if (failures.get() != 0) failures.set(0);
+    }
+
+    /**
+     * Record a call that couldn't reach the database
+     *
+     * @return True if this failure opened the circuit
+     */
+    synchronized boolean recordFailure() {
+        if (failures.incrementAndGet() < failureThreshold || open) return false;
+        attempts = 0;
+        openedAt = System.currentTimeMillis();
+        opens.incrementAndGet();
+        open = true;
+        return true;
+    }
+
+    /**
+     * Close the circuit after a health check reached the database
+     *
+     * @return True if the circuit was open
+     */
+    synchronized boolean close() {
+        failures.set(0);
+        if (!open) return false;
+        open = false;
+        return true;
+    }
+
+    /**
+     * Get the wait before the next health check, doubling with each failed check while open
+     *
+     * @param intervalMillis The wait while closed
+     * @return The wait in milliseconds
+     */
+    synchronized long nextCheckDelay(long intervalMillis) {
+        if (!open) return intervalMillis;
+        long delay = initialBackoffMillis << Math.min(attempts++, 30);
+        return delay <= 0 ? maximumBackoffMillis : Math.min(delay, maximumBackoffMillis);
+    }
+
+    /**
+     * @return The time the circuit last opened, in epoch milliseconds
+     */
+    long getOpenedAt() {
+        return openedAt;
+    }
+
+    /**
+     * @return The number of times the circuit has opened
+     */
+    long getOpens() {
+        return opens.get();
+    }
+
+}
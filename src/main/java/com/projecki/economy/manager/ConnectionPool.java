@@ -0,0 +1,264 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of JDBC connections, borrowed and returned once per database operation
+ */
+class ConnectionPool implements Closeable {
+
+    /**
+     * Connections used more recently than this are handed out again without being validated
+     */
+    private static final long VALIDATION_BYPASS_MILLIS = 500;
+
+    private final ConnectionFactory factory;
+    private final int maximumSize, minimumIdle, validationTimeoutSeconds;
+    private final long connectionTimeoutMillis, idleTimeoutMillis;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    private volatile boolean live, closed;
+
+    /**
+     * @param factory                 Opens a new physical connection
+     * @param maximumSize             The maximum number of open connections
+     * @param minimumIdle             The number of idle connections to keep open
+     * @param connectionTimeoutMillis How long to wait for a free connection before failing
+     * @param idleTimeoutMillis       How long a connection may sit idle before it is closed
+     * @param validationTimeoutMillis How long to wait for a connection to answer a validation check
+     */
+    ConnectionPool(@NotNull ConnectionFactory factory, int maximumSize, int minimumIdle, long connectionTimeoutMillis,
+                   long idleTimeoutMillis, long validationTimeoutMillis) {
+        this.factory = factory;
+        this.maximumSize = maximumSize;
+        this.minimumIdle = Math.min(minimumIdle, maximumSize);
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validationTimeoutSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(validationTimeoutMillis));
+        this.permits = new Semaphore(maximumSize, true);
+    }
+
+    /**
+     * Borrow a connection from the pool, opening a new one if none are idle. The returned connection must be closed
+     * to hand it back to the pool
+     *
+     * @return A validated connection
+     * @throws SQLException If no connection became available within the connection timeout, or a new one could not
+     *                      be opened
+     */
+    PooledConnection borrow() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(connectionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out after " + connectionTimeoutMillis + "ms waiting for a connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        try {
+            PooledConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (isUsable(connection)) break;
+                reconnects.incrementAndGet();
+                discard(connection);
+            }
+            if (connection == null) connection = open();
+            connection.returned = false;
+            waitTimes.recordSince(start);
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Close idle connections that have outlived the idle timeout, drop idle connections that fail validation, then
+     * top the pool back up to the minimum idle size
+     *
+     * @throws SQLException If a connection needed to reach the minimum idle size could not be opened
+     */
+    void maintain() throws SQLException {
+        if (closed) return;
+        long now = System.currentTimeMillis();
+        // Rotate through the idle connections from least to most recently used, so that no borrower can be handed
+        // a connection while it is being validated
+        for (int i = idle.size(); i > 0; i--) {
+            PooledConnection connection = idle.pollLast();
+            if (connection == null) break;
+            boolean expired = now - connection.lastUsed > idleTimeoutMillis && idle.size() >= minimumIdle;
+            if (expired) {
+                discard(connection);
+            } else if (!isValid(connection)) {
+                reconnects.incrementAndGet();
+                discard(connection);
+            } else idle.offerFirst(connection);
+        }
+        while (idle.size() < minimumIdle && totalConnections.get() < maximumSize && permits.tryAcquire()) {
+            try {
+                release(open());
+            } catch (SQLException e) {
+                permits.release();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Whether the last attempt to open or validate a connection succeeded
+     *
+     * @return True if the database was reachable on the last attempt, otherwise false
+     */
+    boolean isLive() {
+        return live && !closed;
+    }
+
+    /**
+     * @return The number of physical connections currently open, idle or borrowed
+     */
+    int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    /**
+     * @return The number of open connections waiting in the pool
+     */
+    int getIdleConnections() {
+        return idle.size();
+    }
+
+    /**
+     * @return The number of connections dropped after failing validation or breaking while in use
+     */
+    long getReconnects() {
+        return reconnects.get();
+    }
+
+    /**
+     * @return How long each borrow waited for a connection, including validating or opening it
+     */
+    LatencyHistogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            discard(connection);
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        try {
+            Connection connection = factory.open();
+            totalConnections.incrementAndGet();
+            live = true;
+            return new PooledConnection(this, connection);
+        } catch (SQLException e) {
+            live = false;
+            throw e;
+        }
+    }
+
+    private boolean isUsable(PooledConnection connection) {
+        if (System.currentTimeMillis() - connection.lastUsed < VALIDATION_BYPASS_MILLIS) return true;
+        return isValid(connection);
+    }
+
+    private boolean isValid(PooledConnection connection) {
+        try {
+            boolean valid = connection.getConnection().isValid(validationTimeoutSeconds);
+            live = valid;
+            return valid;
+        } catch (SQLException e) {
+            live = false;
+            return false;
+        }
+    }
+
+    private void release(PooledConnection connection) {
+        if (closed || connection.broken) {
+            if (connection.broken) reconnects.incrementAndGet();
+            discard(connection);
+        } else {
+            connection.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(connection);
+        }
+    }
+
+    private void discard(PooledConnection connection) {
+        totalConnections.decrementAndGet();
+        try {
+            connection.getConnection().close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    /**
+     * Opens new physical connections for the pool
+     */
+    @FunctionalInterface
+    interface ConnectionFactory {
+
+        Connection open() throws SQLException;
+
+    }
+
+    /**
+     * A connection on loan from the pool, closing it returns it to the pool rather than closing the underlying
+     * connection
+     */
+    static class PooledConnection implements AutoCloseable {
+
+        private final ConnectionPool pool;
+        private final Connection connection;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private boolean broken, returned;
+
+        private PooledConnection(ConnectionPool pool, Connection connection) {
+            this.pool = pool;
+            this.connection = connection;
+        }
+
+        /**
+         * Get the underlying connection, only valid until this is closed
+         * @return The underlying connection
+         */
+        Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Mark the connection as unusable, so it is closed instead of returned to the pool
+         */
+        void invalidate() {
+            broken = true;
+        }
+
+        @Override
+        public void close() {
+            if (returned) return;
+            returned = true;
+            pool.release(this);
+            pool.permits.release();
+        }
+
+    }
+
+}
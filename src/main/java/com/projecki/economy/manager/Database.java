@@ -1,6 +1,5 @@
 package com.projecki.economy.manager;
 
-import com.projecki.economy.EconomyPlugin;
 import com.projecki.economy.util.Config;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -8,129 +7,1074 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.sql.*;
-import java.util.HashSet;
-import java.util.Optional;
-import java.util.Set;
-import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
-import java.util.function.Function;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * The economy database
+ * The economy database, kept in either a MySQL server or an embedded H2 file. H2 runs in its MySQL compatibility mode,
+ * so both accept the same statements
  */
 public class Database implements EconomyDatabase {
 
-    private Connection connection;
-    private final String host, database, username, password;
-    private final EconomyEngine engine;
-    private final EconomyPlugin plugin;
+    /**
+     * The most uuids listed in a single IN clause
+     */
+    private static final int MAX_IN_LIST = 1000;
+    /**
+     * The longest name stored, above the 16 characters of a Java Edition name to leave room for prefixed names of
+     * players joining through a proxy
+     */
+    private static final int MAX_NAME_LENGTH = 32;
+    private static final int CLOSE_TIMEOUT_SECONDS = 10;
+    private static final long HEALTH_CHECK_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    /**
+     * The most history entries deleted by one statement while pruning, so no delete holds its locks for long
+     */
+    private static final int HISTORY_PRUNE_CHUNK_SIZE = 10000;
+    /**
+     * The most times a transaction is run when it keeps losing races with other transactions
+     */
+    private static final int MAX_TRANSACTION_ATTEMPTS = 3;
+
+    private final ConnectionPool pool;
+    private final CircuitBreaker breaker;
+    private final DatabaseExecutor executor;
+    private final ScheduledExecutorService scheduler;
+    private final Logger logger;
+    private final Config config;
+    private final SqlFunction<Boolean, Connection> connector;
+    private final boolean embedded;
     private final String tableName = "economy";
+    private final String idempotencyTableName = "economy_idempotency";
+    private final String schemaTableName = "economy_schema";
+    private final String binaryTableName = "economy_binary";
+    private final String legacyTableName = "economy_legacy";
+    private final String changeTableName = "economy_changes";
+    private final String historyTableName = "economy_history";
+    private final String nameTableName = "economy_names";
+    /**
+     * Recorded as the origin of every change this database saves for its caller, so the change log can tell them
+     * apart from changes made by other servers
+     */
+    private final byte[] serverId = toBytes(UUID.randomUUID());
+    /**
+     * Held shared by every statement, and exclusively while the uuid format of the economy table changes, so no
+     * statement binds uuids in a format the table no longer uses
+     */
+    private final ReentrantReadWriteLock schemaLock = new ReentrantReadWriteLock();
+    private volatile boolean binaryKeys, mirroring, versioned;
+    /**
+     * Map rows by column index rather than name, which every driver reads without a lookup
+     */
+    private final RowMapper<BalanceRow> balanceRowMapper = r -> new BalanceRow(readUUID(r, 1), r.getLong(2));
+    private final RowMapper<BalanceChange> changeMapper = r -> new BalanceChange(r.getLong(1), fromBytes(r.getBytes(2)),
+            r.getLong(3), r.getLong(4), Arrays.equals(serverId, r.getBytes(5)));
+    private final RowMapper<PlayerName> nameMapper = r -> new PlayerName(fromBytes(r.getBytes(1)), r.getString(2));
+    private final RowMapper<HistoryEntry> historyMapper = r -> new HistoryEntry(r.getLong(1),
+            r.getTimestamp(2).getTime(), readNullableUUID(r, 3), readNullableUUID(r, 4), r.getLong(5), r.getLong(6),
+            r.getString(7));
+    private long nextPrune;
+    private ScheduledFuture<?> healthCheck;
 
-    static {
+    /**
+     * Connect to the MySQL server in the config
+     *
+     * @param logger     The logger to report progress to
+     * @param config     The config
+     * @param afterSetup Run once the database is ready to use
+     * @return The database
+     */
+    public static Database mysql(@NotNull Logger logger, @NotNull Config config, @NotNull Runnable afterSetup) {
         try {
             Class.forName("com.mysql.jdbc.Driver");
         } catch (ClassNotFoundException ex) {
             throw new IllegalStateException("The driver for MySQL was not found");
         }
+        String host = config.getSQLHost(), database = config.getSQLDatabase();
+        String username = config.getSQLUsername(), password = config.getSQLPassword();
+        int statementCacheSize = config.getSQLStatementCacheSize();
+        return new Database(logger, config, creatingDatabase -> {
+            // Batched statements are rewritten into multi-row inserts, so a batch costs one round trip, and statements
+            // with a fetch size stream their rows through a cursor rather than buffering the whole result. Statements
+            // are prepared once per connection on the server, and closing one keeps it cached for the next use of the
+            // same sql, so a repeated query is only executed. Sql longer than the limit, such as long IN lists, is
+            // prepared afresh each time rather than pushing out the statements that are reused
+            String url = "jdbc:mysql://" + host + ":3306/" + (creatingDatabase ? "" : database)
+                    + "?rewriteBatchedStatements=true&useCursorFetch=true"
+                    + (statementCacheSize > 0 ? "&useServerPrepStmts=true&cachePrepStmts=true&prepStmtCacheSize="
+                    + statementCacheSize + "&prepStmtCacheSqlLimit=2048" : "");
+            return DriverManager.getConnection(url, username, password);
+        }, false, afterSetup);
     }
 
-    Database(EconomyEngine engine, String host, String database, String username, String password, @NotNull Runnable afterSetup) {
-        this.host = host;
-        this.database = database;
-        this.username = username;
-        this.password = password;
-        this.engine = engine;
-        this.plugin = engine.getPlugin();
+    /**
+     * Open an embedded H2 database file, creating it if it doesn't exist
+     *
+     * @param logger     The logger to report progress to
+     * @param config     The config
+     * @param file       The database file, without its extension
+     * @param afterSetup Run once the database is ready to use
+     * @return The database
+     */
+    public static Database h2(@NotNull Logger logger, @NotNull Config config, @NotNull Path file, @NotNull Runnable afterSetup) {
+        try {
+            Class.forName("org.h2.Driver");
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException("The driver for H2 was not found");
+        }
+        // Lower case names match how MySQL reports them, so table and index lookups work the same on both. Each
+        // connection keeps the statements it parsed, so preparing the same sql again reuses them
+        String url = "jdbc:h2:file:" + file.toAbsolutePath() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE"
+                + ";QUERY_CACHE_SIZE=" + config.getSQLStatementCacheSize();
+        return new Database(logger, config, creatingDatabase -> DriverManager.getConnection(url), true, afterSetup);
+    }
+
+    /**
+     * @param logger     The logger to report progress to
+     * @param config     The config
+     * @param connector  Opens a new connection, given whether the database is yet to be created
+     * @param embedded   Whether the database is an embedded file only this server uses
+     * @param afterSetup Run once the database is ready to use
+     */
+    private Database(Logger logger, Config config, SqlFunction<Boolean, Connection> connector, boolean embedded,
+                     @NotNull Runnable afterSetup) {
+        this.logger = logger;
+        this.config = config;
+        this.connector = connector;
+        this.embedded = embedded;
+        this.pool = new ConnectionPool(() -> connector.apply(false), config.getPoolMaximumSize(),
+                config.getPoolMinimumIdle(), config.getPoolConnectionTimeout(), config.getPoolIdleTimeout(),
+                config.getPoolValidationTimeout());
+        this.breaker = new CircuitBreaker(config.getBreakerFailureThreshold(), INITIAL_BACKOFF_MILLIS,
+                TimeUnit.SECONDS.toMillis(config.getBreakerMaximumBackoff()));
+        this.executor = new DatabaseExecutor("Economy Database", config.getExecutorThreads(),
+                config.getExecutorQueueSize(), config.isExecutorVirtualThreads());
+        if (config.isExecutorVirtualThreads() && !executor.isVirtual()) {
+            logger.log(Level.WARNING, "Virtual threads are not available on this JDK, using platform threads");
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "Economy Scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
         createDatabase(() -> {
             createEconomyTable(() -> {
-                ping();
-                afterSetup.run();
+                createIdempotencyTable(() -> {
+                    createChangeTable(() -> {
+                        createHistoryTable(() -> {
+                            createNameTable(() -> {
+                                scheduleHealthCheck(0);
+                                migrate(afterSetup);
+                            });
+                        });
+                    });
+                });
             });
         });
     }
 
-    private void refreshConnection() {
-        connection = getNewConnection(false).orElseThrow(() ->
-                new IllegalStateException("Unable to establish live connection"));
-    }
-
     private void createDatabase(@NotNull Runnable after) {
-        plugin.getLogger().log(Level.INFO, "Initializing economy database...");
+        // Embedded databases are created by opening them
+        if (embedded) {
+            after.run();
+            return;
+        }
+        logger.log(Level.INFO, "Initializing economy database...");
         execute(true,
-                "CREATE DATABASE IF NOT EXISTS " + engine.getConfig().getSQLDatabase()
+                "CREATE DATABASE IF NOT EXISTS " + config.getSQLDatabase()
         ).thenRun(() -> {
-            plugin.getLogger().log(Level.INFO, "Economy database initialized!");
-            refreshConnection();
+            logger.log(Level.INFO, "Economy database initialized!");
             after.run();
         });
     }
 
     private void createEconomyTable(@NotNull Runnable after) {
-        plugin.getLogger().log(Level.INFO, "Setting up economy table...");
+        logger.log(Level.INFO, "Setting up economy table...");
         execute(
                 "CREATE TABLE IF NOT EXISTS " + tableName + " " +
-                        "(uuid VARCHAR(255) NOT NULL, " +
+                        "(uuid BINARY(16) NOT NULL, " +
                         "balance BIGINT, " +
-                        "PRIMARY KEY (uuid))"
+                        "version BIGINT NOT NULL DEFAULT 1, " +
+                        "PRIMARY KEY (uuid), " +
+                        "INDEX balance_index (balance))"
         ).thenRun(() -> {
-            plugin.getLogger().log(Level.INFO, "Economy table setup!");
-            after.run();
+            logger.log(Level.INFO, "Economy table setup!");
+            detectKeyFormat(after);
         });
     }
 
+    /**
+     * Check whether the economy table still keys balances by uuid text. If so, every write is mirrored into the
+     * binary keyed table replacing it from now on, including while waiting for another server to migrate, and every
+     * statement checks the key format first to notice that server swapping the tables. Also check whether its rows
+     * are versioned yet
+     */
+    private void detectKeyFormat(@NotNull Runnable after) {
+        executor.run(() -> {
+            try {
+                binaryKeys = withConnection(this::hasBinaryKeys);
+                versioned = withConnection(this::hasVersions);
+                if (!binaryKeys) {
+                    withConnection(connection -> update(connection, createBinaryTableSql()));
+                    mirroring = true;
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }).thenRun(after);
+    }
+
+    /**
+     * Bring the schema up to date in the background, running after setup as soon as only online migrations remain
+     */
+    private void migrate(@NotNull Runnable afterSetup) {
+        SchemaMigrator migrator = new SchemaMigrator(() -> connector.apply(false), logger, schemaTableName, !embedded)
+                .add(1, "Index balances", false, this::createBalanceIndex)
+                .add(2, "Key balances by binary uuid", true, this::migrateToBinaryKeys)
+                .add(3, "Version balances", true, this::addVersionColumn);
+        // Migrations hold their own connection and may run for long, so they get a thread of their own
+        Thread migration = new Thread(() -> {
+            try {
+                migrator.migrate(afterSetup);
+                // Another server may have migrated the table while this one waited for its turn
+                if (!binaryKeys && withConnection(this::hasBinaryKeys)) useBinaryKeys();
+                if (!versioned && withConnection(this::hasVersions)) useVersions();
+            } catch (SQLException e) {
+                logger.log(Level.SEVERE, "Unable to migrate the economy schema, will try again on restart", e);
+            }
+        }, "Economy Migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    /**
+     * Add the balance index to economy tables created before it existed, so ranking balances reads the index in
+     * order rather than sorting the whole table. Any index led by the balance counts, such as the one of a table
+     * swapped in by {@link #migrateToBinaryKeys(Connection)}
+     */
+    private void createBalanceIndex(Connection connection) throws SQLException {
+        try (ResultSet r = connection.getMetaData().getIndexInfo(connection.getCatalog(), connection.getSchema(),
+                tableName, false, true)) {
+            while (r.next()) {
+                if (r.getInt("ORDINAL_POSITION") == 1 && "balance".equalsIgnoreCase(r.getString("COLUMN_NAME"))) return;
+            }
+        }
+        update(connection, "CREATE INDEX balance_index ON " + tableName + " (balance)");
+    }
+
+    /**
+     * Move balances from a table keyed by uuid text to one keyed by the 16 raw bytes of the uuid, while the server
+     * keeps reading and writing the old table.
+     * <p>
+     * Rows are copied in throttled chunks, each read with a shared lock so a concurrent write either lands before
+     * the chunk is read or waits until it is copied. Every write made meanwhile is mirrored into the new table in
+     * its own transaction. Once all rows are copied, the tables are swapped in a single rename while no statement
+     * is running, and the old table is kept as a backup. Other servers sharing the database check the key format at
+     * the start of each statement, in the same transaction, so the rename waits for their running statements and
+     * those after it switch to binary keys.
+     */
+    private void migrateToBinaryKeys(Connection connection) throws SQLException {
+        if (hasBinaryKeys(connection)) {
+            useBinaryKeys();
+            return;
+        }
+        update(connection, createBinaryTableSql());
+        // Wait out any write that started before mirroring, so the chunks read below see it
+        schemaLock.writeLock().lock();
+        mirroring = true;
+        schemaLock.writeLock().unlock();
+
+        int chunkSize = config.getMigrationChunkSize();
+        long chunkDelay = config.getMigrationChunkDelay();
+        long copied = 0;
+        String after = "";
+        while (true) {
+            List<Object[]> chunk = copyChunk(connection, after, chunkSize);
+            copied += chunk.size();
+            if (chunk.size() < chunkSize) break;
+            after = (String) chunk.get(chunk.size() - 1)[0];
+            logger.log(Level.INFO, "Copied " + copied + " balances to binary uuid keys...");
+            try {
+                Thread.sleep(chunkDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while migrating to binary uuid keys", e);
+            }
+        }
+
+        schemaLock.writeLock().lock();
+        try {
+            if (embedded) {
+                // H2 renames one table at a time, which is safe as no other server shares the file
+                update(connection, "ALTER TABLE " + tableName + " RENAME TO " + legacyTableName);
+                update(connection, "ALTER TABLE " + binaryTableName + " RENAME TO " + tableName);
+            } else {
+                update(connection, "RENAME TABLE " + tableName + " TO " + legacyTableName + ", "
+                        + binaryTableName + " TO " + tableName);
+            }
+            binaryKeys = true;
+            mirroring = false;
+        } finally {
+            schemaLock.writeLock().unlock();
+        }
+        logger.log(Level.INFO, "Copied " + copied + " balances to binary uuid keys, the old table was kept as "
+                + legacyTableName + " and can be dropped");
+    }
+
+    /**
+     * Copy the next chunk of rows from the text keyed table into the binary keyed table, in one transaction
+     *
+     * @return The rows copied, as uuid text and balance
+     */
+    private List<Object[]> copyChunk(Connection connection, String after, int chunkSize) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            connection.setAutoCommit(false);
+            try {
+                List<Object[]> rows = new ArrayList<>(chunkSize);
+                // H2 has no shared row locks, and takes exclusive ones instead
+                try (PreparedStatement statement = prepare(connection, "SELECT uuid, balance FROM " + tableName + " " +
+                        "WHERE uuid > ? ORDER BY uuid LIMIT ? " + (embedded ? "FOR UPDATE" : "LOCK IN SHARE MODE"),
+                        after, chunkSize);
+                     ResultSet r = statement.executeQuery()) {
+                    while (r.next()) {
+                        rows.add(new Object[]{r.getString(1), r.getLong(2)});
+                    }
+                }
+                List<Object[]> copies = new ArrayList<>(rows.size());
+                for (Object[] row : rows) {
+                    copies.add(new Object[]{toBytes(UUID.fromString((String) row[0])), row[1]});
+                }
+                batch(connection, "INSERT INTO " + binaryTableName + " (uuid, balance) VALUES (?, ?) " +
+                        "ON DUPLICATE KEY UPDATE balance=VALUES(balance)", copies);
+                connection.commit();
+                return rows;
+            } catch (SQLException e) {
+                connection.rollback();
+                // The chunk may deadlock with a write to the same rows, in which case it is simply read again
+                if (!(e instanceof SQLTransactionRollbackException) || attempt >= 3) throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private boolean hasBinaryKeys(Connection connection) throws SQLException {
+        try (ResultSet r = connection.getMetaData().getColumns(connection.getCatalog(), connection.getSchema(),
+                tableName, "uuid")) {
+            return r.next() && "binary".equalsIgnoreCase(r.getString("TYPE_NAME"));
+        }
+    }
+
+    private void useBinaryKeys() {
+        schemaLock.writeLock().lock();
+        binaryKeys = true;
+        mirroring = false;
+        schemaLock.writeLock().unlock();
+    }
+
+    /**
+     * Add the version column to economy tables created before it existed. Until then, balances are saved without
+     * version checks and no change is logged
+     */
+    private void addVersionColumn(Connection connection) throws SQLException {
+        // Adding a column with a default is an instant change of the table definition, rows aren't rewritten
+        if (!hasVersions(connection)) {
+            update(connection, "ALTER TABLE " + tableName + " ADD COLUMN version BIGINT NOT NULL DEFAULT 1");
+        }
+        useVersions();
+    }
+
+    private boolean hasVersions(Connection connection) throws SQLException {
+        try (ResultSet r = connection.getMetaData().getColumns(connection.getCatalog(), connection.getSchema(),
+                tableName, "version")) {
+            return r.next();
+        }
+    }
+
+    private void useVersions() {
+        // Wait out any write that started without versions, so none is logged or checked half way
+        schemaLock.writeLock().lock();
+        versioned = true;
+        schemaLock.writeLock().unlock();
+    }
+
+    private String createBinaryTableSql() {
+        // Named apart from the index of the table it replaces, as H2 names indexes per schema rather than per table
+        return "CREATE TABLE IF NOT EXISTS " + binaryTableName + " " +
+                "(uuid BINARY(16) NOT NULL, " +
+                "balance BIGINT, " +
+                "PRIMARY KEY (uuid), " +
+                "INDEX binary_balance_index (balance))";
+    }
+
+    private void createIdempotencyTable(@NotNull Runnable after) {
+        execute(
+                "CREATE TABLE IF NOT EXISTS " + idempotencyTableName + " " +
+                        "(idempotency_key VARCHAR(64) NOT NULL, " +
+                        "created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                        "PRIMARY KEY (idempotency_key), " +
+                        "INDEX created_at_index (created_at))"
+        ).thenRun(after);
+    }
+
+    private void createChangeTable(@NotNull Runnable after) {
+        execute(
+                "CREATE TABLE IF NOT EXISTS " + changeTableName + " " +
+                        "(id BIGINT NOT NULL AUTO_INCREMENT, " +
+                        "uuid BINARY(16) NOT NULL, " +
+                        "balance BIGINT NOT NULL, " +
+                        "version BIGINT NOT NULL, " +
+                        "origin BINARY(16), " +
+                        "created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                        "PRIMARY KEY (id), " +
+                        "INDEX change_created_at_index (created_at))"
+        ).thenRun(after);
+    }
+
+    /**
+     * Entries are looked up by player newest first, and pruned oldest first, so each has an index. Uuids are always
+     * binary, whatever the economy table keys balances by
+     */
+    private void createHistoryTable(@NotNull Runnable after) {
+        execute(
+                "CREATE TABLE IF NOT EXISTS " + historyTableName + " " +
+                        "(id BIGINT NOT NULL AUTO_INCREMENT, " +
+                        "target BINARY(16), " +
+                        "actor BINARY(16), " +
+                        "delta BIGINT NOT NULL, " +
+                        "balance BIGINT NOT NULL, " +
+                        "reason VARCHAR(" + HistoryEntry.MAX_REASON_LENGTH + ") NOT NULL, " +
+                        "created_at TIMESTAMP NOT NULL, " +
+                        "PRIMARY KEY (id), " +
+                        "INDEX history_target_index (target, id), " +
+                        "INDEX history_created_at_index (created_at))"
+        ).thenRun(after);
+    }
+
+    /**
+     * Names are kept lower case alongside the name as shown, so lookups ignore case on any collation and read the
+     * name index, in order for prefixes
+     */
+    private void createNameTable(@NotNull Runnable after) {
+        execute(
+                "CREATE TABLE IF NOT EXISTS " + nameTableName + " " +
+                        "(uuid BINARY(16) NOT NULL, " +
+                        "name VARCHAR(" + MAX_NAME_LENGTH + ") NOT NULL, " +
+                        "lower_name VARCHAR(" + MAX_NAME_LENGTH + ") NOT NULL, " +
+                        "last_seen TIMESTAMP NOT NULL, " +
+                        "PRIMARY KEY (uuid), " +
+                        "INDEX name_index (lower_name, last_seen))"
+        ).thenRun(after);
+    }
+
     @Override
+    @Deprecated
     public CompletableFuture<Set<UUID>> getUUIDs() {
-        return CompletableFuture.supplyAsync(() -> {
-            return query(r -> {
-                Set<UUID> uuids = new HashSet<>();
-                try {
-                    while (r.next()) {
-                        UUID uuid = UUID.fromString(r.getString("uuid"));
-                        uuids.add(uuid);
+        return call(connection -> new HashSet<>(queryList(connection, "SELECT uuid FROM " + tableName,
+                r -> readUUID(r, 1))));
+    }
+
+    @Override
+    public CompletableFuture<Long> forEachBalance(Consumer<? super BalanceRow> consumer) {
+        int pageSize = config.getScanPageSize();
+        int fetchSize = config.getSQLFetchSize();
+        return executor.supply(() -> {
+            long count = 0;
+            UUID after = null;
+            try {
+                while (true) {
+                    // The connection goes back to the pool before the consumer sees the page, so a slow consumer
+                    // never holds one
+                    UUID from = after;
+                    List<BalanceRow> page = withConnection(connection -> {
+                        // Text and binary uuids sort the same way, so paging carries on across a change of key format
+                        try (PreparedStatement statement = from == null
+                                ? prepare(connection, "SELECT uuid, balance FROM " + tableName + " " +
+                                "ORDER BY uuid LIMIT ?", pageSize)
+                                : prepare(connection, "SELECT uuid, balance FROM " + tableName + " " +
+                                "WHERE uuid > ? ORDER BY uuid LIMIT ?", from, pageSize)) {
+                            statement.setFetchSize(fetchSize);
+                            return mapRows(statement, balanceRowMapper);
+                        }
+                    });
+                    for (BalanceRow row : page) {
+                        consumer.accept(row);
                     }
-                    return uuids;
-                } catch (SQLException e) {
-                    e.printStackTrace();
+                    count += page.size();
+                    if (page.size() < pageSize) return count;
+                    after = page.get(page.size() - 1).uuid();
                 }
-                return uuids;
-            }, "SELECT uuid FROM " + tableName).join().orElse(new HashSet<>());
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
         });
     }
 
     @Override
-    public CompletableFuture<@Nullable Long> getBalance(UUID uuid) {
-        return CompletableFuture.supplyAsync(() -> {
-            return query(r -> {
-                Long balance = null;
-                try {
-                    r.next();
-                    balance = r.getLong("balance");
-                } catch (SQLException e) {
-                    e.printStackTrace();
+    public CompletableFuture<OptionalLong> getBalance(UUID uuid) {
+        // Failures complete exceptionally rather than as empty, so they're never mistaken for a new player
+        return call(connection -> {
+            long balance = queryLong(connection, "SELECT balance FROM " + tableName + " WHERE uuid = ?",
+                    r -> r.getLong(1), Long.MIN_VALUE, uuid);
+            return balance == Long.MIN_VALUE ? OptionalLong.empty() : OptionalLong.of(balance);
+        });
+    }
+
+    @Override
+    public CompletableFuture<@Nullable VersionedBalance> getVersionedBalance(UUID uuid) {
+        return call(connection -> versioned
+                ? queryFirst(connection, "SELECT balance, version FROM " + tableName + " WHERE uuid = ?",
+                r -> new VersionedBalance(r.getLong(1), r.getLong(2)), uuid)
+                : queryFirst(connection, "SELECT balance FROM " + tableName + " WHERE uuid = ?",
+                r -> new VersionedBalance(r.getLong(1), VersionedBalance.UNKNOWN), uuid));
+    }
+
+    @Override
+    public CompletableFuture<Map<UUID, VersionedBalance>> getBalances(Collection<UUID> uuids) {
+        List<UUID> keys = new ArrayList<>(new LinkedHashSet<>(uuids));
+        if (keys.isEmpty()) return CompletableFuture.completedFuture(new HashMap<>());
+        return call(connection -> {
+            boolean versioned = this.versioned;
+            Map<UUID, VersionedBalance> balances = new HashMap<>(keys.size() * 2);
+            for (int from = 0; from < keys.size(); from += MAX_IN_LIST) {
+                List<UUID> chunk = keys.subList(from, Math.min(keys.size(), from + MAX_IN_LIST));
+                try (PreparedStatement statement = prepare(connection, "SELECT uuid, balance" + (versioned ? ", version" : "") +
+                        " FROM " + tableName + " WHERE uuid IN (" + placeholders(chunk.size()) + ")", chunk.toArray());
+                     ResultSet r = statement.executeQuery()) {
+                    while (r.next()) {
+                        balances.put(readUUID(r, 1),
+                                new VersionedBalance(r.getLong(2), versioned ? r.getLong(3) : VersionedBalance.UNKNOWN));
+                    }
                 }
-                return balance;
-            }, "SELECT * FROM " + tableName + " WHERE uuid='" + uuid.toString() + "'").join().orElse(null);
+            }
+            return balances;
         });
     }
 
+    @Override
+    public CompletableFuture<List<BalanceRow>> getBalancesByRank(@Nullable BalanceRow after, int limit) {
+        // Both columns descend, so the balance index (which also holds the uuid) is read backwards in order
+        return call(connection -> after == null
+                ? queryList(connection, "SELECT uuid, balance FROM " + tableName + " " +
+                "ORDER BY balance DESC, uuid DESC LIMIT ?", balanceRowMapper, limit)
+                : queryList(connection, "SELECT uuid, balance FROM " + tableName + " " +
+                "WHERE balance < ? OR (balance = ? AND uuid < ?) " +
+                "ORDER BY balance DESC, uuid DESC LIMIT ?", balanceRowMapper,
+                after.balance(), after.balance(), after.uuid(), limit));
+    }
+
     @Override
     public CompletableFuture<Void> saveBalance(UUID uuid, long balance) {
-        return CompletableFuture.runAsync(() -> {
-            execute("INSERT INTO " + tableName + " (uuid, balance) VALUES (?, ?) " +
-                    "ON DUPLICATE KEY UPDATE uuid=VALUES(uuid), balance=VALUES(balance)", uuid.toString(), balance).join();
+        return saveBalances(Map.of(uuid, balance));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveBalances(Map<UUID, Long> balances) {
+        List<Object[]> rows = new ArrayList<>(balances.size());
+        balances.forEach((uuid, balance) -> rows.add(new Object[]{uuid, balance}));
+        List<UUID> uuids = new ArrayList<>(balances.keySet());
+        return executor.run(() -> {
+            if (rows.isEmpty()) return;
+            try {
+                transaction(connection -> {
+                    upsert(connection, rows);
+                    logChanges(connection, uuids, null);
+                    return null;
+                });
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
         });
     }
 
+    @Override
+    public CompletableFuture<Map<UUID, Long>> compareAndSaveBalances(Map<UUID, VersionedBalance> balances) {
+        Map<UUID, VersionedBalance> copy = new HashMap<>(balances);
+        return executor.supply(() -> {
+            if (copy.isEmpty()) return new HashMap<>();
+            try {
+                return transaction(connection -> {
+                    if (!versioned) {
+                        // Rows carry no version until the schema is migrated, so every balance is saved as is
+                        List<Object[]> rows = new ArrayList<>(copy.size());
+                        copy.forEach((uuid, balance) -> rows.add(new Object[]{uuid, balance.balance()}));
+                        upsert(connection, rows);
+                        Map<UUID, Long> saved = new HashMap<>();
+                        copy.keySet().forEach(uuid -> saved.put(uuid, VersionedBalance.UNKNOWN));
+                        return saved;
+                    }
+                    List<UUID> updated = new ArrayList<>(), saved = new ArrayList<>(copy.size());
+                    List<Object[]> updates = new ArrayList<>(), unchecked = new ArrayList<>();
+                    for (Map.Entry<UUID, VersionedBalance> entry : copy.entrySet()) {
+                        UUID uuid = entry.getKey();
+                        long balance = entry.getValue().balance(), version = entry.getValue().version();
+                        if (version == VersionedBalance.UNKNOWN) {
+                            unchecked.add(new Object[]{uuid, balance});
+                            saved.add(uuid);
+                        } else if (version == VersionedBalance.ABSENT) {
+                            // Inserted one at a time, a batch of inserts reports no count per row
+                            if (update(connection, "INSERT IGNORE INTO " + tableName + " (uuid, balance, version) " +
+                                    "VALUES (?, ?, 1)", uuid, balance) > 0) saved.add(uuid);
+                        } else {
+                            updated.add(uuid);
+                            updates.add(new Object[]{balance, version + 1, uuid, version});
+                        }
+                    }
+                    // Sent as one round trip, which still reports whether each row was at its expected version
+                    int[] counts = batch(connection, "UPDATE " + tableName + " SET balance = ?, version = ? " +
+                            "WHERE uuid = ? AND version = ?", updates);
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] > 0) saved.add(updated.get(i));
+                    }
+                    upsert(connection, unchecked);
+                    return logChanges(connection, saved, serverId);
+                });
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Insert or replace balances as part of the current transaction, regardless of their version
+     *
+     * @param rows The uuid and balance of each row
+     */
+    private void upsert(Connection connection, List<Object[]> rows) throws SQLException {
+        batch(connection, "INSERT INTO " + tableName + " (uuid, balance) VALUES (?, ?) " +
+                "ON DUPLICATE KEY UPDATE balance=VALUES(balance)" + (versioned ? ", version=version+1" : ""), rows);
+        if (mirroring) {
+            List<Object[]> copies = new ArrayList<>(rows.size());
+            for (Object[] row : rows) {
+                copies.add(new Object[]{toBytes((UUID) row[0]), row[1]});
+            }
+            batch(connection, "INSERT INTO " + binaryTableName + " (uuid, balance) VALUES (?, ?) " +
+                    "ON DUPLICATE KEY UPDATE balance=VALUES(balance)", copies);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> applyDelta(UUID uuid, long delta, @Nullable String idempotencyKey) {
+        return executor.supply(() -> {
+            try {
+                return transaction(connection -> {
+                    if (!claimIdempotencyKey(connection, idempotencyKey)) return true;
+                    if (!applyBalanceDelta(connection, uuid, delta)) {
+                        // Roll back the claimed key, so the change can be retried once it would succeed
+                        connection.rollback();
+                        return false;
+                    }
+                    mirror(connection, uuid);
+                    logChanges(connection, List.of(uuid), null);
+                    return true;
+                });
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> transfer(UUID from, UUID to, long amount, @Nullable String idempotencyKey) {
+        if (amount < 0) throw new IllegalStateException("Unable to transfer negative amount");
+        if (from.equals(to)) throw new IllegalStateException("Unable to transfer to the same player");
+        return executor.supply(() -> {
+            try {
+                return transaction(connection -> {
+                    if (!claimIdempotencyKey(connection, idempotencyKey)) return true;
+                    // Update the rows in a fixed order, so opposing transfers wait on each other instead of deadlocking
+                    boolean fromFirst = from.compareTo(to) < 0;
+                    UUID first = fromFirst ? from : to, second = fromFirst ? to : from;
+                    if (!applyBalanceDelta(connection, first, first.equals(from) ? -amount : amount)
+                            || !applyBalanceDelta(connection, second, second.equals(from) ? -amount : amount)) {
+                        connection.rollback();
+                        return false;
+                    }
+                    mirror(connection, from);
+                    mirror(connection, to);
+                    logChanges(connection, List.of(first, second), null);
+                    return true;
+                });
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private boolean applyBalanceDelta(Connection connection, UUID uuid, long delta) throws SQLException {
+        return update(connection, "UPDATE " + tableName + " SET balance = balance + ?" +
+                (versioned ? ", version = version + 1" : "") + " " +
+                "WHERE uuid = ? AND balance + ? >= 0", delta, uuid, delta) > 0;
+    }
+
+    @Override
+    public CompletableFuture<Long> updateAll(BulkOperation operation, BiConsumer<UUID, VersionedBalance> consumer) {
+        int chunkSize = config.getBulkChunkSize();
+        return executor.supply(() -> {
+            long changed = 0;
+            UUID after = null;
+            try {
+                while (true) {
+                    BulkChunk chunk = updateChunk(operation, after, chunkSize);
+                    chunk.changed().forEach(consumer);
+                    changed += chunk.changed().size();
+                    if (chunk.last() == null) return changed;
+                    after = chunk.last();
+                }
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Apply an operation to the next chunk of rows in one transaction, reading the chunk again if it deadlocks with
+     * another write
+     *
+     * @param after The last uuid of the previous chunk, or null to start from the first row
+     * @return The rows changed, and the last uuid of the chunk if more rows may follow it
+     */
+    private BulkChunk updateChunk(BulkOperation operation, @Nullable UUID after, int chunkSize) throws SQLException {
+        return transaction(connection -> updateChunk(connection, operation, after, chunkSize));
+    }
+
+    private BulkChunk updateChunk(Connection connection, BulkOperation operation, @Nullable UUID after, int chunkSize)
+            throws SQLException {
+        boolean versioned = this.versioned;
+        String columns = versioned ? "uuid, balance, version" : "uuid, balance";
+        // Lock the chunk before updating it, so the rows read back afterwards differ from these only by this update.
+        // Only the keys and a version are kept, the chunk itself is updated by a single statement
+        Map<UUID, Long> before = new HashMap<>(chunkSize * 2);
+        UUID last = null;
+        try (PreparedStatement statement = after == null
+                ? prepare(connection, "SELECT " + columns + " FROM " + tableName + " " +
+                "ORDER BY uuid LIMIT ? FOR UPDATE", chunkSize)
+                : prepare(connection, "SELECT " + columns + " FROM " + tableName + " " +
+                "WHERE uuid > ? ORDER BY uuid LIMIT ? FOR UPDATE", after, chunkSize);
+             ResultSet r = statement.executeQuery()) {
+            while (r.next()) {
+                last = readUUID(r, 1);
+                before.put(last, r.getLong(versioned ? 3 : 2));
+            }
+        }
+        if (last == null) return new BulkChunk(new HashMap<>(), null);
+
+        List<Object> params = new ArrayList<>();
+        String range = after == null ? "uuid <= ?" : "uuid > ? AND uuid <= ?";
+        if (after != null) params.add(after);
+        params.add(last);
+        Object[] expressionParams = bulkParams(operation);
+        String expression = bulkExpression(operation);
+        List<Object> update = new ArrayList<>(Arrays.asList(expressionParams));
+        update.addAll(params);
+        update.addAll(Arrays.asList(expressionParams));
+        // Rows the operation leaves as they are aren't written, so they keep their version and aren't logged
+        update(connection, "UPDATE " + tableName + " SET balance = " + expression +
+                (versioned ? ", version = version + 1" : "") + " " +
+                "WHERE " + range + " AND balance <> " + expression, update.toArray());
+
+        Map<UUID, VersionedBalance> changed = new LinkedHashMap<>();
+        List<Object[]> changes = new ArrayList<>(), copies = new ArrayList<>();
+        try (PreparedStatement statement = prepare(connection, "SELECT " + columns + " FROM " + tableName + " " +
+                "WHERE " + range, params.toArray());
+             ResultSet r = statement.executeQuery()) {
+            while (r.next()) {
+                UUID uuid = readUUID(r, 1);
+                long balance = r.getLong(2);
+                long version = versioned ? r.getLong(3) : VersionedBalance.UNKNOWN;
+                Long previous = before.get(uuid);
+                if (previous == null || previous == (versioned ? version : balance)) continue;
+                changed.put(uuid, new VersionedBalance(balance, version));
+                if (versioned) changes.add(new Object[]{toBytes(uuid), balance, version, null});
+                if (mirroring) copies.add(new Object[]{toBytes(uuid), balance});
+            }
+        }
+        batch(connection, "INSERT INTO " + changeTableName + " (uuid, balance, version, origin) VALUES (?, ?, ?, ?)", changes);
+        batch(connection, "INSERT INTO " + binaryTableName + " (uuid, balance) VALUES (?, ?) " +
+                "ON DUPLICATE KEY UPDATE balance=VALUES(balance)", copies);
+        return new BulkChunk(changed, before.size() < chunkSize ? null : last);
+    }
+
+    /**
+     * Get the sql computing the new balance of a row under an operation, equal to {@link BulkOperation#apply(long)}
+     */
+    private static String bulkExpression(BulkOperation operation) {
+        return switch (operation.type()) {
+            // Capped before adding, so the sum never overflows
+            case GIVE -> "(LEAST(balance, ?) + ?)";
+            // Computed as a decimal, so the product never overflows either. The rate is already at most 10 decimal places
+            case INTEREST -> "(balance + LEAST(FLOOR(CAST(GREATEST(balance, 0) AS DECIMAL(19, 0)) " +
+                    "* CAST(? AS DECIMAL(30, 10)) / 100), ?, ? - GREATEST(balance, 0)))";
+            case RESET -> "?";
+        };
+    }
+
+    private static Object[] bulkParams(BulkOperation operation) {
+        return switch (operation.type()) {
+            case GIVE -> new Object[]{Long.MAX_VALUE - operation.amount(), operation.amount()};
+            case INTEREST -> new Object[]{operation.percent(), operation.amount(), Long.MAX_VALUE};
+            case RESET -> new Object[]{operation.amount()};
+        };
+    }
+
+    /**
+     * Record the current balance and version of rows in the change log, as part of the transaction that wrote them
+     *
+     * @param uuids  The uuids of the rows written
+     * @param origin The id of the server whose caller already holds the balances, or null if none does
+     * @return The version of each row logged, nothing if rows aren't versioned yet
+     */
+    private Map<UUID, Long> logChanges(Connection connection, Collection<UUID> uuids, byte @Nullable [] origin)
+            throws SQLException {
+        Map<UUID, Long> versions = new HashMap<>();
+        if (!versioned || uuids.isEmpty()) return versions;
+        List<Object[]> changes = new ArrayList<>(uuids.size());
+        List<UUID> remaining = new ArrayList<>(uuids);
+        for (int from = 0; from < remaining.size(); from += MAX_IN_LIST) {
+            List<UUID> chunk = remaining.subList(from, Math.min(remaining.size(), from + MAX_IN_LIST));
+            // The rows were written by this transaction, so they are locked and read exactly as written
+            try (PreparedStatement statement = prepare(connection, "SELECT uuid, balance, version FROM " + tableName + " " +
+                    "WHERE uuid IN (" + placeholders(chunk.size()) + ")", chunk.toArray());
+                 ResultSet r = statement.executeQuery()) {
+                while (r.next()) {
+                    UUID uuid = readUUID(r, 1);
+                    long version = r.getLong(3);
+                    versions.put(uuid, version);
+                    changes.add(new Object[]{toBytes(uuid), r.getLong(2), version, origin});
+                }
+            }
+        }
+        batch(connection, "INSERT INTO " + changeTableName + " (uuid, balance, version, origin) VALUES (?, ?, ?, ?)", changes);
+        return versions;
+    }
+
+    @Override
+    public CompletableFuture<Long> getLastChangeId() {
+        return call(connection -> queryLong(connection, "SELECT MAX(id) FROM " + changeTableName, r -> r.getLong(1), 0));
+    }
+
+    @Override
+    public CompletableFuture<List<BalanceChange>> getChanges(long after, int limit) {
+        return call(connection -> queryList(connection, "SELECT id, uuid, balance, version, origin FROM " + changeTableName + " " +
+                "WHERE id > ? ORDER BY id LIMIT ?", changeMapper, after, limit));
+    }
+
+    @Override
+    public CompletableFuture<List<BalanceChange>> getChanges(Collection<Long> ids) {
+        if (ids.isEmpty()) return CompletableFuture.completedFuture(new ArrayList<>());
+        Object[] params = ids.toArray();
+        return call(connection -> queryList(connection, "SELECT id, uuid, balance, version, origin FROM " + changeTableName + " " +
+                "WHERE id IN (" + placeholders(params.length) + ") ORDER BY id", changeMapper, params));
+    }
+
+    @Override
+    public CompletableFuture<Void> recordHistory(List<HistoryEntry> entries) {
+        List<Object[]> rows = new ArrayList<>(entries.size());
+        for (HistoryEntry entry : entries) {
+            rows.add(new Object[]{entry.target() == null ? null : toBytes(entry.target()),
+                    entry.actor() == null ? null : toBytes(entry.actor()), entry.delta(), entry.balance(),
+                    entry.reason(), new Timestamp(entry.time())});
+        }
+        return executor.run(() -> {
+            if (rows.isEmpty()) return;
+            try {
+                // Rewritten into multi-row inserts on MySQL, and committed together so a failed batch can be retried
+                transaction(connection -> batch(connection, "INSERT INTO " + historyTableName + " " +
+                        "(target, actor, delta, balance, reason, created_at) VALUES (?, ?, ?, ?, ?, ?)", rows));
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<HistoryEntry>> getHistory(UUID target, long before, int limit) {
+        // Each half reads its own range of the target index, newest first, rather than an OR scanning both
+        String columns = "SELECT id, created_at, actor, target, delta, balance, reason FROM " + historyTableName + " ";
+        return call(connection -> queryList(connection,
+                "(" + columns + "WHERE target = ? AND id < ? ORDER BY id DESC LIMIT ?) " +
+                        "UNION ALL (" + columns + "WHERE target IS NULL AND id < ? ORDER BY id DESC LIMIT ?) " +
+                        "ORDER BY id DESC LIMIT ?",
+                historyMapper, toBytes(target), before, limit, before, limit, limit));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveName(UUID uuid, String name) {
+        if (name.length() > MAX_NAME_LENGTH) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Unable to save a name longer than "
+                    + MAX_NAME_LENGTH + " characters"));
+        }
+        return executor.run(() -> {
+            try {
+                withConnection(connection -> update(connection, "INSERT INTO " + nameTableName + " " +
+                                "(uuid, name, lower_name, last_seen) VALUES (?, ?, ?, ?) " +
+                                "ON DUPLICATE KEY UPDATE name=VALUES(name), lower_name=VALUES(lower_name), " +
+                                "last_seen=VALUES(last_seen)",
+                        toBytes(uuid), name, name.toLowerCase(Locale.ROOT), new Timestamp(System.currentTimeMillis())));
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<@Nullable PlayerName> findName(String name) {
+        return call(connection -> queryFirst(connection, "SELECT uuid, name FROM " + nameTableName + " " +
+                "WHERE lower_name = ? ORDER BY last_seen DESC LIMIT 1", nameMapper, name.toLowerCase(Locale.ROOT)));
+    }
+
+    @Override
+    public CompletableFuture<List<PlayerName>> findNamesByPrefix(String prefix, int limit) {
+        // Underscores are common in names, and would match any character unless escaped
+        String pattern = prefix.toLowerCase(Locale.ROOT).replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+        return call(connection -> queryList(connection, "SELECT uuid, name FROM " + nameTableName + " " +
+                "WHERE lower_name LIKE ? ESCAPE '!' ORDER BY lower_name LIMIT ?", nameMapper, pattern, limit));
+    }
+
+    @Override
+    public CompletableFuture<Map<UUID, String>> getNames(Collection<UUID> uuids) {
+        List<byte[]> keys = new ArrayList<>(uuids.size());
+        for (UUID uuid : new LinkedHashSet<>(uuids)) {
+            keys.add(toBytes(uuid));
+        }
+        if (keys.isEmpty()) return CompletableFuture.completedFuture(new HashMap<>());
+        return call(connection -> {
+            Map<UUID, String> names = new HashMap<>(keys.size() * 2);
+            for (int from = 0; from < keys.size(); from += MAX_IN_LIST) {
+                List<byte[]> chunk = keys.subList(from, Math.min(keys.size(), from + MAX_IN_LIST));
+                for (PlayerName found : queryList(connection, "SELECT uuid, name FROM " + nameTableName + " " +
+                        "WHERE uuid IN (" + placeholders(chunk.size()) + ")", nameMapper, chunk.toArray())) {
+                    names.put(found.uuid(), found.name());
+                }
+            }
+            return names;
+        });
+    }
+
+    /**
+     * Copy a players balance into the binary keyed table as part of the current transaction, while it is being
+     * migrated to
+     */
+    private void mirror(Connection connection, UUID uuid) throws SQLException {
+        if (!mirroring) return;
+        update(connection, "INSERT INTO " + binaryTableName + " (uuid, balance) " +
+                "SELECT ?, source.balance FROM " + tableName + " source WHERE source.uuid = ? " +
+                "ON DUPLICATE KEY UPDATE balance=source.balance", toBytes(uuid), uuid);
+    }
+
+    /**
+     * Record an idempotency key as part of the current transaction
+     *
+     * @param connection     The connection running the transaction
+     * @param idempotencyKey The key to record, or null if the change has none
+     * @return True if the change should be applied, false if the key was already recorded by an earlier attempt
+     */
+    private boolean claimIdempotencyKey(Connection connection, @Nullable String idempotencyKey) throws SQLException {
+        if (idempotencyKey == null) return true;
+        return update(connection, "INSERT IGNORE INTO " + idempotencyTableName + " (idempotency_key) VALUES (?)",
+                idempotencyKey) > 0;
+    }
+
+    /**
+     * Delete idempotency keys older than a day, long enough to outlive any retry
+     */
+    private void pruneIdempotencyKeys() {
+        execute("DELETE FROM " + idempotencyTableName + " WHERE created_at < ?",
+                new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+    }
+
+    /**
+     * Delete change log entries older than the configured retention. A server that falls further behind than that
+     * misses them, so the retention must outlast any poll
+     */
+    private void pruneChanges() {
+        execute("DELETE FROM " + changeTableName + " WHERE created_at < ?",
+                new Timestamp(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(config.getChangeRetention())));
+    }
+
+    /**
+     * Delete history entries older than the configured retention, a chunk per statement, so pruning a large backlog
+     * never locks the table for long
+     *
+     * @return The number of entries deleted, completed exceptionally if a chunk couldn't be
+     */
+    CompletableFuture<Long> pruneHistory() {
+        int retention = config.getHistoryRetention();
+        if (retention == 0) return CompletableFuture.completedFuture(0L);
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retention));
+        return executor.supply(() -> {
+            try {
+                long deleted = 0;
+                int count;
+                do {
+                    count = withConnection(connection -> update(connection, "DELETE FROM " + historyTableName + " " +
+                            "WHERE created_at < ? LIMIT ?", cutoff, HISTORY_PRUNE_CHUNK_SIZE));
+                    deleted += count;
+                } while (count == HISTORY_PRUNE_CHUNK_SIZE);
+                if (deleted > 0) logger.log(Level.FINE, "Pruned " + deleted + " transaction history entries");
+                return deleted;
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    @Override
+    public boolean isVersioned() {
+        return versioned;
+    }
+
+    /**
+     * Check whether calls reach the database, rather than being refused because it was found unreachable. A single
+     * stale connection doesn't count, only failures that open the circuit
+     *
+     * @return True if the database is live, otherwise false
+     */
     @Override
     public boolean isLive() {
-        try {
-            return connection != null && !connection.isClosed();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        return !breaker.isOpen();
+    }
+
+    /**
+     * @return The pool of connections to the database
+     */
+    ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return The circuit breaker refusing calls while the database is unreachable
+     */
+    CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * @return The executor database calls run on
+     */
+    DatabaseExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Stop accepting calls, wait for those already accepted to finish, then close every connection
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        if (!executor.shutdown(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            logger.log(Level.WARNING, "Database calls still running after " + CLOSE_TIMEOUT_SECONDS + " seconds, closing anyway");
         }
-        return false;
+        pool.close();
     }
 
     /**
@@ -151,108 +1095,449 @@ public class Database implements EconomyDatabase {
      * @param params           The parameters to apply to the statement
      */
     private CompletableFuture<Void> execute(boolean creatingDatabase, String sql, Object... params) {
-        return CompletableFuture.runAsync(() -> {
-            PreparedStatement statement = prepare(creatingDatabase, sql);
+        return executor.run(() -> {
+            SqlFunction<Connection, Integer> update = connection -> update(connection, sql, params);
             try {
-                for (int i = 0; i < params.length; i++) {
-                    statement.setObject(i + 1, params[i]);
-                }
-                statement.executeUpdate();
+                if (creatingDatabase) {
+                    // The database doesn't exist yet, so it can't be selected by a pooled connection
+                    try (Connection connection = connector.apply(true)) {
+                        update.apply(connection);
+                    }
+                } else withConnection(update);
             } catch (SQLException e) {
                 e.printStackTrace();
-            } finally {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
             }
         });
     }
 
     /**
-     * Query the database asynchronously
+     * Execute an update once per set of parameters, sent as a single batch
+     *
+     * @param connection The connection to execute on
+     * @param sql        The sql
+     * @param rows       The parameters to apply to the statement, one array per execution
+     * @return The number of rows changed by each execution
+     */
+    private int[] batch(Connection connection, String sql, Collection<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) return new int[0];
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (Object[] row : rows) {
+                bind(statement, row);
+                statement.addBatch();
+            }
+            return statement.executeBatch();
+        }
+    }
+
+    /**
+     * Run a function on a database thread with a pooled connection
      *
-     * @param function The function to apply to the {@link ResultSet}
-     * @param sql      The sql
-     * @param params   The parameters to apply to the statement
-     * @param <T>      The type of data to look for
-     * @return The data, with the appropriate type if found
-     */
-    private <T> CompletableFuture<Optional<T>> query(Function<? super ResultSet, T> function, String sql, Object... params) {
-        PreparedStatement statement = prepare(false, sql);
-        return CompletableFuture.supplyAsync(() -> {
+     * @param function The function to apply to the connection
+     * @param <T>      The type of data returned by the function
+     * @return The result of the function, or completed exceptionally if it failed
+     */
+    private <T> CompletableFuture<T> call(SqlFunction<Connection, T> function) {
+        return executor.supply(() -> {
             try {
-                for (int i = 0; i < params.length; i++) {
-                    statement.setObject(i + 1, params[i]);
-                }
-                ResultSet resultSet = statement.executeQuery(sql);
-                return Optional.ofNullable(function.apply(resultSet));
+                return withConnection(function);
             } catch (SQLException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
+                throw new CompletionException(e);
             }
-            return Optional.empty();
         });
     }
 
-    private PreparedStatement prepare(boolean creatingDatabase, String statement) {
-        try {
-            if (connection == null || connection.isClosed()) {
-                connection = getNewConnection(creatingDatabase).orElse(null);
-                if (connection == null) throw new IllegalStateException("Unable to find an active connection");
-                return connection.prepareStatement(statement);
+    /**
+     * Query every row matching a statement
+     *
+     * @param connection The connection to query on
+     * @param sql        The sql
+     * @param mapper     Maps each row
+     * @param params     The parameters to apply to the statement
+     * @param <T>        The type of each row
+     * @return The rows, in the order the query returned them
+     */
+    private <T> List<T> queryList(Connection connection, String sql, RowMapper<T> mapper, Object... params)
+            throws SQLException {
+        try (PreparedStatement statement = prepare(connection, sql, params)) {
+            return mapRows(statement, mapper);
+        }
+    }
+
+    /**
+     * Query the first row matching a statement
+     *
+     * @return The first row, or null if none matched
+     */
+    private <T> @Nullable T queryFirst(Connection connection, String sql, RowMapper<T> mapper, Object... params)
+            throws SQLException {
+        try (PreparedStatement statement = prepare(connection, sql, params);
+             ResultSet r = statement.executeQuery()) {
+            return r.next() ? mapper.map(r) : null;
+        }
+    }
+
+    /**
+     * Query a single number, read as a primitive so nothing is allocated for it
+     *
+     * @param absent Returned if no row matched
+     * @return The number read from the first row, or absent if none matched
+     */
+    private long queryLong(Connection connection, String sql, LongRowMapper mapper, long absent, Object... params)
+            throws SQLException {
+        try (PreparedStatement statement = prepare(connection, sql, params);
+             ResultSet r = statement.executeQuery()) {
+            return r.next() ? mapper.map(r) : absent;
+        }
+    }
+
+    private static <T> List<T> mapRows(PreparedStatement statement, RowMapper<T> mapper) throws SQLException {
+        try (ResultSet r = statement.executeQuery()) {
+            List<T> rows = new ArrayList<>();
+            while (r.next()) {
+                rows.add(mapper.map(r));
             }
-            return connection.prepareStatement(statement);
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return rows;
         }
-        throw new IllegalStateException("Unable to prepare statement, no valid connection found");
     }
 
-    private void ping() {
-        final int delay = 10;
-        CompletableFuture.runAsync(() -> {
-            Statement statement = null;
+    /**
+     * Borrow a connection from the pool for the duration of the function, returning it to the pool afterwards
+     *
+     * @param function The function to apply to the connection
+     * @param <T>      The type of data returned by the function
+     * @return The result of the function
+     * @throws SQLException If no connection could be borrowed, or the function failed
+     */
+    private <T> T withConnection(SqlFunction<Connection, T> function) throws SQLException {
+        return withConnection(function, false);
+    }
+
+    /**
+     * Borrow a connection from the pool for the duration of the function, returning it to the pool afterwards.
+     * <p>
+     * While writes are mirrored into the binary keyed table, another server migrating to it may swap the tables at
+     * any moment. So the function runs in a transaction that first checks the key format, which holds the
+     * table until the transaction ends, and a swap either happens before the check or waits for the function. Once a
+     * check finds the table swapped, this server switches to binary keys and runs the function again
+     *
+     * @param function      The function to apply to the connection
+     * @param transactional Whether the function must run inside a single transaction, committed if it completes and
+     *                      rolled back if it throws
+     * @param <T>           The type of data returned by the function
+     * @return The result of the function
+     * @throws SQLException If no connection could be borrowed, or the function or commit failed
+     */
+    private <T> T withConnection(SqlFunction<Connection, T> function, boolean transactional) throws SQLException {
+        while (true) {
             try {
-                if (connection != null && !connection.isClosed()) {
-                    statement = connection.createStatement();
-                    statement.execute("SELECT 1");
-                }
-            } catch (SQLException ignored) {
-                connection = getNewConnection(true).orElse(null);
-                plugin.getLogger().log(Level.SEVERE, "Connection issue, will try again in " + delay + " seconds");
-            } finally {
-                if (statement != null) {
+                return withConnectionOnce(function, transactional);
+            } catch (KeyFormatChangedException e) {
+                logger.log(Level.INFO, "Another server migrated the economy table to binary uuid keys, using them");
+                useBinaryKeys();
+            }
+        }
+    }
+
+    private <T> T withConnectionOnce(SqlFunction<Connection, T> function, boolean transactional) throws SQLException {
+        if (breaker.isOpen()) {
+            // Refused before waiting on anything, so calls made during an outage never hold a thread
+            throw new SQLTransientConnectionException("The database is unreachable, calls are refused until it is back");
+        }
+        schemaLock.readLock().lock();
+        try (ConnectionPool.PooledConnection pooled = borrow()) {
+            Connection connection = pooled.getConnection();
+            try {
+                // An embedded database is never shared, so only this server can migrate it
+                boolean guarded = mirroring && !embedded;
+                T result;
+                if (transactional || guarded) {
+                    connection.setAutoCommit(false);
                     try {
-                        statement.close();
-                    } catch (SQLException e) {
-                        e.printStackTrace();
+                        if (guarded && isKeyedByBinary(connection)) throw new KeyFormatChangedException();
+                        result = function.apply(connection);
+                        connection.commit();
+                    } catch (SQLException | RuntimeException e) {
+                        try {
+                            connection.rollback();
+                        } catch (SQLException ex) {
+                            e.addSuppressed(ex);
+                        }
+                        throw e;
+                    } finally {
+                        connection.setAutoCommit(true);
                     }
-                }
+                } else result = function.apply(connection);
+                breaker.recordSuccess();
+                return result;
+            } catch (SQLException e) {
+                if (isConnectionFailure(e)) {
+                    pooled.invalidate();
+                    recordFailure();
+                } else breaker.recordSuccess();
+                throw e;
             }
-        }).thenAcceptAsync(v -> {
+        } finally {
+            schemaLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check the key format of the economy table as part of the current transaction, reading no rows
+     *
+     * @return True if the table is keyed by binary uuids
+     */
+    private boolean isKeyedByBinary(Connection connection) throws SQLException {
+        String sql = "SELECT uuid FROM " + tableName + " WHERE 1 = 0";
+        try (PreparedStatement statement = connection.prepareStatement(sql);
+             ResultSet r = statement.executeQuery()) {
+            int type = r.getMetaData().getColumnType(1);
+            return type == Types.BINARY || type == Types.VARBINARY;
+        }
+    }
+
+    private ConnectionPool.PooledConnection borrow() throws SQLException {
+        try {
+            return pool.borrow();
+        } catch (SQLException e) {
+            recordFailure();
+            throw e;
+        }
+    }
+
+    private void recordFailure() {
+        if (breaker.recordFailure()) {
+            logger.log(Level.SEVERE, "Lost connection to the database, refusing calls until it is back. Changed balances "
+                    + "are kept and saved once it is");
+            // Check sooner than the regular interval, backing off from there
+            scheduleHealthCheck(breaker.nextCheckDelay(HEALTH_CHECK_INTERVAL_MILLIS));
+        }
+    }
+
+    /**
+     * Borrow a connection and run the function inside a single transaction, committing if it completes and rolling
+     * back if it throws. A transaction rolled back by a conflict with another is run again from the start, so the
+     * function must only touch the database
+     *
+     * @param function The function to apply to the connection
+     * @param <T>      The type of data returned by the function
+     * @return The result of the function
+     * @throws SQLException If no connection could be borrowed, or the function or commit failed
+     */
+    private <T> T transaction(SqlFunction<Connection, T> function) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
             try {
-                Thread.sleep(delay * 1000);
-                ping();
-            } catch (InterruptedException ignored) {
+                return transactionOnce(function);
+            } catch (SQLException e) {
+                if (!isConflict(e) || attempt >= MAX_TRANSACTION_ATTEMPTS) throw e;
             }
-        });
+        }
+    }
+
+    private <T> T transactionOnce(SqlFunction<Connection, T> function) throws SQLException {
+        return withConnection(function, true);
     }
 
-    private Optional<Connection> getNewConnection(boolean creatingDatabase) {
+    private int update(Connection connection, String sql, Object... params) throws SQLException {
+        try (PreparedStatement statement = prepare(connection, sql, params)) {
+            return statement.executeUpdate();
+        }
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    private PreparedStatement prepare(Connection connection, String sql, Object... params) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
         try {
-            String url = "jdbc:mysql://" + host + ":3306/" + (creatingDatabase ? "" : database);
-            return Optional.of(DriverManager.getConnection(url, username, password));
+            bind(statement, params);
         } catch (SQLException e) {
-            e.printStackTrace();
+            statement.close();
+            throw e;
+        }
+        return statement;
+    }
+
+    /**
+     * Bind parameters to a statement, binding uuids in the format the economy table keys them by
+     */
+    private void bind(PreparedStatement statement, Object... params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] instanceof UUID uuid) {
+                if (binaryKeys) {
+                    statement.setBytes(i + 1, toBytes(uuid));
+                } else statement.setString(i + 1, uuid.toString());
+            } else statement.setObject(i + 1, params[i]);
+        }
+    }
+
+    /**
+     * Read a uuid from the economy table, in whichever format the table keys them by
+     */
+    private UUID readUUID(ResultSet resultSet, int column) throws SQLException {
+        return binaryKeys ? fromBytes(resultSet.getBytes(column)) : UUID.fromString(resultSet.getString(column));
+    }
+
+    /**
+     * Read a uuid stored as raw bytes in a nullable column
+     *
+     * @return The uuid, or null if the column is null
+     */
+    private static @Nullable UUID readNullableUUID(ResultSet resultSet, int column) throws SQLException {
+        byte[] bytes = resultSet.getBytes(column);
+        return bytes == null ? null : fromBytes(bytes);
+    }
+
+    /**
+     * Get the 16 raw bytes of a uuid, most significant first, as stored in the economy table
+     *
+     * @param uuid The uuid
+     * @return The bytes of the uuid
+     */
+    static byte[] toBytes(@NotNull UUID uuid) {
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    /**
+     * Read a uuid from its 16 raw bytes, most significant first
+     *
+     * @param bytes The bytes of the uuid
+     * @return The uuid
+     */
+    static UUID fromBytes(byte @NotNull [] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * Whether the exception means the connection itself can no longer be used, as opposed to a failed statement
+     *
+     * @param e The exception thrown while using the connection
+     * @return True if the connection should be discarded, otherwise false
+     */
+    private boolean isConnectionFailure(SQLException e) {
+        String state = e.getSQLState();
+        return e instanceof SQLRecoverableException || e instanceof SQLNonTransientConnectionException
+                || (state != null && state.startsWith("08"));
+    }
+
+    /**
+     * Whether the exception means the transaction lost a race with another and may succeed if run again: a deadlock,
+     * a serialization failure, or, on embedded H2, two concurrent inserts handed the same generated id. Statements
+     * sent as a batch report the state of the statement that failed
+     *
+     * @param e The exception thrown by the transaction
+     * @return True if the transaction should be run again, otherwise false
+     */
+    private static boolean isConflict(SQLException e) {
+        String state = e.getSQLState();
+        return e instanceof SQLTransactionRollbackException
+                || (state != null && (state.startsWith("40") || state.equals("23505")));
+    }
+
+    /**
+     * Schedule the next health check, replacing any already scheduled
+     */
+    private synchronized void scheduleHealthCheck(long delayMillis) {
+        if (healthCheck != null) healthCheck.cancel(false);
+        try {
+            healthCheck = scheduler.schedule(this::checkHealth, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // Closed
+        }
+    }
+
+    /**
+     * Maintain the pool every few seconds on the scheduler, pruning old idempotency keys, changes and history every
+     * hour. While the circuit is open, this is the only call that reaches the database, and it is retried with
+     * exponential backoff until a connection can be borrowed again, which closes the circuit
+     */
+    private void checkHealth() {
+        try {
+            if (breaker.isOpen()) {
+                // Borrowing validates an idle connection or opens a new one, whichever reaches the database
+                pool.borrow().close();
+                pool.maintain();
+                breaker.close();
+                logger.log(Level.INFO, "Reconnected to the database after "
+                        + (System.currentTimeMillis() - breaker.getOpenedAt()) / 1000 + " seconds");
+            } else {
+                if (System.currentTimeMillis() >= nextPrune) {
+                    nextPrune = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+                    pruneIdempotencyKeys();
+                    pruneChanges();
+                    pruneHistory().exceptionally(e -> {
+                        logger.log(Level.WARNING, "Unable to prune the transaction history, will retry", e);
+                        return 0L;
+                    });
+                }
+                pool.maintain();
+                breaker.recordSuccess();
+            }
+        } catch (SQLException | RuntimeException e) {
+            // Nothing may escape, or the check would never be scheduled again
+            if (!breaker.isOpen()) {
+                recordFailure();
+                if (!breaker.isOpen()) {
+                    logger.log(Level.SEVERE, "Connection issue, will try again in "
+                            + HEALTH_CHECK_INTERVAL_MILLIS / 1000 + " seconds");
+                }
+            }
+        } finally {
+            long delay = breaker.nextCheckDelay(HEALTH_CHECK_INTERVAL_MILLIS);
+            if (breaker.isOpen()) {
+                logger.log(Level.WARNING, "The database is still unreachable, will try again in " + delay / 1000.0 + " seconds");
+            }
+            scheduleHealthCheck(delay);
         }
-        return Optional.empty();
+    }
+
+    /**
+     * @param changed The new balance and version of each row changed
+     * @param last    The last uuid of the chunk, or null if no rows follow it
+     */
+    private record BulkChunk(Map<UUID, VersionedBalance> changed, @Nullable UUID last) {
+    }
+
+    /**
+     * Thrown when a statement finds another server has swapped in the table keyed by binary uuids
+     */
+    private static class KeyFormatChangedException extends SQLException {
+
+        private KeyFormatChangedException() {
+            super("The economy table is now keyed by binary uuids");
+        }
+
+    }
+
+    @FunctionalInterface
+    private interface SqlFunction<T, R> {
+
+        R apply(T t) throws SQLException;
+
+    }
+
+    /**
+     * Maps the current row of a result
+     */
+    @FunctionalInterface
+    private interface RowMapper<T> {
+
+        T map(ResultSet row) throws SQLException;
+
+    }
+
+    /**
+     * Maps the current row of a result to a primitive, so reading it boxes nothing
+     */
+    @FunctionalInterface
+    private interface LongRowMapper {
+
+        long map(ResultSet row) throws SQLException;
+
     }
 
 }
@@ -0,0 +1,120 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs blocking database calls on a fixed number of dedicated threads, so they never park threads of the common pool
+ * shared with every other plugin.
+ * <p>
+ * Calls wait in a bounded queue for a free thread. Once the queue is full, further calls fail straight away with a
+ * {@link RejectedExecutionException} rather than queueing without limit, so a database that can't keep up pushes back
+ * on its callers instead of holding ever more work in memory.
+ */
+class DatabaseExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final boolean virtual;
+
+    /**
+     * @param name           The name of the threads
+     * @param threads        The number of threads, which needn't exceed the number of connections
+     * @param queueSize      The number of calls that may wait for a thread
+     * @param virtualThreads Whether to run calls on virtual threads, if the JDK has them
+     */
+    DatabaseExecutor(@NotNull String name, int threads, int queueSize, boolean virtualThreads) {
+        ThreadFactory factory = virtualThreads ? virtualThreadFactory(name) : null;
+        this.virtual = factory != null;
+        if (factory == null) {
+            AtomicInteger count = new AtomicInteger();
+            factory = task -> {
+                Thread thread = new Thread(task, name + "-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), factory, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a call on a database thread
+     *
+     * @param task The call
+     * @return Completed once the call has run, or exceptionally if it threw or the queue was full
+     */
+    CompletableFuture<Void> run(@NotNull Runnable task) {
+        return supply(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Run a call on a database thread
+     *
+     * @param task The call
+     * @param <T>  The type of the result
+     * @return The result, or completed exceptionally if the call threw or the queue was full
+     */
+    <T> CompletableFuture<T> supply(@NotNull Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @return True if calls run on virtual threads
+     */
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return The number of calls waiting for a thread
+     */
+    int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stop accepting calls, and wait for those already accepted to finish
+     *
+     * @param timeout The longest to wait
+     * @param unit    The unit of the timeout
+     * @return True if every call finished in time
+     */
+    boolean shutdown(long timeout, TimeUnit unit) {
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Get a factory of virtual threads, looked up reflectively as the plugin is built for a JDK without them
+     *
+     * @return The factory, or null if the JDK has no virtual threads
+     */
+    private static @Nullable ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+}
@@ -4,9 +4,15 @@ import org.jetbrains.annotations.Nullable;
 
 import java.math.BigDecimal;
 import java.sql.PreparedStatement;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * The database for the economy
@@ -16,28 +22,200 @@ public interface EconomyDatabase {
     /**
      * Get all UUID's from the database
      * @return All UUID's from the database
+     * @deprecated Holds every UUID in memory at once, use {@link #forEachBalance(Consumer)} to stream them instead
      */
+    @Deprecated
     CompletableFuture<Set<UUID>> getUUIDs();
 
+    /**
+     * Stream every balance in the database, in uuid order. Rows are read in fixed-size pages, each page only once
+     * the consumer has taken every row of the previous one, so memory use stays constant however large the table is
+     * and a slow consumer slows the reads rather than queueing rows. The consumer is called on a database thread
+     * @param consumer The consumer of each row
+     * @return The number of rows read, completed once the consumer has taken every row, or exceptionally if a page
+     * couldn't be read or the consumer threw
+     */
+    CompletableFuture<Long> forEachBalance(Consumer<? super BalanceRow> consumer);
+
     /**
      * Get the balance of a player from the database
      * @param uuid The UUID of the player to get the balance of
-     * @return The balance of the player, or null if not found
+     * @return The balance of the player, or empty if not found. Completes exceptionally if the database couldn't be
+     * read
+     */
+    CompletableFuture<OptionalLong> getBalance(UUID uuid);
+
+    /**
+     * Get the balance of a player from the database, with the version of its row
+     * @param uuid The UUID of the player to get the balance of
+     * @return The balance and version, or null if not found. Completes exceptionally if the database couldn't be read
+     */
+    CompletableFuture<@Nullable VersionedBalance> getVersionedBalance(UUID uuid);
+
+    /**
+     * Get the balances of many players from the database, with the version of each row, in as few queries as the
+     * database allows
+     * @param uuids The UUIDs of the players to get the balances of
+     * @return The balance and version of each player found, keyed by uuid, players not found are left out. Completes
+     * exceptionally if the database couldn't be read
+     */
+    CompletableFuture<Map<UUID, VersionedBalance>> getBalances(Collection<UUID> uuids);
+
+    /**
+     * Get a page of balances from the richest player to the poorest, continuing from the previous page
+     * @param after The last row of the previous page, or null to start from the richest player
+     * @param limit The maximum number of rows to get
+     * @return The rows, ordered by balance then uuid, both descending
      */
-    CompletableFuture<@Nullable Long> getBalance(UUID uuid);
+    CompletableFuture<List<BalanceRow>> getBalancesByRank(@Nullable BalanceRow after, int limit);
 
     /**
      * Save a players balance in the database
      * @param uuid The uuid to save
      * @param balance The value to save
-     * @return Completed once the value is saved
+     * @return Completed once the value is saved, or exceptionally if it couldn't be
      */
     CompletableFuture<Void> saveBalance(UUID uuid, long balance);
 
+    /**
+     * Save many players balances in the database, as a single batch
+     * @param balances The balances to save, keyed by uuid
+     * @return Completed once every value is saved, or exceptionally if the batch failed
+     */
+    CompletableFuture<Void> saveBalances(Map<UUID, Long> balances);
+
+    /**
+     * Save many players balances in the database, each only if its row is still at the version the balance was based
+     * on, so a balance based on a stale read never overwrites a newer write from another server
+     * @param balances The balances to save, keyed by uuid, each with the version of the row it was based on.
+     * {@link VersionedBalance#ABSENT} saves only if the row doesn't exist yet, and {@link VersionedBalance#UNKNOWN}
+     * saves regardless of the version
+     * @return The new version of each row saved, completed once every value is saved, or exceptionally if the batch
+     * failed. Rows another writer changed since are left out, and left as they are
+     */
+    CompletableFuture<Map<UUID, Long>> compareAndSaveBalances(Map<UUID, VersionedBalance> balances);
+
+    /**
+     * Add to a players balance in the database, doing the arithmetic in the database so that concurrent changes
+     * from any writer are never lost
+     * @param uuid The uuid of the player
+     * @param delta The amount to add, or negative to take
+     * @param idempotencyKey A key unique to this change, so that retrying it never applies it twice, or null
+     * @return True if applied, or already applied under the same key, false if the player wasn't found or their
+     * balance would become negative. Completes exceptionally, changing nothing, if the balance would overflow
+     */
+    CompletableFuture<Boolean> applyDelta(UUID uuid, long delta, @Nullable String idempotencyKey);
+
+    /**
+     * Move an amount from one players balance to another in the database, in a single transaction
+     * @param from The uuid of the player to take from
+     * @param to The uuid of the player to give to
+     * @param amount The non-negative amount to move
+     * @param idempotencyKey A key unique to this transfer, so that retrying it never applies it twice, or null
+     * @return True if moved, or already moved under the same key, false if either player wasn't found or the
+     * sender has less than the amount. Completes exceptionally, changing nothing, if the receiver's balance would
+     * overflow
+     */
+    CompletableFuture<Boolean> transfer(UUID from, UUID to, long amount, @Nullable String idempotencyKey);
+
+    /**
+     * Apply an operation to every balance in the database with set based updates, one transaction per chunk of rows
+     * in uuid order, so no transaction locks more than a chunk and the rest of the table stays writable meanwhile.
+     * Rows the operation changes move to their next version and are logged, rows it leaves as they are aren't written
+     * @param operation The operation to apply
+     * @param consumer Called with the new balance and version of each row changed, once its chunk has committed, on a
+     * database thread
+     * @return The number of rows changed, completed once every chunk has committed, or exceptionally if a chunk
+     * failed, in which case the chunks before it stay applied
+     */
+    CompletableFuture<Long> updateAll(BulkOperation operation, BiConsumer<UUID, VersionedBalance> consumer);
+
+    /**
+     * Get the id of the latest entry in the change log, to follow the log from
+     * @return The id, or 0 if the log is empty
+     */
+    CompletableFuture<Long> getLastChangeId();
+
+    /**
+     * Get the entries of the change log after an id, in id order. An entry becomes visible once its write commits,
+     * which may be after entries with higher ids
+     * @param after The id to read after
+     * @param limit The maximum number of entries to get
+     * @return The entries, completed exceptionally if the log couldn't be read
+     */
+    CompletableFuture<List<BalanceChange>> getChanges(long after, int limit);
+
+    /**
+     * Get entries of the change log by id, such as ids skipped by an earlier read whose writes hadn't committed yet
+     * @param ids The ids of the entries
+     * @return The entries found, in id order, completed exceptionally if the log couldn't be read
+     */
+    CompletableFuture<List<BalanceChange>> getChanges(Collection<Long> ids);
+
+    /**
+     * Append entries to the transaction history, as a single batch
+     * @param entries The entries to append, their ids are ignored and assigned in order
+     * @return Completed once every entry is written, or exceptionally if the batch failed, in which case none are
+     */
+    CompletableFuture<Void> recordHistory(List<HistoryEntry> entries);
+
+    /**
+     * Get a page of a players transaction history, newest first, continuing from the previous page. Entries of
+     * changes to every balance are included
+     * @param target The uuid of the player
+     * @param before The id of the last entry of the previous page, or {@link Long#MAX_VALUE} to start from the newest
+     * @param limit The maximum number of entries to get
+     * @return The entries, ordered by id descending, completed exceptionally if the history couldn't be read
+     */
+    CompletableFuture<List<HistoryEntry>> getHistory(UUID target, long before, int limit);
+
+    /**
+     * Record the name a player logged in with, replacing the name they had before
+     * @param uuid The uuid of the player
+     * @param name The name of the player
+     * @return Completed once saved
+     */
+    CompletableFuture<Void> saveName(UUID uuid, String name);
+
+    /**
+     * Find a player by name, ignoring case. If players have swapped names, the one seen last with it is found
+     * @param name The name of the player
+     * @return The player and their name, or null if no player was seen with the name, completed exceptionally if the
+     * names couldn't be read
+     */
+    CompletableFuture<@Nullable PlayerName> findName(String name);
+
+    /**
+     * Find players whose names start with a prefix, ignoring case, such as for completing a name being typed
+     * @param prefix The start of the name
+     * @param limit The maximum number of players to get
+     * @return The players and their names, in name order
+     */
+    CompletableFuture<List<PlayerName>> findNamesByPrefix(String prefix, int limit);
+
+    /**
+     * Get the names of many players, in as few queries as the database allows
+     * @param uuids The uuids of the players
+     * @return The name of each player found, keyed by uuid, players never seen are left out
+     */
+    CompletableFuture<Map<UUID, String>> getNames(Collection<UUID> uuids);
+
+    /**
+     * Check whether balance rows are versioned, so that every write is recorded in the change log and seen by other
+     * servers. Until then writes aren't checked against each other
+     * @return True if rows are versioned, otherwise false
+     */
+    boolean isVersioned();
+
     /**
      * Check if the connection is currently live
      * @return True if the connection is live, otherwise false
      */
     boolean isLive();
 
+    /**
+     * Close the database, releasing all of its connections
+     */
+    void close();
+
 }
@@ -7,7 +7,13 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The engine for the economy
@@ -35,7 +41,14 @@ public interface EconomyEngine {
     Config getConfig();
 
     /**
-     * Get the balance of the player, if cached
+     * Get the metrics of the cache and database, also exposed over JMX
+     * @return The metrics
+     */
+    EconomyMetrics getMetrics();
+
+    /**
+     * Get the balance of the player, if cached. If not, it starts loading in the background so that a later call
+     * finds it cached
      *
      * @param p The player to get the balance of
      * @return The balance of the player, if cached
@@ -43,11 +56,225 @@ public interface EconomyEngine {
     Optional<Long> getBalance(@NotNull OfflinePlayer p);
 
     /**
-     * Set a players balance in local cache
+     * Get the balance of any player, online or not, loading it from the database if it isn't cached
+     *
+     * @param p The player to get the balance of
+     * @return The balance of the player, 0 if they have none, completed once loaded
+     */
+    CompletableFuture<Long> loadBalance(@NotNull OfflinePlayer p);
+
+    /**
+     * Set a players balance in local cache. A balance that isn't cached is loaded first and set once loaded, so the
+     * change recorded in the transaction history is from the balance it replaces
      *
      * @param p        The players balance to update
      * @param balance  The updated balance
      */
     void setBalance(@NotNull OfflinePlayer p, long balance);
 
+    /**
+     * Set a players balance in local cache, recording who set it and why in the transaction history. A balance that
+     * isn't cached is loaded first and set once loaded, so the change recorded is from the balance it replaces
+     *
+     * @param p        The players balance to update
+     * @param balance  The updated balance
+     * @param actor    The uuid of the player setting it, or null for the console or a plugin
+     * @param reason   Why the balance was set
+     */
+    void setBalance(@NotNull OfflinePlayer p, long balance, @Nullable UUID actor, @NotNull String reason);
+
+    /**
+     * Give an amount to every player with a balance, online or not, in the database and the cache alike. Balances
+     * that would overflow are capped
+     *
+     * @param amount The non-negative amount to give
+     * @return The number of balances changed, completed once every balance is updated, or exceptionally if the
+     * database failed part way, in which case the players already given to keep the amount
+     */
+    CompletableFuture<Long> giveAll(long amount);
+
+    /**
+     * Give an amount to every player with a balance, as {@link #giveAll(long)}, recording who gave it in the
+     * transaction history
+     *
+     * @param amount The non-negative amount to give
+     * @param actor  The uuid of the player giving it, or null for the console or a plugin
+     * @return The number of balances changed, completed once every balance is updated
+     */
+    CompletableFuture<Long> giveAll(long amount, @Nullable UUID actor);
+
+    /**
+     * Pay interest on every players balance, online or not, in the database and the cache alike. Interest is rounded
+     * down to a whole amount
+     *
+     * @param percent The non-negative interest rate in percent
+     * @param cap     The most interest paid to one player
+     * @return The number of balances changed, completed once every balance is updated, or exceptionally if the
+     * database failed part way, in which case the players already paid keep the interest
+     */
+    CompletableFuture<Long> payInterest(@NotNull BigDecimal percent, long cap);
+
+    /**
+     * Pay interest on every players balance, as {@link #payInterest(BigDecimal, long)}, recording who paid it in the
+     * transaction history
+     *
+     * @param percent The non-negative interest rate in percent
+     * @param cap     The most interest paid to one player
+     * @param actor   The uuid of the player paying it, or null for the console or a plugin
+     * @return The number of balances changed, completed once every balance is updated
+     */
+    CompletableFuture<Long> payInterest(@NotNull BigDecimal percent, long cap, @Nullable UUID actor);
+
+    /**
+     * Set every players balance, online or not, to the same value, in the database and the cache alike
+     *
+     * @param balance The non-negative balance to set
+     * @return The number of balances changed, completed once every balance is updated, or exceptionally if the
+     * database failed part way, in which case the balances already reset stay so
+     */
+    CompletableFuture<Long> resetAll(long balance);
+
+    /**
+     * Set every players balance to the same value, as {@link #resetAll(long)}, recording who reset them in the
+     * transaction history
+     *
+     * @param balance The non-negative balance to set
+     * @param actor   The uuid of the player resetting them, or null for the console or a plugin
+     * @return The number of balances changed, completed once every balance is updated
+     */
+    CompletableFuture<Long> resetAll(long balance, @Nullable UUID actor);
+
+    /**
+     * Get a page of the richest players. Rankings are updated as balances are written to the database
+     *
+     * @param offset The number of ranks to skip, 0 to start from the richest
+     * @param limit  The maximum number of balances to get
+     * @return The balances, richest first
+     */
+    List<BalanceRow> getTopBalances(int offset, int limit);
+
+    /**
+     * Get a players rank among all balances, where the richest player is ranked 1
+     *
+     * @param p The player to get the rank of
+     * @return The players rank, if ranked
+     */
+    OptionalInt getRank(@NotNull OfflinePlayer p);
+
+    /**
+     * Atomically add to a players cached balance
+     *
+     * @param p      The player to give to
+     * @param amount The non-negative amount to add
+     * @return True if added, false if the balance isn't cached or would overflow
+     */
+    boolean deposit(@NotNull OfflinePlayer p, long amount);
+
+    /**
+     * Add to any players balance, online or not, without waiting for it to load. A cached balance is changed in the
+     * cache, any other in the database directly
+     *
+     * @param p      The player to give to
+     * @param amount The non-negative amount to add
+     * @return Completed with true once added, or false if the balance would overflow, or exceptionally if the
+     * database couldn't be reached or the balance was evicted while being changed
+     */
+    CompletableFuture<Boolean> depositOffline(@NotNull OfflinePlayer p, long amount);
+
+    /**
+     * Atomically take from a players cached balance
+     *
+     * @param p      The player to take from
+     * @param amount The non-negative amount to take
+     * @return True if taken, false if the balance isn't cached or is less than the amount
+     */
+    boolean withdraw(@NotNull OfflinePlayer p, long amount);
+
+    /**
+     * Atomically move an amount from one players cached balance to another
+     *
+     * @param from   The player to take from
+     * @param to     The player to give to
+     * @param amount The non-negative amount to move
+     * @return True if moved, false if both are the same player, either balance isn't cached, the sender has less than
+     * the amount, or the receivers balance would overflow
+     */
+    boolean transfer(@NotNull OfflinePlayer from, @NotNull OfflinePlayer to, long amount);
+
+    /**
+     * Get a page of a players transaction history, newest first, including changes made to every balance. Every
+     * change to a balance made through the engine is recorded, and written to the database in the background
+     *
+     * @param p      The player to get the history of
+     * @param before The id of the last entry of the previous page, or {@link Long#MAX_VALUE} to start from the newest
+     * @param limit  The maximum number of entries to get
+     * @return The entries, completed once every change recorded before the call is written and the page is read, or
+     * exceptionally if the history couldn't be read
+     */
+    CompletableFuture<List<HistoryEntry>> getHistory(@NotNull OfflinePlayer p, long before, int limit);
+
+    /**
+     * Find a player by the name they last logged in with, ignoring case. Never looks the name up with Mojang, so
+     * players who have never joined aren't found
+     *
+     * @param name The name of the player
+     * @return The player, or null if no player was seen with the name, completed exceptionally if the names couldn't
+     * be read
+     */
+    CompletableFuture<@Nullable PlayerName> findPlayer(@NotNull String name);
+
+    /**
+     * Record the name a player is known by, such as a name the server already knew before the player was seen by the
+     * economy. Players joining are recorded without this
+     *
+     * @param uuid The uuid of the player
+     * @param name The name of the player
+     */
+    void recordName(@NotNull UUID uuid, @NotNull String name);
+
+    /**
+     * Get the names many players last logged in with
+     *
+     * @param uuids The uuids of the players
+     * @return The name of each player found, keyed by uuid, players never seen are left out
+     */
+    CompletableFuture<Map<UUID, String>> getNames(@NotNull Collection<UUID> uuids);
+
+    /**
+     * Complete a player name being typed, from recently used names only so it never waits on the database
+     *
+     * @param prefix The start of the name
+     * @param limit  The most names to complete
+     * @return The names, in name order
+     */
+    List<String> completeNames(@NotNull String prefix, int limit);
+
+    /**
+     * Export every balance in the database to an archive in the plugins backups folder, such as for a backup or to
+     * move the economy to another database. Changed balances are flushed first, so the archive holds every balance
+     * as of the call. Balances are streamed from the database into the file, so the export takes the same memory
+     * however many there are
+     *
+     * @param name The name of the archive, only letters, digits, dashes and underscores
+     * @return The number of balances exported and how long it took, completed exceptionally if the archive already
+     * exists, another export or import is running, or the export failed, in which case no archive is left behind
+     * @throws IllegalStateException If the name has any other characters
+     */
+    CompletableFuture<ArchiveResult> exportBalances(@NotNull String name);
+
+    /**
+     * Import every balance in an archive from the plugins backups folder, replacing the balance of each player in it.
+     * The whole archive is checked before anything is imported, then balances are saved in large batches, one
+     * transaction each. Cached balances pick the imported balances up through the change log, with any changes not
+     * yet flushed kept on top. The import is recorded in the history once
+     *
+     * @param name  The name of the archive
+     * @param actor The player importing, or null if not a player
+     * @return The number of balances imported and how long it took, completed exceptionally if the archive is missing
+     * or corrupt, another export or import is running, or a batch failed, in which case the batches before it stay
+     * imported
+     * @throws IllegalStateException If the name has any characters other than letters, digits, dashes and underscores
+     */
+    CompletableFuture<ArchiveResult> importBalances(@NotNull String name, @Nullable UUID actor);
+
 }
@@ -0,0 +1,70 @@
+package com.projecki.economy.manager;
+
+import com.projecki.economy.EconomyPlugin;
+import org.bukkit.Bukkit;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * What the economy needs from the server it runs on, so that the manager also runs outside one, such as under a load
+ * test
+ */
+interface EconomyHost {
+
+    /**
+     * @return The logger to report to
+     */
+    Logger getLogger();
+
+    /**
+     * @return The folder holding the journal, embedded database and backups
+     */
+    Path getDataFolder();
+
+    /**
+     * Run a task repeatedly, off the main thread
+     *
+     * @param task        The task
+     * @param periodTicks The ticks before the first run, and between runs
+     * @return The task, to cancel it
+     */
+    Task runRepeatingAsync(@NotNull Runnable task, long periodTicks);
+
+    /**
+     * A task running repeatedly
+     */
+    interface Task {
+
+        /**
+         * Stop the task, letting a run in progress finish
+         */
+        void cancel();
+
+    }
+
+    /**
+     * @param plugin The plugin
+     * @return The server the plugin runs on
+     */
+    static EconomyHost of(@NotNull EconomyPlugin plugin) {
+        return new EconomyHost() {
+            @Override
+            public Logger getLogger() {
+                return plugin.getLogger();
+            }
+
+            @Override
+            public Path getDataFolder() {
+                return plugin.getDataFolder().toPath();
+            }
+
+            @Override
+            public Task runRepeatingAsync(@NotNull Runnable task, long periodTicks) {
+                return Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, task, periodTicks, periodTicks)::cancel;
+            }
+        };
+    }
+
+}
@@ -11,54 +11,200 @@ import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class EconomyManager implements EconomyEngine, Listener {
 
+    private static final int LEADERBOARD_PAGE_SIZE = 5000;
+    private static final String METRICS_NAME = "com.projecki.economy:type=Metrics";
+    private static final long HISTORY_INTERVAL_TICKS = 20;
+    private static final int NAME_COMPLETION_LIMIT = 20;
+
     private final EconomyPlugin plugin;
+    private final Logger logger;
+    private final Path dataFolder;
     private final Config config;
     private final EconomyDatabase database;
-    private final Map<UUID, Long> balances = new HashMap<>();
+    private final TransactionJournal journal;
+    private final BalanceCache balances;
+    private final EconomyMetrics metrics;
+    private final BalanceLeaderboard leaderboard = new BalanceLeaderboard();
+    private final Map<UUID, CompletableFuture<Boolean>> loading = new ConcurrentHashMap<>();
+    private final BalanceLoader loader;
+    private final ChangeFeed changes;
+    private final HistoryLog history;
+    private final NameIndex names;
+    private final EconomyHost.Task flushTask, pollTask, historyTask;
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    /**
+     * The changes recovered from the journal, until they are replayed once the database is set up
+     */
+    private final Map<UUID, TransactionJournal.Entry> unreplayed;
+    private final AtomicBoolean archiving = new AtomicBoolean();
+    /**
+     * Reads and writes archive files, which may run for long, off the common pool and the database threads
+     */
+    private final DatabaseExecutor archives = new DatabaseExecutor("Economy Archive", 1, 1, false);
+    private CompletableFuture<Void> lastFlush = CompletableFuture.completedFuture(null);
+    private CompletableFuture<Void> lastPoll = CompletableFuture.completedFuture(null);
+    private boolean live = true;
 
     public EconomyManager(EconomyPlugin plugin) {
+        this(plugin, EconomyHost.of(plugin), null);
+        PaperCommandManager manager = new PaperCommandManager(plugin);
+        // Completed from the cached names alone, so typing a name never waits on the database
+        manager.getCommandCompletions().registerAsyncCompletion("economyplayers",
+                c -> completeNames(c.getInput(), NAME_COMPLETION_LIMIT));
+        manager.registerCommand(new EconomyCommand());
+        Bukkit.getPluginManager().registerEvents(this, plugin);
+    }
+
+    /**
+     * Run the economy on a host other than a plugin, such as a load test, which calls the event handlers itself. No
+     * commands or events are registered
+     *
+     * @param plugin The plugin, or null if run outside a server
+     * @param host   The server to run on
+     * @param config The configuration, or null to read the plugins config.yml
+     */
+    EconomyManager(@Nullable EconomyPlugin plugin, @NotNull EconomyHost host, @Nullable Config config) {
         this.plugin = plugin;
-        this.config = new Config(this);
+        this.logger = host.getLogger();
+        this.dataFolder = host.getDataFolder();
+        if (config == null) config = new Config(this);
+        this.config = config;
+
+        try {
+            this.journal = new TransactionJournal(dataFolder.resolve("journal"),
+                    config.getJournalSegmentSize() * 1024 * 1024);
+            this.balances = new BalanceCache(journal);
+            this.unreplayed = journal.recover();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open the transaction journal", e);
+        }
+
+        this.metrics = new EconomyMetrics(balances::size, balances::countDirty);
+        registerMetrics();
 
-        plugin.getLogger().log(Level.INFO, "Setting up database...");
-        this.database = new Database(this, config.getSQLHost(), config.getSQLDatabase(), config.getSQLUsername(), config.getSQLPassword(), () -> {
-            plugin.getLogger().log(Level.INFO, "Database setup complete!");
+        logger.log(Level.INFO, "Setting up database...");
+        // An embedded database can finish setting up before it is even assigned, so wait for both
+        CompletableFuture<Void> setup = new CompletableFuture<>();
+        Runnable afterSetup = () -> setup.complete(null);
+        EconomyDatabase backend = switch (config.getStorageType()) {
+            case MYSQL -> Database.mysql(logger, config, afterSetup);
+            case H2 -> Database.h2(logger, config, dataFolder.resolve("economy"), afterSetup);
+            case MEMORY -> {
+                logger.log(Level.WARNING, "Balances are only stored in memory, and will be lost when the server stops");
+                afterSetup.run();
+                yield new MemoryDatabase(config.getScanPageSize(), config.getChangeRetention() * 1000L,
+                        TimeUnit.DAYS.toMillis(config.getHistoryRetention()));
+            }
+        };
+        if (backend instanceof Database sql) {
+            metrics.setPool(sql.getPool());
+            metrics.setExecutor(sql.getExecutor());
+            metrics.setBreaker(sql.getBreaker());
+        }
+        this.database = new InstrumentedDatabase(backend, metrics);
+        this.loader = new BalanceLoader(database, config.getCacheLoadBatchWindow(), config.getCacheLoadBatchSize());
+        this.changes = new ChangeFeed(database, config.getChangeBatchSize(), this::applyChange);
+        this.history = new HistoryLog(database, logger, config.getHistoryQueueSize(), config.getHistoryBatchSize());
+        metrics.setHistory(history);
+        this.names = new NameIndex(database, ready, logger, config.getNameCacheSize());
+        setup.thenRun(() -> {
+            logger.log(Level.INFO, "Database setup complete!");
+            // Follow changes from before any balance is loaded, so none made after a load is missed
+            changes.start().whenComplete((v, e) -> {
+                if (e != null) {
+                    logger.log(Level.WARNING, "Unable to read the economy change log, will retry", e);
+                }
+                // Nothing is loaded until ready, so the replayed balances are cached before any player's
+                replayJournal().thenRun(() -> {
+                    ready.complete(null);
+                    flush();
+                    rebuildLeaderboard(null).whenComplete((ranked, ex) -> {
+                        if (ex != null) {
+                            logger.log(Level.WARNING, "Unable to rank every balance, ranked " + leaderboard.size(), ex);
+                        } else logger.log(Level.INFO, "Ranked " + leaderboard.size() + " balances");
+                    });
+                });
+            });
         });
 
-        PaperCommandManager manager = new PaperCommandManager(plugin);
-        manager.registerCommand(new EconomyCommand());
-        Bukkit.getPluginManager().registerEvents(this, plugin);
+        this.flushTask = host.runRepeatingAsync(this::flushIfIdle, config.getFlushInterval() * 20L);
+        this.pollTask = host.runRepeatingAsync(this::pollIfIdle, Math.max(1, config.getChangePollInterval() / 50));
+        this.historyTask = host.runRepeatingAsync(() -> {
+            if (ready.isDone()) history.flushIfIdle();
+        }, HISTORY_INTERVAL_TICKS);
+    }
+
+    /**
+     * Load the balance while the player is still logging in, so it is cached before they join. Runs last, so only
+     * logins every other plugin has allowed are loaded, and blocks this async login thread rather than the server
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent e) {
+        if (e.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) return;
+        names.update(e.getUniqueId(), e.getName());
+        logger.log(Level.INFO, "Loading player " + e.getName() + "'s balance...");
+        try {
+            loadJoiningBalance(e.getUniqueId()).get(config.getLoginLoadTimeout(), TimeUnit.MILLISECONDS);
+            logger.log(Level.INFO, e.getName() + "'s balance loaded");
+        } catch (ExecutionException | TimeoutException ex) {
+            logger.log(Level.WARNING, "Unable to load " + e.getName() + "'s balance during login, will retry on join", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @EventHandler
     public void onJoin(PlayerJoinEvent e) {
-        plugin.getLogger().log(Level.INFO, "Loading player " + e.getPlayer().getName() + "'s balance...");
-        loadPlayerBalance(e.getPlayer().getUniqueId(), () -> {
-            plugin.getLogger().log(Level.INFO, e.getPlayer().getName() + "'s balance loaded");
+        UUID uuid = e.getPlayer().getUniqueId();
+        if (balances.contains(uuid)) {
+            balances.setPinned(uuid, true);
+            return;
+        }
+        logger.log(Level.INFO, "Loading player " + e.getPlayer().getName() + "'s balance...");
+        loadJoiningBalance(uuid).thenRun(() -> {
+            // Only pin while still online, a player who quit before the load finished would never be unpinned
+            if (e.getPlayer().isOnline()) balances.setPinned(uuid, true);
+            logger.log(Level.INFO, e.getPlayer().getName() + "'s balance loaded");
         });
     }
 
     @EventHandler
     public void onQuit(PlayerQuitEvent e) {
-        plugin.getLogger().log(Level.INFO, "Saving player " + e.getPlayer().getName() + "'s balance...");
-        savePlayerBalance(e.getPlayer().getUniqueId(), () -> {
-            plugin.getLogger().log(Level.INFO, e.getPlayer().getName() + "'s balance saved");
-        });
+        // The account stays cached until it has been flushed and has gone unused for the offline time to live
+        balances.setPinned(e.getPlayer().getUniqueId(), false);
     }
 
     @Override
@@ -71,45 +217,762 @@ public class EconomyManager implements EconomyEngine, Listener {
         return config;
     }
 
+    @Override
+    public EconomyMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public Optional<Long> getBalance(@NotNull OfflinePlayer p) {
-        return Optional.ofNullable(balances.get(p.getUniqueId()));
+        BalanceCache.Account account = balances.get(p.getUniqueId());
+        if (account == null) {
+            metrics.recordCacheMiss();
+            // Read through, so the balance is cached for the next lookup
+            loadPlayerBalance(p.getUniqueId());
+            return Optional.empty();
+        }
+        metrics.recordCacheHit();
+        return Optional.of(account.getBalance());
+    }
+
+    @Override
+    public CompletableFuture<Long> loadBalance(@NotNull OfflinePlayer p) {
+        UUID uuid = p.getUniqueId();
+        BalanceCache.Account account = balances.get(uuid);
+        if (account != null) {
+            metrics.recordCacheHit();
+            return CompletableFuture.completedFuture(account.getBalance());
+        }
+        metrics.recordCacheMiss();
+        return loadPlayerBalance(uuid).thenApply(found -> {
+            BalanceCache.Account loaded = balances.get(uuid);
+            return loaded == null ? 0L : loaded.getBalance();
+        });
     }
 
     @Override
     public void setBalance(@NotNull OfflinePlayer p, long balance) {
+        setBalance(p, balance, null, "Set");
+    }
+
+    @Override
+    public void setBalance(@NotNull OfflinePlayer p, long balance, @Nullable UUID actor, @NotNull String reason) {
         if (balance < 0) throw new IllegalStateException("Unable to set negative balance");
         UUID uuid = p.getUniqueId();
-        balances.put(uuid, balance);
+        if (setCachedBalance(uuid, balance, actor, reason)) return;
+        // Only the database holds the previous balance, so it is loaded first for the history to record the change
+        loadPlayerBalance(uuid).whenComplete((found, e) -> {
+            if (e != null) {
+                logger.log(Level.SEVERE, "Unable to load the balance of " + uuid + ", so it wasn't set to "
+                        + balance, e);
+                return;
+            }
+            setBalance(p, balance, actor, reason);
+        });
+    }
+
+    /**
+     * Set a cached balance, recording the change from the balance it replaces
+     *
+     * @return False if the balance isn't cached, or was evicted before it could be set
+     */
+    private boolean setCachedBalance(UUID uuid, long balance, @Nullable UUID actor, String reason) {
+        BalanceCache.Account account = balances.get(uuid);
+        if (account == null) return false;
+        long previous;
+        synchronized (account) {
+            previous = account.getBalance();
+            if (!account.setBalance(balance)) return false;
+        }
+        history.record(actor, uuid, balance - previous, balance, reason);
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Long> giveAll(long amount) {
+        return giveAll(amount, null);
+    }
+
+    @Override
+    public CompletableFuture<Long> giveAll(long amount, @Nullable UUID actor) {
+        return updateAll(BulkOperation.give(amount), actor, "Gave " + amount + " to every player");
+    }
+
+    @Override
+    public CompletableFuture<Long> payInterest(@NotNull BigDecimal percent, long cap) {
+        return payInterest(percent, cap, null);
+    }
+
+    @Override
+    public CompletableFuture<Long> payInterest(@NotNull BigDecimal percent, long cap, @Nullable UUID actor) {
+        String rate = percent.stripTrailingZeros().toPlainString();
+        return updateAll(BulkOperation.interest(percent, cap), actor, "Paid " + rate + "% interest"
+                + (cap == Long.MAX_VALUE ? "" : ", at most " + cap + ",") + " to every player");
+    }
+
+    @Override
+    public CompletableFuture<Long> resetAll(long balance) {
+        return resetAll(balance, null);
+    }
+
+    @Override
+    public CompletableFuture<Long> resetAll(long balance, @Nullable UUID actor) {
+        return updateAll(BulkOperation.reset(balance), actor, "Set every balance to " + balance);
+    }
+
+    /**
+     * Apply an operation to every balance in the database, rebasing each cached balance onto its updated row as soon
+     * as its chunk commits, while the database moves on to the next chunk. Changed balances are flushed first, so
+     * players whose rows are yet to be created are included and local changes are kept on top of the operation. The
+     * operation is recorded in the history once, rather than once per balance
+     */
+    private CompletableFuture<Long> updateAll(BulkOperation operation, @Nullable UUID actor, String reason) {
+        long delta = operation.type() == BulkOperation.Type.GIVE ? operation.amount() : 0;
+        return ready.thenCompose(v -> flush()).thenCompose(v -> database.updateAll(operation, (uuid, row) -> {
+            if (row.version() != VersionedBalance.UNKNOWN) {
+                rebase(uuid, row.balance(), row.version());
+                return;
+            }
+            // Until rows are versioned, a cached balance can't be rebased, so the operation is applied to it as well
+            BalanceCache.Account account = balances.get(uuid);
+            if (account == null) {
+                leaderboard.update(uuid, row.balance());
+                return;
+            }
+            synchronized (account) {
+                account.setBalance(operation.apply(account.getBalance()));
+            }
+            leaderboard.update(uuid, account.getBalance());
+        })).whenComplete((changed, e) -> history.record(actor, null, delta, 0,
+                reason + (e != null ? ", failed part way" : ", changed " + changed)));
+    }
+
+    @Override
+    public List<BalanceRow> getTopBalances(int offset, int limit) {
+        return leaderboard.page(offset, limit);
+    }
+
+    @Override
+    public OptionalInt getRank(@NotNull OfflinePlayer p) {
+        int rank = leaderboard.rank(p.getUniqueId());
+        return rank == 0 ? OptionalInt.empty() : OptionalInt.of(rank);
+    }
+
+    @Override
+    public boolean deposit(@NotNull OfflinePlayer p, long amount) {
+        if (amount < 0) throw new IllegalStateException("Unable to deposit negative amount");
+        // Retried only if the account was evicted since it was looked up
+        while (true) {
+            BalanceCache.Account account = balances.get(p.getUniqueId());
+            if (account == null) return false;
+            long balance;
+            // Read under the same lock, so the balance recorded is exactly the one this deposit left
+            synchronized (account) {
+                if (!account.deposit(amount)) {
+                    if (!account.isEvicted()) return false;
+                    continue;
+                }
+                balance = account.getBalance();
+            }
+            history.record(null, account.getUniqueId(), amount, balance, "Deposit");
+            return true;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> depositOffline(@NotNull OfflinePlayer p, long amount) {
+        if (amount < 0) throw new IllegalStateException("Unable to deposit negative amount");
+        UUID uuid = p.getUniqueId();
+        if (balances.contains(uuid)) {
+            if (deposit(p, amount)) return CompletableFuture.completedFuture(true);
+            // Still cached, so the balance would overflow, otherwise it was evicted and is changed in the database
+            if (balances.contains(uuid)) return CompletableFuture.completedFuture(false);
+        }
+        return ready.thenCompose(v -> database.applyDelta(uuid, amount, null)).thenCompose(applied -> {
+            if (!applied) {
+                // The player has no row yet, so they get one through the cache like a player joining for the first time
+                return loadPlayerBalance(uuid).thenApply(found -> {
+                    if (deposit(p, amount)) return true;
+                    // False is kept for an overflow, so a balance evicted again before the deposit is an error
+                    if (!balances.contains(uuid)) {
+                        throw new IllegalStateException("The balance of " + uuid + " was evicted before the deposit");
+                    }
+                    return false;
+                });
+            }
+            // Other servers learn of the change through the change log, as does this one should the player be cached
+            // meanwhile. The balance is read straight after, so a change made in between shows in the history
+            return database.getBalance(uuid).handle((balance, e) -> {
+                history.record(null, uuid, amount, balance == null ? 0 : balance.orElse(0), "Deposit");
+                return true;
+            });
+        });
+    }
+
+    @Override
+    public boolean withdraw(@NotNull OfflinePlayer p, long amount) {
+        if (amount < 0) throw new IllegalStateException("Unable to withdraw negative amount");
+        while (true) {
+            BalanceCache.Account account = balances.get(p.getUniqueId());
+            if (account == null) return false;
+            long balance;
+            synchronized (account) {
+                if (!account.withdraw(amount)) {
+                    if (!account.isEvicted()) return false;
+                    continue;
+                }
+                balance = account.getBalance();
+            }
+            history.record(null, account.getUniqueId(), -amount, balance, "Withdraw");
+            return true;
+        }
+    }
+
+    @Override
+    public boolean transfer(@NotNull OfflinePlayer from, @NotNull OfflinePlayer to, long amount) {
+        if (amount < 0) throw new IllegalStateException("Unable to transfer negative amount");
+        // Nothing would move, so it isn't reported or recorded as a transfer
+        if (from.getUniqueId().equals(to.getUniqueId())) return false;
+        while (true) {
+            BalanceCache.Account sender = balances.get(from.getUniqueId());
+            BalanceCache.Account receiver = balances.get(to.getUniqueId());
+            if (sender == null || receiver == null) return false;
+            if (BalanceCache.Account.transfer(sender, receiver, amount)) {
+                // Each side records the other as the actor. The balances are read straight after, unlike deposits
+                // they aren't read under the transfers locks, so a change made in between shows in them
+                history.record(receiver.getUniqueId(), sender.getUniqueId(), -amount, sender.getBalance(), "Transfer");
+                history.record(sender.getUniqueId(), receiver.getUniqueId(), amount, receiver.getBalance(), "Transfer");
+                return true;
+            }
+            if (!sender.isEvicted() && !receiver.isEvicted()) return false;
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<HistoryEntry>> getHistory(@NotNull OfflinePlayer p, long before, int limit) {
+        return history.flush().thenCompose(v -> database.getHistory(p.getUniqueId(), before, limit));
+    }
+
+    @Override
+    public CompletableFuture<@Nullable PlayerName> findPlayer(@NotNull String name) {
+        return names.find(name);
+    }
+
+    @Override
+    public void recordName(@NotNull UUID uuid, @NotNull String name) {
+        names.update(uuid, name);
+    }
+
+    @Override
+    public CompletableFuture<Map<UUID, String>> getNames(@NotNull Collection<UUID> uuids) {
+        return names.getNames(uuids);
+    }
+
+    @Override
+    public List<String> completeNames(@NotNull String prefix, int limit) {
+        return names.complete(prefix, limit);
+    }
+
+    @Override
+    public CompletableFuture<ArchiveResult> exportBalances(@NotNull String name) {
+        Path file = archiveFile(name);
+        if (!archiving.compareAndSet(false, true)) {
+            return CompletableFuture.failedFuture(new IllegalStateException("An export or import is already running"));
+        }
+        // Written under a temporary name and renamed once finished, so an archive is never found half written
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        long start = System.currentTimeMillis();
+        return ready.thenCompose(v -> flush()).thenCompose(v -> archives.supply(() -> {
+            if (Files.exists(file)) throw new IllegalStateException("An archive named '" + name + "' already exists");
+            try {
+                Files.createDirectories(file.getParent());
+                Files.deleteIfExists(partial);
+                return new BalanceArchive.Writer(partial);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        })).thenCompose(writer -> {
+            return database.forEachBalance(row -> {
+                try {
+                    writer.write(row.uuid(), row.balance());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).thenApply(rows -> {
+                try {
+                    writer.finish();
+                    writer.close();
+                    Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+                return new ArchiveResult(rows, writer.getBytes(), System.currentTimeMillis() - start);
+            }).whenComplete((result, e) -> {
+                if (e == null) return;
+                try {
+                    writer.close();
+                    Files.deleteIfExists(partial);
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Unable to delete the unfinished archive " + partial, ex);
+                }
+            });
+        }).whenComplete((result, e) -> {
+            archiving.set(false);
+            if (result != null) {
+                logger.log(Level.INFO, "Exported " + result.rows() + " balances to " + file + " in "
+                        + result.millis() + "ms, " + result.rowsPerSecond() + " balances/s");
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<ArchiveResult> importBalances(@NotNull String name, @Nullable UUID actor) {
+        Path file = archiveFile(name);
+        if (!archiving.compareAndSet(false, true)) {
+            return CompletableFuture.failedFuture(new IllegalStateException("An export or import is already running"));
+        }
+        int batchSize = config.getArchiveBatchSize();
+        long start = System.currentTimeMillis();
+        // Read through once to check it first, so a missing or corrupt archive imports nothing
+        CompletableFuture<Void> checked = ready.thenCompose(v -> archives.run(() -> {
+            // Without versions, other servers and cached balances never learn of the import, and would overwrite it
+            if (!database.isVersioned()) {
+                throw new IllegalStateException("Balances can't be imported until the economy table is versioned, "
+                        + "which happens in the background after an update");
+            }
+            if (!Files.exists(file)) throw new IllegalStateException("There is no archive named '" + name + "'");
+            try (BalanceArchive.Reader check = new BalanceArchive.Reader(file)) {
+                while (check.next()) {
+                    // Only checking
+                }
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }));
+        CompletableFuture<ArchiveResult> imported = checked.thenCompose(v -> archives.supply(() -> {
+            try {
+                return new BalanceArchive.Reader(file);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        })).thenCompose(reader -> {
+            return importBatches(reader, batchSize, CompletableFuture.completedFuture(null)).whenComplete((r, e) -> {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Unable to close the archive " + file, ex);
+                }
+            }).thenApply(r -> new ArchiveResult(reader.getRows(), reader.getSize(),
+                    System.currentTimeMillis() - start));
+        });
+        return imported.whenComplete((result, e) -> {
+            archiving.set(false);
+            if (result != null) {
+                logger.log(Level.INFO, "Imported " + result.rows() + " balances from " + file + " in "
+                        + result.millis() + "ms, " + result.rowsPerSecond() + " balances/s");
+                history.record(actor, null, 0, 0, "Imported balances from '" + name
+                        + "', changed " + result.rows());
+            } else if (!checked.isCompletedExceptionally()) {
+                history.record(actor, null, 0, 0, "Imported balances from '" + name
+                        + "', failed part way");
+            }
+        });
+    }
+
+    /**
+     * Save the rest of an archive in batches, reading each batch while the one before it commits, so at most two
+     * batches are held at once
+     *
+     * @param previous The save of the batch before
+     * @return Completed once every batch has been saved, or exceptionally once one has failed
+     */
+    private CompletableFuture<Void> importBatches(BalanceArchive.Reader reader, int batchSize,
+                                                  CompletableFuture<Void> previous) {
+        return archives.supply(() -> {
+            // In file order, which is uuid order for exported archives, so rows are appended along the primary key
+            Map<UUID, Long> batch = new LinkedHashMap<>();
+            try {
+                while (batch.size() < batchSize && reader.next()) {
+                    batch.put(reader.getUUID(), reader.getBalance());
+                }
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return batch;
+        }).handle((batch, e) -> {
+            // A batch that couldn't be read still waits for the one before it, so nothing is left committing
+            if (e != null) return previous.thenCompose(v -> CompletableFuture.<Void>failedFuture(e));
+            if (batch.isEmpty()) return previous;
+            return previous.thenCompose(v -> importBatches(reader, batchSize, database.saveBalances(batch)));
+        }).thenCompose(next -> next);
+    }
+
+    /**
+     * @return The file of an archive in the plugins backups folder
+     */
+    private Path archiveFile(String name) {
+        if (!name.matches("[A-Za-z0-9_-]{1,64}")) {
+            throw new IllegalStateException("Archive names may only use letters, digits, dashes and underscores, tried '"
+                    + name + "'");
+        }
+        return dataFolder.resolve("backups").resolve(name + BalanceArchive.EXTENSION);
+    }
+
+    /**
+     * Check whether a players balance is cached, without counting as a lookup
+     *
+     * @return False if it was never loaded, or has been evicted since
+     */
+    boolean isCached(@NotNull UUID uuid) {
+        return balances.contains(uuid);
     }
 
     /**
-     * Save the players balance, from cache
+     * Write every balance changed since the last flush to the database, in batches of at most the configured size.
+     * Repeated changes to the same balance are coalesced, only its latest value is written. Flushes run one at a
+     * time, this one starting once any flush already running has finished
      *
-     * @param uuid The uuid of the player to save
-     * @param after The runnable to trigger after the players balance is completely saved
+     * @return Completed once every batch has been attempted
+     */
+    public synchronized CompletableFuture<Void> flush() {
+        lastFlush = lastFlush.handle((v, e) -> null).thenCompose(v -> flushDirty());
+        return lastFlush;
+    }
+
+    /**
+     * Flush, unless a flush is still running, then evict idle balances. Eviction is part of the flush sequence, so
+     * it never sees an account whose dirty mark a running flush has cleared but not yet saved
+     */
+    private synchronized void flushIfIdle() {
+        if (!lastFlush.isDone() || !live) return;
+        lastFlush = flush().thenRun(() -> {
+            int evicted = balances.evict(config.getCacheMaximumSize(), config.getCacheOfflineTtl() * 1000L);
+            if (evicted > 0) {
+                logger.log(Level.FINE, "Evicted " + evicted + " cached balances");
+            }
+        });
+    }
+
+    /**
+     * Poll the change log for balances changed by other servers, unless a poll is still running
      */
-    private void savePlayerBalance(@NotNull UUID uuid, @Nullable Runnable after) {
-        CompletableFuture.runAsync(() -> {
-            if (balances.get(uuid) == null) return;
-            database.saveBalance(uuid, balances.get(uuid)).join();
-        }).thenRun(after);
+    private synchronized void pollIfIdle() {
+        if (!ready.isDone() || !checkLive() || !lastPoll.isDone()) return;
+        lastPoll = changes.poll().exceptionally(e -> {
+            logger.log(Level.WARNING, "Unable to read the economy change log, will retry", e);
+            return null;
+        });
     }
 
     /**
-     * Loads the players balance from the database, if present, otherwise caches and saves 0 as the players balance
+     * Track whether the database is reachable, checked as often as the change log is polled. While it isn't, nothing
+     * is flushed or polled, and changed balances stay marked dirty in the cache and recorded in the journal, one entry
+     * per player however often they change. Once it is reachable again, they are flushed in batches straight away
+     * rather than at the next interval
+     *
+     * @return True if the database is reachable
+     */
+    private synchronized boolean checkLive() {
+        boolean live = database.isLive();
+        if (live == this.live) return live;
+        this.live = live;
+        if (live) {
+            logger.log(Level.INFO, "The database is reachable again, saving " + balances.countDirty()
+                    + " changed balances");
+            flushIfIdle();
+        } else logger.log(Level.WARNING, "The database is unreachable, changed balances are kept until it is back");
+        return live;
+    }
+
+    /**
+     * Bring a cached balance up to date with a change from the log. A change this server saved confirms the save, any
+     * other is rebased onto, unless the cached balance is already as new
+     */
+    private void applyChange(BalanceChange change) {
+        BalanceCache.Account account = balances.get(change.uuid());
+        if (account == null || !change.local()) {
+            rebase(change.uuid(), change.balance(), change.version());
+            return;
+        }
+        account.endSave(change.balance(), change.version());
+        leaderboard.update(change.uuid(), account.getBalance());
+    }
+
+    /**
+     * Rebase a cached balance onto a newer balance of its database row, and rank the result
+     */
+    private void rebase(UUID uuid, long balance, long version) {
+        BalanceCache.Account account = balances.get(uuid);
+        if (account == null) {
+            leaderboard.update(uuid, balance);
+            return;
+        }
+        account.rebase(balance, version);
+        leaderboard.update(uuid, account.getBalance());
+    }
+
+    private CompletableFuture<Void> flushDirty() {
+        // Until the database is set up, changes stay in the journal to be replayed on the next start if need be
+        if (!ready.isDone()) return CompletableFuture.completedFuture(null);
+        // Every change journaled up to this point has already marked its account dirty, so once the accounts found
+        // dirty below are saved, the journal is confirmed up to here
+        long checkpoint = journal.lastSequence();
+        AtomicBoolean failed = new AtomicBoolean();
+        int maxBatchSize = config.getFlushMaxBatchSize();
+        List<Map<UUID, VersionedBalance>> batches = new ArrayList<>();
+        Map<UUID, VersionedBalance> batch = new HashMap<>();
+        for (BalanceCache.Account account : balances) {
+            // Unmark before reading, so a change made after this point marks the balance dirty again
+            if (!account.clearDirty()) continue;
+            VersionedBalance balance = account.beginSave();
+            batch.put(account.getUniqueId(), balance);
+            leaderboard.update(account.getUniqueId(), balance.balance());
+            if (batch.size() >= maxBatchSize) {
+                batches.add(batch);
+                batch = new HashMap<>();
+            }
+        }
+        if (!batch.isEmpty()) batches.add(batch);
+        // Saved one batch after another, so the batches of a flush never deadlock with each other over the change log
+        CompletableFuture<Void> saves = CompletableFuture.completedFuture(null);
+        for (Map<UUID, VersionedBalance> next : batches) {
+            saves = saves.thenCompose(v -> saveBatch(next, failed));
+        }
+        return saves.thenRun(() -> {
+            if (failed.get()) return;
+            try {
+                journal.confirm(checkpoint);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Unable to checkpoint the transaction journal", e);
+            }
+        });
+    }
+
+    /**
+     * Rank every balance in the database, reading them richest first one page at a time. Balances ranked while the
+     * rebuild runs are newer than the database, so they are kept
+     *
+     * @param after The last row of the previous page, or null to start from the richest
+     * @return Completed once every page has been read
+     */
+    private CompletableFuture<Void> rebuildLeaderboard(@Nullable BalanceRow after) {
+        return database.getBalancesByRank(after, LEADERBOARD_PAGE_SIZE).thenCompose(rows -> {
+            rows.forEach(row -> leaderboard.offer(row.uuid(), row.balance()));
+            if (rows.size() < LEADERBOARD_PAGE_SIZE) return CompletableFuture.completedFuture(null);
+            return rebuildLeaderboard(rows.get(rows.size() - 1));
+        });
+    }
+
+    /**
+     * Cache the balances of changes recorded in the journal but never confirmed in the database, marked dirty so
+     * the next flush writes them. Each is checked against its row first:
+     * <ul>
+     *     <li>A row still at the version the change was made to is saved as a versioned write, so a write another
+     *     server makes meanwhile is rebased onto rather than overwritten</li>
+     *     <li>A row one version on holding exactly the journaled balance was saved just before the server stopped,
+     *     so there is nothing to replay</li>
+     *     <li>A row changed any other way may or may not hold the change already, so it is refused with a warning
+     *     rather than risk applying it twice or rolling back another server's write</li>
+     * </ul>
+     * Changes whose row version was never known are saved as is, as they would have been, if the rows aren't
+     * versioned, and refused otherwise
+     *
+     * @return Completed once every change is cached or refused, never exceptionally
+     */
+    private CompletableFuture<Void> replayJournal() {
+        if (unreplayed.isEmpty()) return CompletableFuture.completedFuture(null);
+        logger.log(Level.WARNING, "Replaying " + unreplayed.size() + " unsaved balances from the transaction journal");
+        return database.getBalances(unreplayed.keySet()).handle((rows, e) -> {
+            if (e != null) {
+                // Still versioned writes, only an earlier save that landed can't be told apart from another server's
+                logger.log(Level.WARNING, "Unable to read the rows of the unsaved balances, replaying them unchecked "
+                        + "against their saves before the server stopped", e);
+                rows = Map.of();
+            }
+            int refused = 0;
+            for (Map.Entry<UUID, TransactionJournal.Entry> change : unreplayed.entrySet()) {
+                if (!replay(change.getKey(), change.getValue(), e == null, rows.get(change.getKey()))) refused++;
+            }
+            if (refused > 0) {
+                logger.log(Level.WARNING, "Refused " + refused + " unsaved balances whose rows were changed since, "
+                        + "check the balances above by hand");
+            }
+            unreplayed.clear();
+            return null;
+        });
+    }
+
+    /**
+     * Cache one change recovered from the journal, unless its row shows it can't be safely saved
+     *
+     * @param checked Whether the row was read, otherwise it is assumed unchanged
+     * @param row     The row as read, or null if there is none
+     * @return False if the change was refused
+     */
+    private boolean replay(UUID uuid, TransactionJournal.Entry change, boolean checked,
+                           @Nullable VersionedBalance row) {
+        // Journaled by an older version, which didn't record the row version
+        long version = change.version() == TransactionJournal.Entry.LEGACY
+                ? VersionedBalance.UNKNOWN
+                : change.version();
+        long rowVersion = !checked ? version : row == null ? VersionedBalance.ABSENT : row.version();
+        if (rowVersion == VersionedBalance.UNKNOWN) {
+            // The rows aren't versioned, so every save is unchecked anyway
+            balances.putIfAbsent(uuid, change.balance()).markDirty();
+            return true;
+        }
+        if (version == rowVersion) {
+            balances.restore(uuid, change.balance(), change.base(), version);
+            return true;
+        }
+        if (version >= 0 && row != null && rowVersion == version + 1 && row.balance() == change.balance()) return true;
+        if (rowVersion == VersionedBalance.ABSENT) {
+            // Nobody has written the row, however the change was journaled
+            balances.restore(uuid, change.balance(), change.balance(), VersionedBalance.ABSENT);
+            return true;
+        }
+        logger.log(Level.WARNING, "Not replaying the unsaved balance " + change.balance() + " of " + uuid + ", its row "
+                + "was changed to " + (row == null ? "nothing" : row.balance()) + " since");
+        return false;
+    }
+
+    /**
+     * Stop the periodic flush, write any remaining changes and close the database
+     */
+    public void shutdown() {
+        flushTask.cancel();
+        pollTask.cancel();
+        historyTask.cancel();
+        logger.log(Level.INFO, "Saving " + balances.countDirty() + " changed balances...");
+        flush().join();
+        history.close(ready.isDone()).join();
+        archives.shutdown(0, TimeUnit.SECONDS);
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Unable to close the transaction journal", e);
+        }
+        database.close();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(METRICS_NAME));
+        } catch (JMException ignored) {
+        }
+    }
+
+    /**
+     * Expose the metrics over JMX, replacing any left registered by a previous load of the plugin
+     */
+    private void registerMetrics() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(METRICS_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(metrics, name);
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Unable to expose economy metrics over JMX", e);
+        }
+    }
+
+    /**
+     * Save a batch of balances, each only if no other server has changed it since it was read. Changed balances are
+     * rebased onto the other servers change and left for the next flush
+     */
+    private CompletableFuture<Void> saveBatch(Map<UUID, VersionedBalance> batch, AtomicBoolean failed) {
+        return database.compareAndSaveBalances(batch).thenCompose(saved -> {
+            List<CompletableFuture<Void>> rebases = new ArrayList<>();
+            batch.forEach((uuid, balance) -> {
+                BalanceCache.Account account = balances.get(uuid);
+                Long version = saved.get(uuid);
+                if (version != null) {
+                    if (account != null) account.endSave(balance.balance(), version);
+                    return;
+                }
+                failed.set(true);
+                if (account == null) return;
+                account.failSave();
+                account.markDirty();
+                rebases.add(rebase(account));
+            });
+            if (!rebases.isEmpty()) {
+                logger.log(Level.FINE, rebases.size() + " balances were changed by another server, rebasing");
+            }
+            return CompletableFuture.allOf(rebases.toArray(CompletableFuture[]::new));
+        }).exceptionally(e -> {
+            // Leave the balances to be retried by the next flush
+            failed.set(true);
+            batch.keySet().forEach(uuid -> {
+                BalanceCache.Account account = balances.get(uuid);
+                if (account == null) return;
+                account.failSave();
+                account.markDirty();
+            });
+            logger.log(Level.SEVERE, "Unable to save " + batch.size() + " balances, will retry", e);
+            return null;
+        });
+    }
+
+    /**
+     * Rebase an account onto the balance its database row holds now
+     */
+    private CompletableFuture<Void> rebase(BalanceCache.Account account) {
+        return loader.load(account.getUniqueId()).handle((row, e) -> {
+            // If unread, the next flush finds the row changed again and retries
+            if (e != null) return null;
+            if (row == null) {
+                account.forgetVersion();
+            } else account.rebase(row.balance(), row.version());
+            return null;
+        });
+    }
+
+    /**
+     * Load the balance of a player who is logging in. A new players row is created by the next flush, batched with
+     * other writes, rather than by a second round trip now
      *
      * @param uuid The uuid to load the balance of
-     * @param after The runnable to trigger after the players balance is completely loaded
-     */
-    private void loadPlayerBalance(@NotNull UUID uuid, @Nullable Runnable after) {
-        CompletableFuture.runAsync(() -> {
-            Long balance = database.getBalance(uuid).join();
-            if (balance == null) {
-                database.saveBalance(uuid, 0).join();
-                balances.put(uuid, 0L);
-            } else balances.put(uuid, balance);
-        }).thenRun(after);
+     * @return Completed once the players balance is cached, or exceptionally if it couldn't be loaded
+     */
+    private CompletableFuture<Void> loadJoiningBalance(@NotNull UUID uuid) {
+        return loadPlayerBalance(uuid).thenAccept(found -> {
+            if (found) return;
+            BalanceCache.Account account = balances.get(uuid);
+            if (account != null) account.markDirty();
+            leaderboard.update(uuid, 0);
+        });
+    }
+
+    /**
+     * Loads the players balance from the database, if present, otherwise caches 0 as the players balance. A balance
+     * that is already cached is kept, as it may hold changes the database hasn't received yet. Concurrent loads of the
+     * same player share one query, and loads of different players made together are batched into one
+     *
+     * @param uuid The uuid to load the balance of
+     * @return Completed with whether the player has a row in the database once their balance is cached, or
+     * exceptionally if it couldn't be loaded
+     */
+    private CompletableFuture<Boolean> loadPlayerBalance(@NotNull UUID uuid) {
+        if (balances.contains(uuid)) return CompletableFuture.completedFuture(true);
+        CompletableFuture<Boolean> load = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = loading.putIfAbsent(uuid, load);
+        if (existing != null) return existing;
+        ready.thenCompose(v -> {
+            if (balances.contains(uuid)) return CompletableFuture.completedFuture(true);
+            return loader.load(uuid).thenApply(row -> {
+                if (row == null) {
+                    balances.putIfAbsent(uuid, 0, VersionedBalance.ABSENT);
+                    return false;
+                }
+                balances.putIfAbsent(uuid, row.balance(), row.version());
+                leaderboard.update(uuid, row.balance());
+                return true;
+            });
+        }).whenComplete((found, e) -> {
+            loading.remove(uuid, load);
+            if (e != null) {
+                load.completeExceptionally(e);
+            } else load.complete(found);
+        });
+        return load;
     }
 
 }
@@ -0,0 +1,296 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counters and latency histograms for the cache and every database call. Recording never locks or allocates, so the
+ * metrics are always on
+ */
+public class EconomyMetrics implements EconomyMetricsMXBean {
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final AtomicInteger inFlightCalls = new AtomicInteger();
+    private final AtomicInteger inFlightWrites = new AtomicInteger();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final IntSupplier cacheSize, pendingWrites;
+    private volatile ConnectionPool pool;
+    private volatile DatabaseExecutor executor;
+    private volatile CircuitBreaker breaker;
+    private volatile HistoryLog history;
+
+    /**
+     * @param cacheSize     Counts the cached balances
+     * @param pendingWrites Counts the cached balances waiting to be flushed
+     */
+    EconomyMetrics(@NotNull IntSupplier cacheSize, @NotNull IntSupplier pendingWrites) {
+        this.cacheSize = cacheSize;
+        this.pendingWrites = pendingWrites;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Report connection wait times and reconnects from a connection pool
+     *
+     * @param pool The pool, or null if the database has none
+     */
+    void setPool(@Nullable ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Report queued calls from a database executor
+     *
+     * @param executor The executor, or null if the database has none
+     */
+    void setExecutor(@Nullable DatabaseExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Report the state of a circuit breaker
+     *
+     * @param breaker The breaker, or null if the database has none
+     */
+    void setBreaker(@Nullable CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    /**
+     * Report queued and dropped entries of a transaction history log
+     *
+     * @param history The history log
+     */
+    void setHistory(@Nullable HistoryLog history) {
+        this.history = history;
+    }
+
+    /**
+     * Record the start of a database call
+     *
+     * @param operation The operation called
+     * @return The start time, to pass to {@link #end(Operation, long)}
+     */
+    long start(@NotNull Operation operation) {
+        inFlightCalls.incrementAndGet();
+        if (operation.write) inFlightWrites.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the completion of a database call, successful or not
+     *
+     * @param operation  The operation called
+     * @param startNanos The time returned by {@link #start(Operation)}
+     */
+    void end(@NotNull Operation operation, long startNanos) {
+        latencies[operation.ordinal()].recordSince(startNanos);
+        inFlightCalls.decrementAndGet();
+        if (operation.write) inFlightWrites.decrementAndGet();
+    }
+
+    void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long hits = cacheHits.sum(), total = hits + cacheMisses.sum();
+        return total == 0 ? 1 : hits / (double) total;
+    }
+
+    @Override
+    public int getCacheSize() {
+        return cacheSize.getAsInt();
+    }
+
+    @Override
+    public int getPendingWrites() {
+        return pendingWrites.getAsInt();
+    }
+
+    @Override
+    public int getInFlightCalls() {
+        return inFlightCalls.get();
+    }
+
+    @Override
+    public int getInFlightWrites() {
+        return inFlightWrites.get();
+    }
+
+    @Override
+    public int getQueuedCalls() {
+        DatabaseExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getQueued();
+    }
+
+    @Override
+    public double getConnectionWaitP99() {
+        ConnectionPool pool = this.pool;
+        return pool == null ? 0 : toMillis(pool.getWaitTimes().getPercentile(99));
+    }
+
+    @Override
+    public int getConnectionsInUse() {
+        ConnectionPool pool = this.pool;
+        // Read one after the other, so a connection moving between them may be missed for a moment
+        return pool == null ? 0 : Math.max(0, pool.getTotalConnections() - pool.getIdleConnections());
+    }
+
+    @Override
+    public long getReconnects() {
+        ConnectionPool pool = this.pool;
+        return pool == null ? 0 : pool.getReconnects();
+    }
+
+    @Override
+    public boolean isCircuitOpen() {
+        CircuitBreaker breaker = this.breaker;
+        return breaker != null && breaker.isOpen();
+    }
+
+    @Override
+    public long getCircuitOpens() {
+        CircuitBreaker breaker = this.breaker;
+        return breaker == null ? 0 : breaker.getOpens();
+    }
+
+    @Override
+    public int getPendingHistory() {
+        HistoryLog history = this.history;
+        return history == null ? 0 : history.getPending();
+    }
+
+    @Override
+    public long getDroppedHistory() {
+        HistoryLog history = this.history;
+        return history == null ? 0 : history.getDropped();
+    }
+
+    @Override
+    public Map<String, Long> getCallCounts() {
+        return byOperation(LatencyHistogram::getCount);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50() {
+        return toMillis(byOperation(histogram -> histogram.getPercentile(50)));
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99() {
+        return toMillis(byOperation(histogram -> histogram.getPercentile(99)));
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMax() {
+        return toMillis(byOperation(LatencyHistogram::getMax));
+    }
+
+    /**
+     * Describe the latencies of one operation, e.g for a command
+     *
+     * @param operation The operation
+     * @return The count, 50th and 99th percentiles and maximum
+     */
+    public String describe(@NotNull Operation operation) {
+        return latencies[operation.ordinal()].summary();
+    }
+
+    /**
+     * Describe the time spent waiting for pooled connections, e.g for a command
+     *
+     * @return The count, 50th and 99th percentiles and maximum, or null if the database has no connection pool
+     */
+    public @Nullable String describeConnectionWaits() {
+        ConnectionPool pool = this.pool;
+        return pool == null ? null : pool.getWaitTimes().summary();
+    }
+
+    private Map<String, Long> byOperation(ToLongFunction<LatencyHistogram> value) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            values.put(operation.getName(), value.applyAsLong(latencies[operation.ordinal()]));
+        }
+        return values;
+    }
+
+    private static Map<String, Double> toMillis(Map<String, Long> nanos) {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        nanos.forEach((name, value) -> millis.put(name, toMillis(value)));
+        return millis;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    /**
+     * The database operations measured
+     */
+    public enum Operation {
+
+        GET_UUIDS("getUUIDs", false),
+        FOR_EACH_BALANCE("forEachBalance", false),
+        GET_BALANCE("getBalance", false),
+        GET_VERSIONED_BALANCE("getVersionedBalance", false),
+        GET_BALANCES("getBalances", false),
+        GET_BALANCES_BY_RANK("getBalancesByRank", false),
+        SAVE_BALANCE("saveBalance", true),
+        SAVE_BALANCES("saveBalances", true),
+        COMPARE_AND_SAVE_BALANCES("compareAndSaveBalances", true),
+        APPLY_DELTA("applyDelta", true),
+        TRANSFER("transfer", true),
+        UPDATE_ALL("updateAll", true),
+        GET_LAST_CHANGE_ID("getLastChangeId", false),
+        GET_CHANGES("getChanges", false),
+        RECORD_HISTORY("recordHistory", true),
+        GET_HISTORY("getHistory", false),
+        SAVE_NAME("saveName", true),
+        FIND_NAME("findName", false),
+        FIND_NAMES_BY_PREFIX("findNamesByPrefix", false),
+        GET_NAMES("getNames", false);
+
+        private final String name;
+        private final boolean write;
+
+        Operation(String name, boolean write) {
+            this.name = name;
+            this.write = write;
+        }
+
+        /**
+         * @return The name of the {@link EconomyDatabase} method
+         */
+        public String getName() {
+            return name;
+        }
+
+    }
+
+}
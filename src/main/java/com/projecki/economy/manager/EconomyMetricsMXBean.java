@@ -0,0 +1,107 @@
+package com.projecki.economy.manager;
+
+import java.util.Map;
+
+/**
+ * The economy metrics as exposed over JMX, under {@code com.projecki.economy:type=Metrics}. Latencies are in
+ * milliseconds
+ */
+public interface EconomyMetricsMXBean {
+
+    /**
+     * @return The number of balance lookups answered from the cache
+     */
+    long getCacheHits();
+
+    /**
+     * @return The number of balance lookups that had to load from the database
+     */
+    long getCacheMisses();
+
+    /**
+     * @return The fraction of balance lookups answered from the cache, from 0 to 1
+     */
+    double getCacheHitRate();
+
+    /**
+     * @return The number of cached balances
+     */
+    int getCacheSize();
+
+    /**
+     * @return The number of cached balances with changes waiting for the next flush
+     */
+    int getPendingWrites();
+
+    /**
+     * @return The number of database calls started but not yet completed
+     */
+    int getInFlightCalls();
+
+    /**
+     * @return The number of database writes started but not yet completed
+     */
+    int getInFlightWrites();
+
+    /**
+     * @return The number of database calls waiting for a database thread
+     */
+    int getQueuedCalls();
+
+    /**
+     * @return The 99th percentile time spent waiting for a pooled database connection
+     */
+    double getConnectionWaitP99();
+
+    /**
+     * @return The number of pooled database connections borrowed by a call and not yet returned
+     */
+    int getConnectionsInUse();
+
+    /**
+     * @return The number of database connections dropped after failing, each replaced by a new connection
+     */
+    long getReconnects();
+
+    /**
+     * @return True while database calls are refused because the database is unreachable
+     */
+    boolean isCircuitOpen();
+
+    /**
+     * @return The number of times database calls started being refused because the database was unreachable
+     */
+    long getCircuitOpens();
+
+    /**
+     * @return The number of transaction history entries waiting to be written
+     */
+    int getPendingHistory();
+
+    /**
+     * @return The number of transaction history entries dropped because too many were waiting to be written, or they
+     * weren't written by shutdown
+     */
+    long getDroppedHistory();
+
+    /**
+     * @return The number of calls made, keyed by database operation
+     */
+    Map<String, Long> getCallCounts();
+
+    /**
+     * @return The 50th percentile latency, keyed by database operation
+     */
+    Map<String, Double> getLatencyP50();
+
+    /**
+     * @return The 99th percentile latency, keyed by database operation
+     */
+    Map<String, Double> getLatencyP99();
+
+    /**
+     * @return The highest latency, keyed by database operation
+     */
+    Map<String, Double> getLatencyMax();
+
+}
@@ -0,0 +1,48 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+
+/**
+ * An entry of the transaction history, recorded for every change made to a balance through the engine
+ *
+ * @param id      The id of the entry, increasing with every entry written, or 0 until written
+ * @param time    When the change was made, in epoch milliseconds
+ * @param actor   The uuid of the other player involved, such as the admin who set the balance or the other side of a
+ *                transfer, or null for the console and plugins
+ * @param target  The uuid of the player whose balance changed, or null for a change to every balance
+ * @param delta   The amount added to the balance, negative if taken, or for a change to every balance the amount
+ *                given to each player, 0 if it differs between them
+ * @param balance The balance after the change, or 0 for a change to every balance
+ * @param reason  What made the change, at most {@link #MAX_REASON_LENGTH} characters
+ */
+public record HistoryEntry(long id, long time, @Nullable UUID actor, @Nullable UUID target, long delta, long balance,
+                           @NotNull String reason) {
+
+    /**
+     * The longest reason kept, longer reasons are cut short
+     */
+    public static final int MAX_REASON_LENGTH = 255;
+
+    public HistoryEntry {
+        if (reason.length() > MAX_REASON_LENGTH) reason = reason.substring(0, MAX_REASON_LENGTH);
+    }
+
+    /**
+     * Record a change made now, to be given an id once written
+     *
+     * @param actor   The uuid of the other player involved, or null for the console and plugins
+     * @param target  The uuid of the player whose balance changed, or null for a change to every balance
+     * @param delta   The amount added to the balance, negative if taken
+     * @param balance The balance after the change
+     * @param reason  What made the change
+     * @return The entry
+     */
+    public static HistoryEntry of(@Nullable UUID actor, @Nullable UUID target, long delta, long balance,
+                                  @NotNull String reason) {
+        return new HistoryEntry(0, System.currentTimeMillis(), actor, target, delta, balance, reason);
+    }
+
+}
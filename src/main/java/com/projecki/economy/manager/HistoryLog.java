@@ -0,0 +1,174 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Appends transaction history entries to the database in the background, so recording one never waits on the
+ * database.
+ * <p>
+ * Entries wait in a bounded queue, and are written in batches of up to the batch size by one flush at a time. A batch
+ * that fails is kept and written first by the next flush. While the database is unreachable the queue fills, after
+ * which new entries are dropped, counted and logged rather than holding up the balance change recording them.
+ * Entries that couldn't be written by shutdown are dropped the same way.
+ */
+class HistoryLog {
+
+    private static final long DROP_WARNING_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final EconomyDatabase database;
+    private final Logger logger;
+    private final BlockingQueue<HistoryEntry> queue;
+    private final int batchSize;
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong nextDropWarning = new AtomicLong();
+    private CompletableFuture<Void> lastFlush = CompletableFuture.completedFuture(null);
+    /**
+     * A batch that failed to write, retried first by the next flush. Only changed by the flush running
+     */
+    private volatile List<HistoryEntry> failed;
+
+    /**
+     * @param database  The database to write to
+     * @param logger    The logger to report failures to
+     * @param queueSize The most entries waiting to be written
+     * @param batchSize The most entries written at once
+     */
+    HistoryLog(@NotNull EconomyDatabase database, @NotNull Logger logger, int queueSize, int batchSize) {
+        this.database = database;
+        this.logger = logger;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Record a change made now, to be written by a later flush, or dropped if the queue is full
+     *
+     * @param actor   The uuid of the other player involved, or null for the console and plugins
+     * @param target  The uuid of the player whose balance changed, or null for a change to every balance
+     * @param delta   The amount added to the balance, negative if taken
+     * @param balance The balance after the change
+     * @param reason  What made the change
+     */
+    void record(@Nullable UUID actor, @Nullable UUID target, long delta, long balance, @NotNull String reason) {
+        HistoryEntry entry = new HistoryEntry(0, System.currentTimeMillis(), actor, target, delta, balance, reason);
+        if (queue.offer(entry)) return;
+        dropped.increment();
+        long now = System.currentTimeMillis(), next = nextDropWarning.get();
+        if (now >= next && nextDropWarning.compareAndSet(next, now + DROP_WARNING_INTERVAL_MILLIS)) {
+            logger.log(Level.WARNING, "The transaction history queue is full, dropped " + dropped.sum()
+                    + " entries so far");
+        }
+    }
+
+    /**
+     * Write every entry recorded up to now, starting once any flush already running has finished
+     *
+     * @return Completed once every entry has been attempted
+     */
+    synchronized CompletableFuture<Void> flush() {
+        int queued = queue.size();
+        lastFlush = lastFlush.handle((v, e) -> null).thenCompose(v -> write(queued)).thenApply(written -> null);
+        return lastFlush;
+    }
+
+    /**
+     * Flush, unless a flush is still running or the database is unreachable
+     */
+    synchronized void flushIfIdle() {
+        if (!lastFlush.isDone() || !database.isLive()) return;
+        if (queue.isEmpty() && failed == null) return;
+        flush();
+    }
+
+    /**
+     * Write the entries still waiting, after the batch being written, and drop any that couldn't be. Call once nothing
+     * is recorded any more
+     *
+     * @param write Whether to write the entries waiting first, rather than only drop them
+     * @return Completed once every entry is written or dropped
+     */
+    synchronized CompletableFuture<Void> close(boolean write) {
+        CompletableFuture<Void> last = lastFlush.handle((v, e) -> null);
+        if (write) {
+            last = last.thenCompose(v -> write(Integer.MAX_VALUE)).handle((v, e) -> null);
+        }
+        lastFlush = last.thenRun(() -> {
+            List<HistoryEntry> failed = this.failed;
+            this.failed = null;
+            int lost = queue.size() + (failed == null ? 0 : failed.size());
+            queue.clear();
+            if (lost == 0) return;
+            dropped.add(lost);
+            logger.log(Level.WARNING, "Dropped " + lost + " transaction history entries that couldn't be written "
+                    + "before shutdown");
+        });
+        return lastFlush;
+    }
+
+    /**
+     * @return The number of entries waiting to be written
+     */
+    int getPending() {
+        List<HistoryEntry> failed = this.failed;
+        return queue.size() + (failed == null ? 0 : failed.size());
+    }
+
+    /**
+     * @return The number of entries dropped because the queue was full, or they weren't written by shutdown
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Write batches until the given number of entries have been taken from the queue, after any failed batch
+     *
+     * @return Completed with whether every batch was written
+     */
+    private CompletableFuture<Boolean> write(int remaining) {
+        List<HistoryEntry> batch = failed;
+        failed = null;
+        int left = remaining;
+        if (batch == null) {
+            if (remaining <= 0) return CompletableFuture.completedFuture(true);
+            batch = new ArrayList<>(Math.min(remaining, batchSize));
+            queue.drainTo(batch, Math.min(remaining, batchSize));
+            if (batch.isEmpty()) return CompletableFuture.completedFuture(true);
+            left -= batch.size();
+        }
+        int next = left;
+        return writeBatch(batch).thenCompose(ok -> ok ? write(next) : CompletableFuture.completedFuture(false));
+    }
+
+    /**
+     * @return Completed with whether the batch was written, kept as the failed batch if not
+     */
+    private CompletableFuture<Boolean> writeBatch(List<HistoryEntry> batch) {
+        CompletableFuture<Void> write;
+        try {
+            write = database.recordHistory(batch);
+        } catch (RuntimeException e) {
+            write = CompletableFuture.failedFuture(e);
+        }
+        return write.handle((v, e) -> {
+            if (e == null) return true;
+            failed = batch;
+            logger.log(Level.WARNING, "Unable to write " + batch.size() + " transaction history entries, will retry", e);
+            return false;
+        });
+    }
+
+}
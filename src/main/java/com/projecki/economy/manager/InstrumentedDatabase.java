@@ -0,0 +1,189 @@
+package com.projecki.economy.manager;
+
+import com.projecki.economy.manager.EconomyMetrics.Operation;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Measures every call to another database, from the call until its result completes
+ */
+class InstrumentedDatabase implements EconomyDatabase {
+
+    private final EconomyDatabase database;
+    private final EconomyMetrics metrics;
+
+    /**
+     * @param database The database to measure
+     * @param metrics  The metrics to record into
+     */
+    InstrumentedDatabase(@NotNull EconomyDatabase database, @NotNull EconomyMetrics metrics) {
+        this.database = database;
+        this.metrics = metrics;
+    }
+
+    @Override
+    @Deprecated
+    @SuppressWarnings("deprecation")
+    public CompletableFuture<Set<UUID>> getUUIDs() {
+        long start = metrics.start(Operation.GET_UUIDS);
+        return measure(Operation.GET_UUIDS, start, database.getUUIDs());
+    }
+
+    @Override
+    public CompletableFuture<Long> forEachBalance(Consumer<? super BalanceRow> consumer) {
+        long start = metrics.start(Operation.FOR_EACH_BALANCE);
+        return measure(Operation.FOR_EACH_BALANCE, start, database.forEachBalance(consumer));
+    }
+
+    @Override
+    public CompletableFuture<OptionalLong> getBalance(UUID uuid) {
+        long start = metrics.start(Operation.GET_BALANCE);
+        return measure(Operation.GET_BALANCE, start, database.getBalance(uuid));
+    }
+
+    @Override
+    public CompletableFuture<@Nullable VersionedBalance> getVersionedBalance(UUID uuid) {
+        long start = metrics.start(Operation.GET_VERSIONED_BALANCE);
+        return measure(Operation.GET_VERSIONED_BALANCE, start, database.getVersionedBalance(uuid));
+    }
+
+    @Override
+    public CompletableFuture<Map<UUID, VersionedBalance>> getBalances(Collection<UUID> uuids) {
+        long start = metrics.start(Operation.GET_BALANCES);
+        return measure(Operation.GET_BALANCES, start, database.getBalances(uuids));
+    }
+
+    @Override
+    public CompletableFuture<List<BalanceRow>> getBalancesByRank(@Nullable BalanceRow after, int limit) {
+        long start = metrics.start(Operation.GET_BALANCES_BY_RANK);
+        return measure(Operation.GET_BALANCES_BY_RANK, start, database.getBalancesByRank(after, limit));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveBalance(UUID uuid, long balance) {
+        long start = metrics.start(Operation.SAVE_BALANCE);
+        return measure(Operation.SAVE_BALANCE, start, database.saveBalance(uuid, balance));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveBalances(Map<UUID, Long> balances) {
+        long start = metrics.start(Operation.SAVE_BALANCES);
+        return measure(Operation.SAVE_BALANCES, start, database.saveBalances(balances));
+    }
+
+    @Override
+    public CompletableFuture<Map<UUID, Long>> compareAndSaveBalances(Map<UUID, VersionedBalance> balances) {
+        long start = metrics.start(Operation.COMPARE_AND_SAVE_BALANCES);
+        return measure(Operation.COMPARE_AND_SAVE_BALANCES, start, database.compareAndSaveBalances(balances));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> applyDelta(UUID uuid, long delta, @Nullable String idempotencyKey) {
+        long start = metrics.start(Operation.APPLY_DELTA);
+        return measure(Operation.APPLY_DELTA, start, database.applyDelta(uuid, delta, idempotencyKey));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> transfer(UUID from, UUID to, long amount, @Nullable String idempotencyKey) {
+        long start = metrics.start(Operation.TRANSFER);
+        try {
+            return measure(Operation.TRANSFER, start, database.transfer(from, to, amount, idempotencyKey));
+        } catch (RuntimeException e) {
+            // Invalid arguments are rejected before any future exists
+            metrics.end(Operation.TRANSFER, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> updateAll(BulkOperation operation, BiConsumer<UUID, VersionedBalance> consumer) {
+        long start = metrics.start(Operation.UPDATE_ALL);
+        return measure(Operation.UPDATE_ALL, start, database.updateAll(operation, consumer));
+    }
+
+    @Override
+    public CompletableFuture<Long> getLastChangeId() {
+        long start = metrics.start(Operation.GET_LAST_CHANGE_ID);
+        return measure(Operation.GET_LAST_CHANGE_ID, start, database.getLastChangeId());
+    }
+
+    @Override
+    public CompletableFuture<List<BalanceChange>> getChanges(long after, int limit) {
+        long start = metrics.start(Operation.GET_CHANGES);
+        return measure(Operation.GET_CHANGES, start, database.getChanges(after, limit));
+    }
+
+    @Override
+    public CompletableFuture<List<BalanceChange>> getChanges(Collection<Long> ids) {
+        long start = metrics.start(Operation.GET_CHANGES);
+        return measure(Operation.GET_CHANGES, start, database.getChanges(ids));
+    }
+
+    @Override
+    public CompletableFuture<Void> recordHistory(List<HistoryEntry> entries) {
+        long start = metrics.start(Operation.RECORD_HISTORY);
+        return measure(Operation.RECORD_HISTORY, start, database.recordHistory(entries));
+    }
+
+    @Override
+    public CompletableFuture<List<HistoryEntry>> getHistory(UUID target, long before, int limit) {
+        long start = metrics.start(Operation.GET_HISTORY);
+        return measure(Operation.GET_HISTORY, start, database.getHistory(target, before, limit));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveName(UUID uuid, String name) {
+        long start = metrics.start(Operation.SAVE_NAME);
+        return measure(Operation.SAVE_NAME, start, database.saveName(uuid, name));
+    }
+
+    @Override
+    public CompletableFuture<@Nullable PlayerName> findName(String name) {
+        long start = metrics.start(Operation.FIND_NAME);
+        return measure(Operation.FIND_NAME, start, database.findName(name));
+    }
+
+    @Override
+    public CompletableFuture<List<PlayerName>> findNamesByPrefix(String prefix, int limit) {
+        long start = metrics.start(Operation.FIND_NAMES_BY_PREFIX);
+        return measure(Operation.FIND_NAMES_BY_PREFIX, start, database.findNamesByPrefix(prefix, limit));
+    }
+
+    @Override
+    public CompletableFuture<Map<UUID, String>> getNames(Collection<UUID> uuids) {
+        long start = metrics.start(Operation.GET_NAMES);
+        return measure(Operation.GET_NAMES, start, database.getNames(uuids));
+    }
+
+    @Override
+    public boolean isVersioned() {
+        return database.isVersioned();
+    }
+
+    @Override
+    public boolean isLive() {
+        return database.isLive();
+    }
+
+    @Override
+    public void close() {
+        database.close();
+    }
+
+    private <T> CompletableFuture<T> measure(Operation operation, long start, CompletableFuture<T> result) {
+        // Recorded on completion, but the result is returned as is, so callers chain on the original future
+        result.whenComplete((value, e) -> metrics.end(operation, start));
+        return result;
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.projecki.economy.manager;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, safe to record into from any thread without locking or allocating.
+ * <p>
+ * Like an HDR histogram, buckets are log-linear: every power of two is split into 16 equal buckets, so any recorded
+ * latency is reported within about 6% of its true value, from nanoseconds to centuries, in a fixed 8KB of counters.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency
+     *
+     * @param nanos The latency in nanoseconds, negative latencies are recorded as 0
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Record the time elapsed since a start time
+     *
+     * @param startNanos The start time, from {@link System#nanoTime()}
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return The number of latencies recorded
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The mean latency in nanoseconds, or 0 if none were recorded
+     */
+    long getMean() {
+        long recorded = count.get();
+        return recorded == 0 ? 0 : total.get() / recorded;
+    }
+
+    /**
+     * @return The highest latency recorded in nanoseconds, or 0 if none were recorded
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the latency at or below which a percentage of recorded latencies fall. Recording may continue while this
+     * reads, in which case the result reflects some of the latest recordings
+     *
+     * @param percentile The percentage, from 0 to 100
+     * @return The latency in nanoseconds, rounded up to the top of its bucket, or 0 if none were recorded
+     */
+    long getPercentile(double percentile) {
+        long recorded = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            recorded += counts.get(i);
+        }
+        if (recorded == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(recorded * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Describe the histogram in milliseconds, e.g for a command
+     *
+     * @return The count, 50th and 99th percentiles and maximum
+     */
+    String summary() {
+        return "n=" + getCount() + " p50=" + millis(getPercentile(50)) + "ms p99=" + millis(getPercentile(99))
+                + "ms max=" + millis(getMax()) + "ms";
+    }
+
+    static String millis(long nanos) {
+        return String.format("%.2f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+}
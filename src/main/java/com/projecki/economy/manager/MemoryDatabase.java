@@ -0,0 +1,442 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * An economy database held only in memory, so every balance is lost when it is closed. Behaves as the SQL database
+ * does, including its ordering of uuids, for testing and benchmarking without a database server.
+ * <p>
+ * Every operation holds a single lock, which makes transfers and idempotency checks atomic as a transaction would.
+ */
+public class MemoryDatabase implements EconomyDatabase {
+
+    /**
+     * Uuids in the order of their 16 raw bytes, as the SQL database sorts them
+     */
+    private static final Comparator<UUID> UUID_ORDER = (a, b) -> {
+        int compare = Long.compareUnsigned(a.getMostSignificantBits(), b.getMostSignificantBits());
+        return compare != 0 ? compare : Long.compareUnsigned(a.getLeastSignificantBits(), b.getLeastSignificantBits());
+    };
+    private static final Comparator<BalanceRow> RANK_ORDER = Comparator.comparingLong(BalanceRow::balance)
+            .thenComparing(BalanceRow::uuid, UUID_ORDER)
+            .reversed();
+
+    private final TreeMap<UUID, Long> balances = new TreeMap<>(UUID_ORDER);
+    private final Map<UUID, Long> versions = new HashMap<>();
+    private final TreeSet<BalanceRow> ranking = new TreeSet<>(RANK_ORDER);
+    private final Map<String, Long> idempotencyKeys = new HashMap<>();
+    private final ArrayDeque<LoggedChange> changes = new ArrayDeque<>();
+    private final ArrayDeque<HistoryEntry> history = new ArrayDeque<>();
+    private final Map<UUID, PlayerName> names = new HashMap<>();
+    private final TreeMap<String, UUID> playersByName = new TreeMap<>();
+    private final int pageSize;
+    private final long changeRetentionMillis, historyRetentionMillis;
+    private long nextIdempotencyPrune, lastChangeId, lastHistoryId;
+    private volatile boolean closed;
+
+    /**
+     * @param pageSize The number of rows handed to a {@link #forEachBalance(Consumer)} consumer at a time, and
+     *                 updated at a time by {@link #updateAll(BulkOperation, BiConsumer)}
+     */
+    public MemoryDatabase(int pageSize) {
+        this(pageSize, TimeUnit.HOURS.toMillis(1));
+    }
+
+    /**
+     * @param pageSize              The number of rows handed to a {@link #forEachBalance(Consumer)} consumer at a time
+     * @param changeRetentionMillis How long change log entries are kept
+     */
+    public MemoryDatabase(int pageSize, long changeRetentionMillis) {
+        this(pageSize, changeRetentionMillis, TimeUnit.DAYS.toMillis(90));
+    }
+
+    /**
+     * @param pageSize               The number of rows handed to a {@link #forEachBalance(Consumer)} consumer at a time
+     * @param changeRetentionMillis  How long change log entries are kept
+     * @param historyRetentionMillis How long transaction history entries are kept, or 0 to keep them forever
+     */
+    public MemoryDatabase(int pageSize, long changeRetentionMillis, long historyRetentionMillis) {
+        this.pageSize = Math.max(1, pageSize);
+        this.changeRetentionMillis = changeRetentionMillis;
+        this.historyRetentionMillis = historyRetentionMillis;
+    }
+
+    @Override
+    @Deprecated
+    public CompletableFuture<Set<UUID>> getUUIDs() {
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                return new HashSet<>(balances.keySet());
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> forEachBalance(Consumer<? super BalanceRow> consumer) {
+        return CompletableFuture.supplyAsync(() -> {
+            long count = 0;
+            UUID after = null;
+            while (true) {
+                List<BalanceRow> page = new ArrayList<>(pageSize);
+                synchronized (this) {
+                    SortedMap<UUID, Long> rest = after == null ? balances : balances.tailMap(after, false);
+                    for (Map.Entry<UUID, Long> entry : rest.entrySet()) {
+                        if (page.size() == pageSize) break;
+                        page.add(new BalanceRow(entry.getKey(), entry.getValue()));
+                    }
+                }
+                for (BalanceRow row : page) {
+                    consumer.accept(row);
+                }
+                count += page.size();
+                if (page.size() < pageSize) return count;
+                after = page.get(page.size() - 1).uuid();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<OptionalLong> getBalance(UUID uuid) {
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                Long balance = balances.get(uuid);
+                return balance == null ? OptionalLong.empty() : OptionalLong.of(balance);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<@Nullable VersionedBalance> getVersionedBalance(UUID uuid) {
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                Long balance = balances.get(uuid);
+                return balance == null ? null : new VersionedBalance(balance, versions.get(uuid));
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<UUID, VersionedBalance>> getBalances(Collection<UUID> uuids) {
+        List<UUID> copy = new ArrayList<>(uuids);
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                Map<UUID, VersionedBalance> found = new HashMap<>();
+                for (UUID uuid : copy) {
+                    Long balance = balances.get(uuid);
+                    if (balance != null) found.put(uuid, new VersionedBalance(balance, versions.get(uuid)));
+                }
+                return found;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<BalanceRow>> getBalancesByRank(@Nullable BalanceRow after, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                List<BalanceRow> rows = new ArrayList<>(limit);
+                for (BalanceRow row : after == null ? ranking : ranking.tailSet(after, false)) {
+                    if (rows.size() == limit) break;
+                    rows.add(row);
+                }
+                return rows;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveBalance(UUID uuid, long balance) {
+        return saveBalances(Map.of(uuid, balance));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveBalances(Map<UUID, Long> balances) {
+        Map<UUID, Long> copy = new HashMap<>(balances);
+        return CompletableFuture.runAsync(() -> {
+            synchronized (this) {
+                copy.forEach((uuid, balance) -> put(uuid, balance, false));
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<UUID, Long>> compareAndSaveBalances(Map<UUID, VersionedBalance> balances) {
+        Map<UUID, VersionedBalance> copy = new HashMap<>(balances);
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                Map<UUID, Long> saved = new HashMap<>();
+                copy.forEach((uuid, balance) -> {
+                    long expected = balance.version();
+                    if (expected == VersionedBalance.UNKNOWN || expected == versions.getOrDefault(uuid, VersionedBalance.ABSENT)) {
+                        saved.put(uuid, put(uuid, balance.balance(), true));
+                    }
+                });
+                return saved;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> applyDelta(UUID uuid, long delta, @Nullable String idempotencyKey) {
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                if (isApplied(idempotencyKey)) return true;
+                Long balance = balances.get(uuid);
+                if (balance == null) return false;
+                long updated = Math.addExact(balance, delta);
+                if (updated < 0) return false;
+                put(uuid, updated, false);
+                claim(idempotencyKey);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> transfer(UUID from, UUID to, long amount, @Nullable String idempotencyKey) {
+        if (amount < 0) throw new IllegalStateException("Unable to transfer negative amount");
+        if (from.equals(to)) throw new IllegalStateException("Unable to transfer to the same player");
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                if (isApplied(idempotencyKey)) return true;
+                Long fromBalance = balances.get(from), toBalance = balances.get(to);
+                if (fromBalance == null || toBalance == null || fromBalance < amount) return false;
+                long received = Math.addExact(toBalance, amount);
+                put(from, fromBalance - amount, false);
+                put(to, received, false);
+                claim(idempotencyKey);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> updateAll(BulkOperation operation, BiConsumer<UUID, VersionedBalance> consumer) {
+        return CompletableFuture.supplyAsync(() -> {
+            long count = 0;
+            UUID after = null;
+            while (true) {
+                Map<UUID, VersionedBalance> changed = new LinkedHashMap<>();
+                List<UUID> chunk = new ArrayList<>(pageSize);
+                synchronized (this) {
+                    SortedMap<UUID, Long> rest = after == null ? balances : balances.tailMap(after, false);
+                    for (UUID uuid : rest.keySet()) {
+                        if (chunk.size() == pageSize) break;
+                        chunk.add(uuid);
+                    }
+                    for (UUID uuid : chunk) {
+                        long balance = operation.apply(balances.get(uuid));
+                        if (balance == balances.get(uuid)) continue;
+                        changed.put(uuid, new VersionedBalance(balance, put(uuid, balance, false)));
+                    }
+                }
+                changed.forEach(consumer);
+                count += changed.size();
+                if (chunk.size() < pageSize) return count;
+                after = chunk.get(chunk.size() - 1);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> getLastChangeId() {
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                return lastChangeId;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<BalanceChange>> getChanges(long after, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                List<BalanceChange> found = new ArrayList<>(Math.min(limit, changes.size()));
+                for (LoggedChange logged : changes) {
+                    if (found.size() == limit) break;
+                    if (logged.change.id() > after) found.add(logged.change);
+                }
+                return found;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<BalanceChange>> getChanges(Collection<Long> ids) {
+        Set<Long> copy = new HashSet<>(ids);
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                List<BalanceChange> found = new ArrayList<>();
+                for (LoggedChange logged : changes) {
+                    if (copy.contains(logged.change.id())) found.add(logged.change);
+                }
+                return found;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> recordHistory(List<HistoryEntry> entries) {
+        List<HistoryEntry> copy = new ArrayList<>(entries);
+        return CompletableFuture.runAsync(() -> {
+            synchronized (this) {
+                for (HistoryEntry entry : copy) {
+                    history.add(new HistoryEntry(++lastHistoryId, entry.time(), entry.actor(), entry.target(),
+                            entry.delta(), entry.balance(), entry.reason()));
+                }
+                if (historyRetentionMillis == 0) return;
+                long expiry = System.currentTimeMillis() - historyRetentionMillis;
+                while (!history.isEmpty() && history.peekFirst().time() < expiry) {
+                    history.pollFirst();
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<HistoryEntry>> getHistory(UUID target, long before, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                List<HistoryEntry> found = new ArrayList<>(Math.min(limit, history.size()));
+                Iterator<HistoryEntry> newest = history.descendingIterator();
+                while (newest.hasNext() && found.size() < limit) {
+                    HistoryEntry entry = newest.next();
+                    if (entry.id() < before && (entry.target() == null || entry.target().equals(target))) {
+                        found.add(entry);
+                    }
+                }
+                return found;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveName(UUID uuid, String name) {
+        return CompletableFuture.runAsync(() -> {
+            synchronized (this) {
+                PlayerName previous = names.put(uuid, new PlayerName(uuid, name));
+                if (previous != null) playersByName.remove(previous.name().toLowerCase(Locale.ROOT), uuid);
+                // The player seen last with a name takes it from whoever had it before
+                playersByName.put(name.toLowerCase(Locale.ROOT), uuid);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<@Nullable PlayerName> findName(String name) {
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                UUID uuid = playersByName.get(name.toLowerCase(Locale.ROOT));
+                return uuid == null ? null : names.get(uuid);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<PlayerName>> findNamesByPrefix(String prefix, int limit) {
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                List<PlayerName> found = new ArrayList<>();
+                for (UUID uuid : playersByName.tailMap(lower).values()) {
+                    PlayerName name = names.get(uuid);
+                    if (found.size() >= limit || !name.name().toLowerCase(Locale.ROOT).startsWith(lower)) break;
+                    found.add(name);
+                }
+                return found;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<UUID, String>> getNames(Collection<UUID> uuids) {
+        List<UUID> copy = new ArrayList<>(uuids);
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                Map<UUID, String> found = new HashMap<>();
+                for (UUID uuid : copy) {
+                    PlayerName name = names.get(uuid);
+                    if (name != null) found.put(uuid, name.name());
+                }
+                return found;
+            }
+        });
+    }
+
+    @Override
+    public boolean isVersioned() {
+        return true;
+    }
+
+    @Override
+    public boolean isLive() {
+        return !closed;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        balances.clear();
+        ranking.clear();
+        idempotencyKeys.clear();
+        versions.clear();
+        changes.clear();
+        history.clear();
+        names.clear();
+        playersByName.clear();
+    }
+
+    /**
+     * Write a balance, moving its row to the next version and logging the change
+     *
+     * @param local Whether the caller already holds the balance, as with {@link #compareAndSaveBalances(Map)}
+     * @return The new version of the row
+     */
+    private long put(UUID uuid, long balance, boolean local) {
+        Long previous = balances.put(uuid, balance);
+        if (previous != null) ranking.remove(new BalanceRow(uuid, previous));
+        ranking.add(new BalanceRow(uuid, balance));
+        long version = versions.merge(uuid, 1L, Long::sum);
+        long now = System.currentTimeMillis();
+        changes.add(new LoggedChange(new BalanceChange(++lastChangeId, uuid, balance, version, local), now));
+        while (!changes.isEmpty() && changes.peekFirst().created < now - changeRetentionMillis) {
+            changes.pollFirst();
+        }
+        return version;
+    }
+
+    /**
+     * Whether a change was already applied under its idempotency key, forgetting keys older than a day as the SQL
+     * database does
+     */
+    private boolean isApplied(@Nullable String idempotencyKey) {
+        long now = System.currentTimeMillis();
+        if (now >= nextIdempotencyPrune) {
+            nextIdempotencyPrune = now + TimeUnit.HOURS.toMillis(1);
+            long expiry = now - TimeUnit.DAYS.toMillis(1);
+            idempotencyKeys.values().removeIf(created -> created < expiry);
+        }
+        return idempotencyKey != null && idempotencyKeys.containsKey(idempotencyKey);
+    }
+
+    private void claim(@Nullable String idempotencyKey) {
+        if (idempotencyKey != null) idempotencyKeys.put(idempotencyKey, System.currentTimeMillis());
+    }
+
+    /**
+     * @return The number of stored balances
+     */
+    public synchronized int size() {
+        return balances.size();
+    }
+
+    private record LoggedChange(BalanceChange change, long created) {
+    }
+
+}
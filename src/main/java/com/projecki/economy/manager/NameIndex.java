@@ -0,0 +1,174 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves player names to uuids from the names players logged in with, so commands never ask Mojang for a profile.
+ * <p>
+ * Recently used names are cached in memory, both by uuid and in name order, so names are completed while typing
+ * without touching the database. Lookups missing the cache read the database and cache what they find.
+ */
+class NameIndex {
+
+    private static final long PREFIX_WARM_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final EconomyDatabase database;
+    private final CompletableFuture<Void> ready;
+    private final Logger logger;
+    private final int maximumSize;
+    private final TreeMap<String, PlayerName> byName = new TreeMap<>();
+    private final LinkedHashMap<UUID, PlayerName> byUUID = new LinkedHashMap<>(16, 0.75F, true);
+    private final Map<String, Long> warmedPrefixes = new HashMap<>();
+
+    /**
+     * @param database    The database the names are kept in
+     * @param ready       Completed once the database is set up, reads and writes wait for it
+     * @param logger      The logger to report failures to
+     * @param maximumSize The most names cached
+     */
+    NameIndex(@NotNull EconomyDatabase database, @NotNull CompletableFuture<Void> ready, @NotNull Logger logger,
+              int maximumSize) {
+        this.database = database;
+        this.ready = ready;
+        this.logger = logger;
+        this.maximumSize = Math.max(1, maximumSize);
+    }
+
+    /**
+     * Record the name a player logged in with
+     *
+     * @param uuid The uuid of the player
+     * @param name The name of the player
+     * @return Completed once saved to the database
+     */
+    CompletableFuture<Void> update(@NotNull UUID uuid, @NotNull String name) {
+        PlayerName player = new PlayerName(uuid, name);
+        synchronized (this) {
+            PlayerName cached = byUUID.get(uuid);
+            if (cached != null && cached.name().equals(name)) return CompletableFuture.completedFuture(null);
+            cache(player);
+        }
+        return ready.thenCompose(v -> database.saveName(uuid, name)).whenComplete((v, e) -> {
+            if (e != null) logger.log(Level.WARNING, "Unable to save the name of " + uuid, e);
+        });
+    }
+
+    /**
+     * Find a player by name, ignoring case
+     *
+     * @param name The name of the player
+     * @return The player, or null if no player was seen with the name
+     */
+    CompletableFuture<@Nullable PlayerName> find(@NotNull String name) {
+        synchronized (this) {
+            PlayerName cached = byName.get(name.toLowerCase(Locale.ROOT));
+            if (cached != null) {
+                byUUID.get(cached.uuid());
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        return ready.thenCompose(v -> database.findName(name)).thenApply(found -> {
+            if (found != null) {
+                synchronized (this) {
+                    cache(found);
+                }
+            }
+            return found;
+        });
+    }
+
+    /**
+     * Get the names of many players, reading only the names not cached from the database
+     *
+     * @param uuids The uuids of the players
+     * @return The name of each player found, keyed by uuid
+     */
+    CompletableFuture<Map<UUID, String>> getNames(@NotNull Collection<UUID> uuids) {
+        Map<UUID, String> names = new HashMap<>();
+        List<UUID> missing = new ArrayList<>();
+        synchronized (this) {
+            for (UUID uuid : uuids) {
+                PlayerName cached = byUUID.get(uuid);
+                if (cached != null) {
+                    names.put(uuid, cached.name());
+                } else {
+                    missing.add(uuid);
+                }
+            }
+        }
+        if (missing.isEmpty()) return CompletableFuture.completedFuture(names);
+        return ready.thenCompose(v -> database.getNames(missing)).thenApply(found -> {
+            synchronized (this) {
+                found.forEach((uuid, name) -> cache(new PlayerName(uuid, name)));
+            }
+            names.putAll(found);
+            return names;
+        });
+    }
+
+    /**
+     * Complete a name being typed from the cache alone, never waiting on the database. When the cache has fewer
+     * matches than wanted, the matching names are read into the cache in the background, at most once a minute for
+     * each prefix, for the next time the name is completed
+     *
+     * @param prefix The start of the name
+     * @param limit  The most names to complete
+     * @return The names, in name order
+     */
+    List<String> complete(@NotNull String prefix, int limit) {
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        List<String> completions = new ArrayList<>();
+        boolean warm;
+        synchronized (this) {
+            for (Map.Entry<String, PlayerName> entry : byName.tailMap(lower).entrySet()) {
+                if (completions.size() >= limit || !entry.getKey().startsWith(lower)) break;
+                completions.add(entry.getValue().name());
+            }
+            long now = System.currentTimeMillis();
+            warm = completions.size() < limit && warmedPrefixes.getOrDefault(lower, 0L) <= now;
+            if (warm) {
+                if (warmedPrefixes.size() >= maximumSize) {
+                    warmedPrefixes.values().removeIf(next -> next <= now);
+                }
+                warmedPrefixes.put(lower, now + PREFIX_WARM_INTERVAL_MILLIS);
+            }
+        }
+        if (warm && ready.isDone() && database.isLive()) {
+            database.findNamesByPrefix(lower, limit).whenComplete((found, e) -> {
+                if (e != null) return;
+                synchronized (this) {
+                    found.forEach(this::cache);
+                }
+            });
+        }
+        return completions;
+    }
+
+    /**
+     * Cache a name, evicting the least recently used names beyond the maximum size. Must hold the lock
+     */
+    private void cache(PlayerName player) {
+        PlayerName previous = byUUID.put(player.uuid(), player);
+        if (previous != null) remove(previous);
+        byName.put(player.name().toLowerCase(Locale.ROOT), player);
+        Iterator<PlayerName> eldest = byUUID.values().iterator();
+        while (byUUID.size() > maximumSize) {
+            PlayerName evicted = eldest.next();
+            eldest.remove();
+            remove(evicted);
+        }
+    }
+
+    private void remove(PlayerName player) {
+        // Another player may have taken the name since
+        byName.remove(player.name().toLowerCase(Locale.ROOT), player);
+    }
+
+}
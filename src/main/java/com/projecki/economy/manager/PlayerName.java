@@ -0,0 +1,14 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+
+/**
+ * The name a player was last seen with
+ *
+ * @param uuid The uuid of the player
+ * @param name The name of the player, as they last logged in with it
+ */
+public record PlayerName(@NotNull UUID uuid, @NotNull String name) {
+}
@@ -0,0 +1,188 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies numbered schema migrations in order, recording each applied version in a schema table so every migration
+ * runs exactly once per database.
+ * <p>
+ * Migrations run on a dedicated connection holding a named lock, so when several servers share the database only
+ * one of them migrates while the others wait. A migration is either blocking, meaning the database can't be used
+ * until it has run, or online, meaning the database serves reads and writes while it runs. The ready callback fires
+ * as soon as every migration still to run is online.
+ */
+class SchemaMigrator {
+
+    private static final int LOCK_TIMEOUT_SECONDS = 10;
+    /**
+     * Named locks are shared by every database on the server, so the lock name includes the database
+     */
+    private static final String LOCK_NAME = "CONCAT('economy_migration.', DATABASE())";
+
+    private final ConnectionPool.ConnectionFactory factory;
+    private final Logger logger;
+    private final String schemaTableName;
+    private final boolean locking;
+    private final List<Migration> migrations = new ArrayList<>();
+
+    /**
+     * @param factory         Opens the connection migrations run on
+     * @param logger          The logger to report progress to
+     * @param schemaTableName The table recording applied versions
+     * @param locking         Whether to hold a named lock while migrating, unnecessary if no other server can share
+     *                        the database
+     */
+    SchemaMigrator(@NotNull ConnectionPool.ConnectionFactory factory, @NotNull Logger logger,
+                   @NotNull String schemaTableName, boolean locking) {
+        this.factory = factory;
+        this.logger = logger;
+        this.schemaTableName = schemaTableName;
+        this.locking = locking;
+    }
+
+    /**
+     * Register a migration
+     *
+     * @param version     The version the schema is at once the migration has run, unique and greater than 0
+     * @param description What the migration changes
+     * @param online      True if the database may be used while the migration runs
+     * @param step        The migration itself, which must be safe to run again if it was interrupted
+     * @return This migrator
+     */
+    SchemaMigrator add(int version, @NotNull String description, boolean online, @NotNull Step step) {
+        if (version <= 0) throw new IllegalStateException("Unable to register migration version " + version);
+        for (Migration migration : migrations) {
+            if (migration.version == version) throw new IllegalStateException("Duplicate migration version " + version);
+        }
+        migrations.add(new Migration(version, description, online, step));
+        migrations.sort(Comparator.comparingInt(migration -> migration.version));
+        return this;
+    }
+
+    /**
+     * Run every migration not yet applied, blocking until they have all run
+     *
+     * @param ready Run once, as soon as every migration left to run is online
+     * @throws SQLException If the schema table couldn't be read or a migration failed. Ready has still been run
+     */
+    void migrate(@NotNull Runnable ready) throws SQLException {
+        Runnable once = new Runnable() {
+            private boolean ran;
+
+            @Override
+            public void run() {
+                if (ran) return;
+                ran = true;
+                ready.run();
+            }
+        };
+        try (Connection connection = factory.open()) {
+            try (PreparedStatement statement = connection.prepareStatement("CREATE TABLE IF NOT EXISTS " + schemaTableName + " " +
+                    "(version INT NOT NULL, " +
+                    "description VARCHAR(255) NOT NULL, " +
+                    "applied_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                    "PRIMARY KEY (version))")) {
+                statement.executeUpdate();
+            }
+            int version = currentVersion(connection);
+            if (readyAfter(version)) once.run();
+            if (migrations.isEmpty() || migrations.get(migrations.size() - 1).version <= version) return;
+
+            lock(connection);
+            try {
+                // Another server may have migrated while this one waited for the lock
+                version = currentVersion(connection);
+                for (Migration migration : migrations) {
+                    if (migration.version <= version) continue;
+                    if (readyAfter(version)) once.run();
+                    logger.log(Level.INFO, "Migrating economy schema to version " + migration.version + ": "
+                            + migration.description + "...");
+                    migration.step.apply(connection);
+                    try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + schemaTableName + " " +
+                            "(version, description) VALUES (?, ?)")) {
+                        statement.setInt(1, migration.version);
+                        statement.setString(2, migration.description);
+                        statement.executeUpdate();
+                    }
+                    version = migration.version;
+                    logger.log(Level.INFO, "Economy schema migrated to version " + version);
+                }
+            } finally {
+                unlock(connection);
+            }
+        } finally {
+            once.run();
+        }
+    }
+
+    /**
+     * Whether every migration after a version is online
+     */
+    private boolean readyAfter(int version) {
+        for (Migration migration : migrations) {
+            if (migration.version > version && !migration.online) return false;
+        }
+        return true;
+    }
+
+    private int currentVersion(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT MAX(version) FROM " + schemaTableName);
+             ResultSet r = statement.executeQuery()) {
+            return r.next() ? r.getInt(1) : 0;
+        }
+    }
+
+    private void lock(Connection connection) throws SQLException {
+        if (!locking) return;
+        boolean waiting = false;
+        while (true) {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT GET_LOCK(" + LOCK_NAME + ", ?)")) {
+                statement.setInt(1, LOCK_TIMEOUT_SECONDS);
+                try (ResultSet r = statement.executeQuery()) {
+                    if (r.next() && r.getInt(1) == 1) return;
+                }
+            }
+            if (!waiting) {
+                waiting = true;
+                logger.log(Level.INFO, "Waiting for another server to finish migrating the economy schema...");
+            }
+        }
+    }
+
+    private void unlock(Connection connection) throws SQLException {
+        if (!locking) return;
+        try (PreparedStatement statement = connection.prepareStatement("SELECT RELEASE_LOCK(" + LOCK_NAME + ")")) {
+            statement.executeQuery().close();
+        }
+    }
+
+    /**
+     * A single schema change
+     */
+    @FunctionalInterface
+    interface Step {
+
+        /**
+         * Apply the change
+         *
+         * @param connection The migration connection, in auto-commit mode
+         * @throws SQLException If the change failed
+         */
+        void apply(@NotNull Connection connection) throws SQLException;
+
+    }
+
+    private record Migration(int version, String description, boolean online, Step step) {
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.projecki.economy.manager;
+
+/**
+ * Where balances are stored
+ */
+public enum StorageType {
+
+    /**
+     * A MySQL server, which several servers may share
+     */
+    MYSQL,
+    /**
+     * An embedded H2 database file in the plugin folder, for a single server
+     */
+    H2,
+    /**
+     * Memory only, so every balance is lost when the server stops. For testing
+     */
+    MEMORY
+
+}
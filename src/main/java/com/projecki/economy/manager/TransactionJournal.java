@@ -0,0 +1,328 @@
+package com.projecki.economy.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A local, append-only journal of balance changes, so that changes not yet flushed to the database survive a crash.
+ * <p>
+ * Each change is a fixed-size record written into a memory-mapped segment file, which the operating system persists
+ * even if the server process dies. Every record holds a sequence number, and once the database confirms everything
+ * up to a sequence number, the segments holding only those records are deleted. Records are 56 bytes:
+ * <pre>
+ *   sequence (8) | uuid most significant bits (8) | uuid least significant bits (8) | balance (8) | base (8) |
+ *   version (8) | crc32 (4) | magic (4)
+ * </pre>
+ * The base and version are those of the database row the balance was changed from, so a replayed balance is saved
+ * only if the row is still at that version, and is otherwise rebased onto the newer row like any other save. Segments
+ * written by older versions hold 40 byte records without them, and are still read.
+ * A zeroed sequence marks a record never written, and a record that fails its checksum was torn by a crash.
+ * <p>
+ * Appends take no lock. Each claims the next sequence number with a single atomic increment, which also fixes where
+ * in which segment its record goes, so records are written side by side in parallel. Only the append that first
+ * reaches a new segment maps it, once every few thousand records. A crash may leave a record unwritten while ones
+ * after it were written, so recovery skips unwritten and torn records rather than stopping at them.
+ */
+class TransactionJournal implements Closeable {
+
+    private static final int RECORD_SIZE = 56;
+    private static final int PAYLOAD_SIZE = 48;
+    private static final int MAGIC = 0x45434a32; // "ECJ2"
+    private static final int LEGACY_RECORD_SIZE = 40;
+    private static final int LEGACY_MAGIC = 0x45434a31; // "ECJ1"
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private final Path directory;
+    private final Path checkpointFile;
+    private final int recordsPerSegment;
+    private final ThreadLocal<RecordWriter> writers = ThreadLocal.withInitial(RecordWriter::new);
+    private final AtomicLong sequence = new AtomicLong();
+    /**
+     * The segments mapped since opening, by their first sequence number
+     */
+    private final ConcurrentSkipListMap<Long, MappedByteBuffer> mapped = new ConcurrentSkipListMap<>();
+    // Guarded by the monitor
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private long nextSegment, confirmed;
+
+    /**
+     * The segment mapped last, which nearly every append writes to
+     */
+    private volatile Segment current;
+
+    /**
+     * @param directory   The directory holding the segment files
+     * @param segmentSize The size of each segment file, in bytes
+     * @throws IOException If the directory or its checkpoint could not be read
+     */
+    TransactionJournal(@NotNull Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.checkpointFile = directory.resolve("checkpoint");
+        this.recordsPerSegment = Math.max(1, segmentSize / RECORD_SIZE);
+        Files.createDirectories(directory);
+        if (Files.exists(checkpointFile)) {
+            confirmed = ByteBuffer.wrap(Files.readAllBytes(checkpointFile)).getLong();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX)).forEach(file -> {
+                String name = file.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            });
+        }
+        sequence.set(confirmed);
+        nextSegment = confirmed + 1;
+    }
+
+    /**
+     * Read back every change recorded after the last confirmed sequence, so it can be written to the database again.
+     * Must be called before anything is appended
+     *
+     * @return The latest recorded change of each player with unconfirmed changes, in the order last changed
+     * @throws IOException If a segment could not be read
+     */
+    synchronized Map<UUID, Entry> recover() throws IOException {
+        Map<UUID, Entry> balances = new LinkedHashMap<>();
+        CRC32 crc = new CRC32();
+        long last = sequence.get();
+        Iterator<Path> files = segments.values().iterator();
+        while (files.hasNext()) {
+            Path file = files.next();
+            byte[] bytes = Files.readAllBytes(file);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            // Older versions wrote records one after another, so a legacy segment starts with a written record
+            boolean legacy = bytes.length >= LEGACY_RECORD_SIZE
+                    && buffer.getInt(LEGACY_RECORD_SIZE - Integer.BYTES) == LEGACY_MAGIC;
+            int recordSize = legacy ? LEGACY_RECORD_SIZE : RECORD_SIZE, payloadSize = recordSize - 8;
+            boolean written = false;
+            for (int offset = 0; offset + recordSize <= bytes.length; offset += recordSize) {
+                long recordSequence = buffer.getLong(offset);
+                if (recordSequence == 0 || buffer.getInt(offset + payloadSize + 4) != (legacy ? LEGACY_MAGIC : MAGIC)) {
+                    continue;
+                }
+                crc.reset();
+                crc.update(bytes, offset, payloadSize);
+                if (buffer.getInt(offset + payloadSize) != (int) crc.getValue()) continue;
+                UUID uuid = new UUID(buffer.getLong(offset + 8), buffer.getLong(offset + 16));
+                long balance = buffer.getLong(offset + 24);
+                written = true;
+                last = Math.max(last, recordSequence);
+                if (recordSequence <= confirmed) continue;
+                // Records of one player are appended under its account's monitor, so file order is their order
+                balances.remove(uuid);
+                balances.put(uuid, legacy
+                        ? new Entry(balance, balance, Entry.LEGACY)
+                        : new Entry(balance, buffer.getLong(offset + 32), buffer.getLong(offset + 40)));
+            }
+            // A segment mapped but never written to would overlap the segments numbered from the recovered sequence
+            if (!written) {
+                Files.deleteIfExists(file);
+                files.remove();
+            }
+        }
+        sequence.set(last);
+        nextSegment = last + 1;
+        return balances;
+    }
+
+    /**
+     * Record a players new balance
+     *
+     * @param uuid    The uuid of the player
+     * @param balance The balance after the change
+     * @param base    The balance of the database row the change was made to
+     * @param version The version of that row, or {@link VersionedBalance#UNKNOWN} if not known
+     * @return The sequence number of the record
+     */
+    long append(@NotNull UUID uuid, long balance, long base, long version) {
+        long recordSequence = sequence.incrementAndGet();
+        Segment segment = current;
+        MappedByteBuffer buffer;
+        long first;
+        if (segment != null && segment.holds(recordSequence)) {
+            buffer = segment.buffer;
+            first = segment.first;
+        } else {
+            Map.Entry<Long, MappedByteBuffer> entry = segmentFor(recordSequence);
+            // Confirmed and deleted before it could be written, so the record is no longer needed
+            if (entry == null) return recordSequence;
+            buffer = entry.getValue();
+            first = entry.getKey();
+        }
+        writers.get().write(buffer, (int) (recordSequence - first) * RECORD_SIZE, recordSequence, uuid, balance, base,
+                version);
+        return recordSequence;
+    }
+
+    /**
+     * Get the sequence number of the most recent record
+     *
+     * @return The last sequence number handed out
+     */
+    long lastSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Confirm that every change up to and including a sequence number is stored in the database, deleting the
+     * segments that no longer hold anything unconfirmed
+     *
+     * @param confirmedSequence The sequence number confirmed
+     * @throws IOException If the checkpoint could not be written
+     */
+    synchronized void confirm(long confirmedSequence) throws IOException {
+        if (confirmedSequence <= confirmed) return;
+        confirmed = confirmedSequence;
+        Segment segment = current;
+        if (segment != null) segment.buffer.force();
+        Path temporary = directory.resolve("checkpoint.tmp");
+        Files.write(temporary, ByteBuffer.allocate(Long.BYTES).putLong(confirmed).array());
+        Files.move(temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // A segment only holds confirmed records once the segment after it starts past the checkpoint
+        Iterator<Map.Entry<Long, Path>> iterator = segments.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Path> entry = iterator.next();
+            Long next = segments.higherKey(entry.getKey());
+            boolean fullyConfirmed = next != null
+                    ? next - 1 <= confirmed
+                    : sequence.get() <= confirmed && segment == null;
+            if (!fullyConfirmed) break;
+            Files.deleteIfExists(entry.getValue());
+            iterator.remove();
+            mapped.remove(entry.getKey());
+        }
+    }
+
+    /**
+     * Flush the current segment to disk, and delete every segment if all records have been confirmed
+     *
+     * @throws IOException If a segment could not be written or deleted
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        Segment segment = current;
+        if (segment != null) {
+            segment.buffer.force();
+            current = null;
+        }
+        if (sequence.get() <= confirmed) {
+            for (Path file : segments.values()) {
+                Files.deleteIfExists(file);
+            }
+            segments.clear();
+            mapped.clear();
+        }
+    }
+
+    /**
+     * Find the segment a record belongs in, mapping segments until one holds it
+     *
+     * @return The segment, keyed by its first sequence number, or null if it was confirmed and deleted already
+     */
+    private Map.@Nullable Entry<Long, MappedByteBuffer> segmentFor(long recordSequence) {
+        // An append delayed past a roll still writes to the segment its sequence number fell in
+        Map.Entry<Long, MappedByteBuffer> entry = mapped.floorEntry(recordSequence);
+        if (entry != null && recordSequence < entry.getKey() + recordsPerSegment) return entry;
+        synchronized (this) {
+            try {
+                while (nextSegment <= recordSequence) roll();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open a new journal segment", e);
+            }
+            entry = mapped.floorEntry(recordSequence);
+            return entry != null && recordSequence < entry.getKey() + recordsPerSegment ? entry : null;
+        }
+    }
+
+    private void roll() throws IOException {
+        Segment segment = current;
+        if (segment != null) segment.buffer.force();
+        long firstSequence = nextSegment;
+        Path file = directory.resolve(String.format("%020d", firstSequence) + SEGMENT_SUFFIX);
+        // A segment left over from a previous run under this name was never written to, or its records would have
+        // advanced the sequence past it
+        Files.deleteIfExists(file);
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_SIZE);
+        }
+        segments.put(firstSequence, file);
+        mapped.put(firstSequence, buffer);
+        nextSegment = firstSequence + recordsPerSegment;
+        current = new Segment(firstSequence, firstSequence + recordsPerSegment, buffer);
+    }
+
+    /**
+     * A mapped segment, holding the records from its first sequence number up to but excluding its end
+     */
+    private record Segment(long first, long end, MappedByteBuffer buffer) {
+
+        boolean holds(long recordSequence) {
+            return recordSequence >= first && recordSequence < end;
+        }
+
+    }
+
+    /**
+     * The latest unconfirmed change recorded for a player
+     *
+     * @param balance The balance after the change
+     * @param base    The balance of the database row the change was made to
+     * @param version The version of that row, {@link VersionedBalance#UNKNOWN} if not known, or {@link #LEGACY} if
+     *                recorded by an older version that didn't journal it
+     */
+    record Entry(long balance, long base, long version) {
+
+        static final long LEGACY = -2;
+
+    }
+
+    /**
+     * Encodes records for one thread, writing each at its own offset so appends never share a buffer position
+     */
+    private static final class RecordWriter {
+
+        private final CRC32 crc = new CRC32();
+        private final byte[] payload = new byte[PAYLOAD_SIZE];
+        private final ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+
+        void write(MappedByteBuffer segment, int offset, long recordSequence, UUID uuid, long balance, long base,
+                   long version) {
+            payloadBuffer.clear();
+            payloadBuffer.putLong(recordSequence)
+                    .putLong(uuid.getMostSignificantBits())
+                    .putLong(uuid.getLeastSignificantBits())
+                    .putLong(balance)
+                    .putLong(base)
+                    .putLong(version);
+            segment.put(offset, payload)
+                    .putInt(offset + PAYLOAD_SIZE, checksum())
+                    .putInt(offset + PAYLOAD_SIZE + Integer.BYTES, MAGIC);
+        }
+
+        int checksum() {
+            crc.reset();
+            crc.update(payload, 0, PAYLOAD_SIZE);
+            return (int) crc.getValue();
+        }
+
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.projecki.economy.manager;
+
+/**
+ * A players balance together with the version of its database row, which grows by one with every write to the row
+ *
+ * @param balance The balance of the player
+ * @param version The version of the row, {@link #ABSENT} if the player has no row yet, or {@link #UNKNOWN} if the
+ *                database doesn't version rows
+ */
+public record VersionedBalance(long balance, long version) {
+
+    /**
+     * The version of a row that doesn't exist yet
+     */
+    public static final long ABSENT = 0;
+    /**
+     * The version of a balance whose row version isn't known, which is saved whatever version the row is at
+     */
+    public static final long UNKNOWN = -1;
+
+}
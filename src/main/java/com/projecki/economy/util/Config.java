@@ -2,18 +2,43 @@ package com.projecki.economy.util;
 
 import com.projecki.economy.EconomyPlugin;
 import com.projecki.economy.manager.EconomyEngine;
+import com.projecki.economy.manager.StorageType;
+import org.bukkit.configuration.ConfigurationSection;
 
+import java.util.Locale;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 /**
  * The configuration (config.yml) file handler
  */
 public class Config {
 
-    private final EconomyEngine engine;
+    private final Supplier<? extends ConfigurationSection> source;
 
     public Config(EconomyEngine engine) {
-        this.engine = engine;
+        this.source = () -> engine.getPlugin().getConfig();
+    }
+
+    /**
+     * Read the configuration from a section rather than the plugins config.yml, for use outside a server
+     * @param section The section to read from
+     */
+    public Config(ConfigurationSection section) {
+        this.source = () -> section;
+    }
+
+    /**
+     * Get where balances are stored
+     * @return The storage type, if present, otherwise defaults to {@link StorageType#MYSQL}
+     */
+    public StorageType getStorageType() {
+        String type = getString("storage.type").orElse("mysql");
+        try {
+            return StorageType.valueOf(type.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Unknown storage type '" + type + "'");
+        }
     }
 
     /**
@@ -48,8 +73,294 @@ public class Config {
         return getString("sql.password").orElse("");
     }
 
+    /**
+     * Get the maximum number of pooled SQL connections
+     * @return The maximum pool size, if present, otherwise defaults to 10
+     */
+    public int getPoolMaximumSize() {
+        return Math.max(1, getInt("sql.pool.maximum-size").orElse(10));
+    }
+
+    /**
+     * Get the number of idle SQL connections the pool keeps open
+     * @return The minimum idle connections, if present, otherwise defaults to 2
+     */
+    public int getPoolMinimumIdle() {
+        return Math.max(0, getInt("sql.pool.minimum-idle").orElse(2));
+    }
+
+    /**
+     * Get how long to wait for a pooled connection before failing, in milliseconds
+     * @return The connection timeout, if present, otherwise defaults to 5000
+     */
+    public int getPoolConnectionTimeout() {
+        return Math.max(0, getInt("sql.pool.connection-timeout").orElse(5000));
+    }
+
+    /**
+     * Get how long a pooled connection may sit idle before it is closed, in milliseconds
+     * @return The idle timeout, if present, otherwise defaults to 600000 (10 minutes)
+     */
+    public int getPoolIdleTimeout() {
+        return Math.max(0, getInt("sql.pool.idle-timeout").orElse(600000));
+    }
+
+    /**
+     * Get how long to wait for a pooled connection to pass validation, in milliseconds
+     * @return The validation timeout, if present, otherwise defaults to 3000
+     */
+    public int getPoolValidationTimeout() {
+        return Math.max(1000, getInt("sql.pool.validation-timeout").orElse(3000));
+    }
+
+    /**
+     * Get the number of consecutive connection failures after which database calls are refused until the database
+     * is reachable again
+     * @return The failure threshold, if present, otherwise defaults to 3
+     */
+    public int getBreakerFailureThreshold() {
+        return Math.max(1, getInt("sql.breaker.failure-threshold").orElse(3));
+    }
+
+    /**
+     * Get the longest wait between attempts to reach the database while it is unreachable, in seconds
+     * @return The maximum backoff, if present, otherwise defaults to 60
+     */
+    public int getBreakerMaximumBackoff() {
+        return Math.max(1, getInt("sql.breaker.maximum-backoff").orElse(60));
+    }
+
+    /**
+     * Get the number of threads running database calls
+     * @return The number of threads, if present, otherwise defaults to the maximum pool size
+     */
+    public int getExecutorThreads() {
+        return Math.max(1, getInt("sql.executor.threads").orElse(getPoolMaximumSize()));
+    }
+
+    /**
+     * Get the number of database calls that may wait for a thread, before further calls are refused
+     * @return The queue size, if present, otherwise defaults to 1000
+     */
+    public int getExecutorQueueSize() {
+        return Math.max(1, getInt("sql.executor.queue-size").orElse(1000));
+    }
+
+    /**
+     * Get whether database calls run on virtual threads, when the JDK has them
+     * @return True if enabled, otherwise defaults to false
+     */
+    public boolean isExecutorVirtualThreads() {
+        return source.get().getBoolean("sql.executor.virtual-threads", false);
+    }
+
+    /**
+     * Get the number of prepared statements each connection keeps for reuse
+     * @return The SQL statement cache size, if present, otherwise defaults to 250
+     */
+    public int getSQLStatementCacheSize() {
+        return Math.max(0, getInt("sql.statement-cache-size").orElse(250));
+    }
+
+    /**
+     * Get the number of rows fetched from the database per round trip when streaming a result
+     * @return The SQL fetch size, if present, otherwise defaults to 1000
+     */
+    public int getSQLFetchSize() {
+        return Math.max(1, getInt("sql.fetch-size").orElse(1000));
+    }
+
+    /**
+     * Get the number of rows read per query when scanning the whole economy table
+     * @return The scan page size, if present, otherwise defaults to 5000
+     */
+    public int getScanPageSize() {
+        return Math.max(1, getInt("sql.scan-page-size").orElse(5000));
+    }
+
+    /**
+     * Get the number of rows copied per transaction while migrating the economy table
+     * @return The migration chunk size, if present, otherwise defaults to 1000
+     */
+    public int getMigrationChunkSize() {
+        return Math.max(1, getInt("migration.chunk-size").orElse(1000));
+    }
+
+    /**
+     * Get the pause between chunks while migrating the economy table, so the migration doesn't starve the server
+     * @return The migration chunk delay in milliseconds, if present, otherwise defaults to 50
+     */
+    public long getMigrationChunkDelay() {
+        return Math.max(0, getInt("migration.chunk-delay").orElse(50));
+    }
+
+    /**
+     * Get the number of rows updated per transaction when changing every balance at once
+     * @return The bulk chunk size, if present, otherwise defaults to 5000
+     */
+    public int getBulkChunkSize() {
+        return Math.max(1, getInt("bulk.chunk-size").orElse(5000));
+    }
+
+    /**
+     * Get how often changed balances are written to the database, in seconds
+     * @return The flush interval, if present, otherwise defaults to 30
+     */
+    public int getFlushInterval() {
+        return Math.max(1, getInt("flush.interval").orElse(30));
+    }
+
+    /**
+     * Get the maximum number of balances written to the database in a single batch
+     * @return The maximum batch size, if present, otherwise defaults to 500
+     */
+    public int getFlushMaxBatchSize() {
+        return Math.max(1, getInt("flush.max-batch-size").orElse(500));
+    }
+
+    /**
+     * Get the size of each transaction journal segment file, in megabytes
+     * @return The journal segment size, if present, otherwise defaults to 4
+     */
+    public int getJournalSegmentSize() {
+        return Math.max(1, getInt("journal.segment-size").orElse(4));
+    }
+
+    /**
+     * Get how long a login waits for the players balance to load before continuing without it, in milliseconds
+     * @return The login load timeout, if present, otherwise defaults to 5000
+     */
+    public int getLoginLoadTimeout() {
+        return Math.max(0, getInt("login.load-timeout").orElse(5000));
+    }
+
+    /**
+     * Get the number of balances to keep cached, not counting online players or unsaved changes
+     * @return The maximum cache size, if present, otherwise defaults to 10000
+     */
+    public int getCacheMaximumSize() {
+        return Math.max(0, getInt("cache.maximum-size").orElse(10000));
+    }
+
+    /**
+     * Get how long a uncached balance being loaded waits for others to load with it in a single query, in milliseconds
+     * @return The load batch window, if present, otherwise defaults to 10
+     */
+    public int getCacheLoadBatchWindow() {
+        return Math.max(0, getInt("cache.load-batch-window").orElse(10));
+    }
+
+    /**
+     * Get the most balances loaded in a single query, a batch this full is loaded without waiting for the window
+     * @return The load batch size, if present, otherwise defaults to 500
+     */
+    public int getCacheLoadBatchSize() {
+        return Math.max(1, getInt("cache.load-batch-size").orElse(500));
+    }
+
+    /**
+     * Get how long an offline players balance stays cached after it was last used, in seconds
+     * @return The offline time to live, if present, otherwise defaults to 600
+     */
+    public int getCacheOfflineTtl() {
+        return Math.max(0, getInt("cache.offline-ttl").orElse(600));
+    }
+
+    /**
+     * Get how often the change log is polled for balances changed by other servers, in milliseconds
+     * @return The poll interval, if present, otherwise defaults to 1000
+     */
+    public int getChangePollInterval() {
+        return Math.max(50, getInt("changes.poll-interval").orElse(1000));
+    }
+
+    /**
+     * Get the maximum number of change log entries read in a single query
+     * @return The batch size, if present, otherwise defaults to 500
+     */
+    public int getChangeBatchSize() {
+        return Math.max(1, getInt("changes.batch-size").orElse(500));
+    }
+
+    /**
+     * Get how long change log entries are kept before they are deleted, in seconds
+     * @return The retention, if present, otherwise defaults to 3600
+     */
+    public int getChangeRetention() {
+        return Math.max(60, getInt("changes.retention").orElse(3600));
+    }
+
+    /**
+     * Get the most transaction history entries waiting to be written, entries recorded beyond it are dropped
+     * @return The history queue size, if present, otherwise defaults to 10000
+     */
+    public int getHistoryQueueSize() {
+        return Math.max(1, getInt("history.queue-size").orElse(10000));
+    }
+
+    /**
+     * Get the most transaction history entries written in a single batch
+     * @return The history batch size, if present, otherwise defaults to 500
+     */
+    public int getHistoryBatchSize() {
+        return Math.max(1, getInt("history.batch-size").orElse(500));
+    }
+
+    /**
+     * Get how long transaction history entries are kept before they are deleted, in days, or 0 to keep them forever
+     * @return The history retention, if present, otherwise defaults to 90
+     */
+    public int getHistoryRetention() {
+        return Math.max(0, getInt("history.retention").orElse(90));
+    }
+
+    /**
+     * Get the number of balances saved per transaction when importing an archive
+     * @return The archive batch size, if present, otherwise defaults to 5000
+     */
+    public int getArchiveBatchSize() {
+        return Math.max(1, getInt("archive.batch-size").orElse(5000));
+    }
+
+    /**
+     * Get the number of player names kept in memory, for resolving and completing names in commands
+     * @return The name cache size, if present, otherwise defaults to 10000
+     */
+    public int getNameCacheSize() {
+        return Math.max(1, getInt("names.cache-size").orElse(10000));
+    }
+
+    /**
+     * Get how long a deposit through Vault to a player who isn't cached waits for the database, in milliseconds
+     * @return The Vault deposit timeout, if present, otherwise defaults to 5000
+     */
+    public int getVaultDepositTimeout() {
+        return Math.max(0, getInt("vault.deposit-timeout").orElse(5000));
+    }
+
+    /**
+     * Get the name of one unit of currency, as shown by other plugins through Vault
+     * @return The singular currency name, if present, otherwise defaults to 'Coin'
+     */
+    public String getCurrencySingular() {
+        return getString("currency.singular").orElse("Coin");
+    }
+
+    /**
+     * Get the name of several units of currency, as shown by other plugins through Vault
+     * @return The plural currency name, if present, otherwise defaults to 'Coins'
+     */
+    public String getCurrencyPlural() {
+        return getString("currency.plural").orElse("Coins");
+    }
+
     private Optional<String> getString(String path) {
-        return Optional.ofNullable(engine.getPlugin().getConfig().getString(path));
+        return Optional.ofNullable(source.get().getString(path));
+    }
+
+    private Optional<Integer> getInt(String path) {
+        ConfigurationSection config = source.get();
+        return config.isInt(path) ? Optional.of(config.getInt(path)) : Optional.empty();
     }
 
 }
@@ -0,0 +1,357 @@
+package com.projecki.economy.vault;
+
+import com.projecki.economy.EconomyPlugin;
+import com.projecki.economy.manager.EconomyEngine;
+import com.projecki.economy.util.Config;
+import net.milkbowl.vault.economy.Economy;
+import net.milkbowl.vault.economy.EconomyResponse;
+import net.milkbowl.vault.economy.EconomyResponse.ResponseType;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.plugin.ServicePriority;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+/**
+ * The Vault economy, so other plugins can use balances through Vault.
+ * <p>
+ * Every call is answered from the balance cache, never the database, as Vault callers expect an answer on the calling
+ * thread, usually the main thread, and may call many times per tick. Changes are written to the database by the
+ * regular flush. A player who isn't cached is loaded in the background, until then they have no balance to check or
+ * withdraw from. Deposits to them are refused on the main thread too, while other threads wait for the deposit to be
+ * applied in the database, so success is never reported for a deposit that could still fail. They wait at most
+ * 'vault.deposit-timeout' milliseconds, after which the deposit is reported as failed even though it may still be
+ * applied later, so a caller is never held forever while the database is unreachable or busy.
+ * <p>
+ * Balances are whole numbers, so fractional amounts are refused rather than rounded. Banks are not supported, and
+ * neither are per world balances, the world is ignored.
+ */
+public class VaultEconomy implements Economy {
+
+    private final EconomyEngine engine;
+    private final Config config;
+
+    /**
+     * @param engine The engine holding the balances
+     */
+    public VaultEconomy(@NotNull EconomyEngine engine) {
+        this.engine = engine;
+        this.config = engine.getConfig();
+    }
+
+    /**
+     * Register an economy for the engine with Vault. Only call if Vault is installed, as this loads Vault classes
+     *
+     * @param plugin The plugin registering
+     * @param engine The engine holding the balances
+     */
+    public static void register(@NotNull EconomyPlugin plugin, @NotNull EconomyEngine engine) {
+        Bukkit.getServicesManager().register(Economy.class, new VaultEconomy(engine), plugin, ServicePriority.Normal);
+        plugin.getLogger().log(Level.INFO, "Registered economy with Vault");
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return engine.getPlugin().isEnabled();
+    }
+
+    @Override
+    public String getName() {
+        return engine.getPlugin().getName();
+    }
+
+    @Override
+    public boolean hasBankSupport() {
+        return false;
+    }
+
+    @Override
+    public int fractionalDigits() {
+        return 0;
+    }
+
+    @Override
+    public String format(double amount) {
+        long whole = (long) amount;
+        return String.format("%,d", whole) + " " + (whole == 1 ? currencyNameSingular() : currencyNamePlural());
+    }
+
+    @Override
+    public String currencyNamePlural() {
+        return config.getCurrencyPlural();
+    }
+
+    @Override
+    public String currencyNameSingular() {
+        return config.getCurrencySingular();
+    }
+
+    @Override
+    public boolean hasAccount(OfflinePlayer player) {
+        // Every player has a balance, starting at 0, created the first time it is saved
+        return true;
+    }
+
+    @Override
+    public boolean hasAccount(OfflinePlayer player, String worldName) {
+        return hasAccount(player);
+    }
+
+    @Override
+    public double getBalance(OfflinePlayer player) {
+        return engine.getBalance(player).orElse(0L);
+    }
+
+    @Override
+    public double getBalance(OfflinePlayer player, String world) {
+        return getBalance(player);
+    }
+
+    @Override
+    public boolean has(OfflinePlayer player, double amount) {
+        Optional<Long> balance = engine.getBalance(player);
+        return balance.isPresent() && balance.get() >= amount;
+    }
+
+    @Override
+    public boolean has(OfflinePlayer player, String worldName, double amount) {
+        return has(player, amount);
+    }
+
+    @Override
+    public EconomyResponse withdrawPlayer(OfflinePlayer player, double amount) {
+        // Looked up once, as looking up a player who isn't cached starts loading them and counts as a cache miss
+        Optional<Long> balance = engine.getBalance(player);
+        if (amount < 0) return failure(amount, balance, "Cannot withdraw negative funds");
+        if (!isWhole(amount)) return failure(amount, balance, "Only whole amounts can be withdrawn");
+        if (balance.isEmpty()) return failure(amount, balance, "Balance is still loading");
+        if (!engine.withdraw(player, (long) amount)) return failure(amount, balance, "Insufficient funds");
+        return new EconomyResponse(amount, getBalance(player), ResponseType.SUCCESS, null);
+    }
+
+    @Override
+    public EconomyResponse withdrawPlayer(OfflinePlayer player, String worldName, double amount) {
+        return withdrawPlayer(player, amount);
+    }
+
+    @Override
+    public EconomyResponse depositPlayer(OfflinePlayer player, double amount) {
+        Optional<Long> balance = engine.getBalance(player);
+        if (amount < 0) return failure(amount, balance, "Cannot deposit negative funds");
+        if (!isWhole(amount)) return failure(amount, balance, "Only whole amounts can be deposited");
+        long whole = (long) amount;
+        if (balance.isEmpty()) {
+            // The main thread never waits on the database, so like a withdraw it is refused until the balance loads
+            if (Bukkit.isPrimaryThread()) return failure(amount, balance, "Balance is still loading");
+            // Any other caller can wait, so the deposit is applied in the database and only reported once it has been
+            try {
+                if (!engine.depositOffline(player, whole).get(config.getVaultDepositTimeout(), TimeUnit.MILLISECONDS)) {
+                    return failure(amount, balance, "Balance would exceed the maximum");
+                }
+            } catch (ExecutionException e) {
+                engine.getPlugin().getLogger().log(Level.WARNING, "Unable to deposit " + whole + " to "
+                        + player.getUniqueId(), e);
+                return failure(amount, balance, "Unable to apply the deposit");
+            } catch (TimeoutException e) {
+                return failure(amount, balance, "Timed out waiting for the database, the deposit may still be applied");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return failure(amount, balance, "Interrupted while depositing");
+            }
+            return new EconomyResponse(amount, getBalance(player), ResponseType.SUCCESS, null);
+        }
+        if (!engine.deposit(player, whole)) return failure(amount, balance, "Balance would exceed the maximum");
+        return new EconomyResponse(amount, getBalance(player), ResponseType.SUCCESS, null);
+    }
+
+    @Override
+    public EconomyResponse depositPlayer(OfflinePlayer player, String worldName, double amount) {
+        return depositPlayer(player, amount);
+    }
+
+    @Override
+    public boolean createPlayerAccount(OfflinePlayer player) {
+        // Loading caches a balance of 0 for a player without one
+        engine.loadBalance(player);
+        return true;
+    }
+
+    @Override
+    public boolean createPlayerAccount(OfflinePlayer player, String worldName) {
+        return createPlayerAccount(player);
+    }
+
+    @Override
+    @Deprecated
+    public boolean hasAccount(String playerName) {
+        return byName(playerName) != null;
+    }
+
+    @Override
+    @Deprecated
+    public boolean hasAccount(String playerName, String worldName) {
+        return hasAccount(playerName);
+    }
+
+    @Override
+    @Deprecated
+    public double getBalance(String playerName) {
+        OfflinePlayer player = byName(playerName);
+        return player == null ? 0 : getBalance(player);
+    }
+
+    @Override
+    @Deprecated
+    public double getBalance(String playerName, String world) {
+        return getBalance(playerName);
+    }
+
+    @Override
+    @Deprecated
+    public boolean has(String playerName, double amount) {
+        OfflinePlayer player = byName(playerName);
+        return player != null && has(player, amount);
+    }
+
+    @Override
+    @Deprecated
+    public boolean has(String playerName, String worldName, double amount) {
+        return has(playerName, amount);
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse withdrawPlayer(String playerName, double amount) {
+        OfflinePlayer player = byName(playerName);
+        return player == null ? unknown(amount, playerName) : withdrawPlayer(player, amount);
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse withdrawPlayer(String playerName, String worldName, double amount) {
+        return withdrawPlayer(playerName, amount);
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse depositPlayer(String playerName, double amount) {
+        OfflinePlayer player = byName(playerName);
+        return player == null ? unknown(amount, playerName) : depositPlayer(player, amount);
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse depositPlayer(String playerName, String worldName, double amount) {
+        return depositPlayer(playerName, amount);
+    }
+
+    @Override
+    @Deprecated
+    public boolean createPlayerAccount(String playerName) {
+        OfflinePlayer player = byName(playerName);
+        return player != null && createPlayerAccount(player);
+    }
+
+    @Override
+    @Deprecated
+    public boolean createPlayerAccount(String playerName, String worldName) {
+        return createPlayerAccount(playerName);
+    }
+
+    @Override
+    public EconomyResponse createBank(String name, OfflinePlayer player) {
+        return noBanks();
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse createBank(String name, String player) {
+        return noBanks();
+    }
+
+    @Override
+    public EconomyResponse deleteBank(String name) {
+        return noBanks();
+    }
+
+    @Override
+    public EconomyResponse bankBalance(String name) {
+        return noBanks();
+    }
+
+    @Override
+    public EconomyResponse bankHas(String name, double amount) {
+        return noBanks();
+    }
+
+    @Override
+    public EconomyResponse bankWithdraw(String name, double amount) {
+        return noBanks();
+    }
+
+    @Override
+    public EconomyResponse bankDeposit(String name, double amount) {
+        return noBanks();
+    }
+
+    @Override
+    public EconomyResponse isBankOwner(String name, OfflinePlayer player) {
+        return noBanks();
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse isBankOwner(String name, String playerName) {
+        return noBanks();
+    }
+
+    @Override
+    public EconomyResponse isBankMember(String name, OfflinePlayer player) {
+        return noBanks();
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse isBankMember(String name, String playerName) {
+        return noBanks();
+    }
+
+    @Override
+    public List<String> getBanks() {
+        return List.of();
+    }
+
+    /**
+     * Look a player up by name from the servers own cache of players, never from Mojang, which would block
+     */
+    private @Nullable OfflinePlayer byName(String playerName) {
+        return playerName == null ? null : Bukkit.getOfflinePlayerIfCached(playerName);
+    }
+
+    private static boolean isWhole(double amount) {
+        return amount == Math.rint(amount) && amount <= Long.MAX_VALUE;
+    }
+
+    /**
+     * @param balance The balance looked up for the call, reported as 0 if the player isn't cached
+     */
+    private static EconomyResponse failure(double amount, Optional<Long> balance, String message) {
+        return new EconomyResponse(amount, balance.orElse(0L), ResponseType.FAILURE, message);
+    }
+
+    private static EconomyResponse unknown(double amount, String playerName) {
+        return new EconomyResponse(amount, 0, ResponseType.FAILURE, "Unable to find player " + playerName);
+    }
+
+    private static EconomyResponse noBanks() {
+        return new EconomyResponse(0, 0, ResponseType.NOT_IMPLEMENTED, "Banks are not supported");
+    }
+
+}
@@ -0,0 +1,311 @@
+package com.projecki.economy.manager;
+
+import com.projecki.economy.util.Config;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The behaviour every {@link EconomyDatabase} must share, run against each of them by a subclass
+ */
+abstract class EconomyDatabaseTest {
+
+    /**
+     * Small enough that a handful of rows spans several pages
+     */
+    static final int PAGE_SIZE = 3;
+    static final int HISTORY_RETENTION_DAYS = 90;
+
+    EconomyDatabase database;
+
+    /**
+     * Open an empty database, ready to use
+     *
+     * @param config The config to open it with
+     */
+    abstract EconomyDatabase open(Config config) throws Exception;
+
+    /**
+     * Delete the transaction history older than the retention, as the database does in the background
+     */
+    abstract void pruneHistory(EconomyDatabase database) throws Exception;
+
+    /**
+     * @return The config every database is opened with
+     */
+    YamlConfiguration config() {
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.set("sql.scan-page-size", PAGE_SIZE);
+        yaml.set("history.retention", HISTORY_RETENTION_DAYS);
+        yaml.set("migration.chunk-size", 2);
+        yaml.set("migration.chunk-delay", 0);
+        return yaml;
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        database = open(new Config(config()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (database != null) database.close();
+    }
+
+    @Test
+    void missingRowHasNoBalance() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        assertEquals(OptionalLong.empty(), join(database.getBalance(uuid)));
+        assertNull(join(database.getVersionedBalance(uuid)));
+        assertTrue(join(database.getBalances(List.of(uuid))).isEmpty());
+    }
+
+    @Test
+    void savedBalancesAreRead() throws Exception {
+        UUID a = UUID.randomUUID(), b = UUID.randomUUID(), missing = UUID.randomUUID();
+        join(database.saveBalances(Map.of(a, 10L, b, 20L)));
+        assertEquals(OptionalLong.of(10), join(database.getBalance(a)));
+        join(database.saveBalance(a, 15));
+        assertEquals(OptionalLong.of(15), join(database.getBalance(a)));
+
+        Map<UUID, VersionedBalance> found = join(database.getBalances(List.of(a, b, missing)));
+        assertEquals(2, found.size());
+        assertEquals(15, found.get(a).balance());
+        assertEquals(20, found.get(b).balance());
+    }
+
+    @Test
+    void deltaIsApplied() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        join(database.saveBalance(uuid, 100));
+        assertTrue(join(database.applyDelta(uuid, 50, null)));
+        assertEquals(OptionalLong.of(150), join(database.getBalance(uuid)));
+
+        assertFalse(join(database.applyDelta(uuid, -200, null)), "A balance can't become negative");
+        assertEquals(OptionalLong.of(150), join(database.getBalance(uuid)));
+
+        assertTrue(join(database.applyDelta(uuid, 10, "delta")));
+        assertTrue(join(database.applyDelta(uuid, 10, "delta")), "A retried change is reported as applied");
+        assertEquals(OptionalLong.of(160), join(database.getBalance(uuid)));
+    }
+
+    @Test
+    void deltaToMissingRowIsRefused() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        assertFalse(join(database.applyDelta(uuid, 5, null)));
+        assertEquals(OptionalLong.empty(), join(database.getBalance(uuid)), "No row is created");
+    }
+
+    @Test
+    void deltaThatOverflowsChangesNothing() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        join(database.saveBalance(uuid, Long.MAX_VALUE - 1));
+        assertThrows(ExecutionException.class, () -> join(database.applyDelta(uuid, 5, "overflow")));
+        assertEquals(OptionalLong.of(Long.MAX_VALUE - 1), join(database.getBalance(uuid)));
+
+        // The key wasn't kept, so the change may be retried once it fits
+        assertTrue(join(database.applyDelta(uuid, 1, "overflow")));
+        assertEquals(OptionalLong.of(Long.MAX_VALUE), join(database.getBalance(uuid)));
+    }
+
+    @Test
+    void transferMovesOnce() throws Exception {
+        UUID from = UUID.randomUUID(), to = UUID.randomUUID();
+        join(database.saveBalances(Map.of(from, 100L, to, 0L)));
+        assertTrue(join(database.transfer(from, to, 40, "transfer")));
+        assertTrue(join(database.transfer(from, to, 40, "transfer")), "A retried transfer is reported as moved");
+        assertEquals(OptionalLong.of(60), join(database.getBalance(from)));
+        assertEquals(OptionalLong.of(40), join(database.getBalance(to)));
+    }
+
+    @Test
+    void transferIsRefused() throws Exception {
+        UUID from = UUID.randomUUID(), to = UUID.randomUUID(), missing = UUID.randomUUID();
+        join(database.saveBalances(Map.of(from, 100L, to, 0L)));
+        assertFalse(join(database.transfer(from, to, 101, null)), "The sender has less than the amount");
+        assertFalse(join(database.transfer(from, missing, 1, null)), "The receiver has no row");
+        assertFalse(join(database.transfer(missing, to, 0, null)), "The sender has no row");
+        assertThrows(IllegalStateException.class, () -> database.transfer(from, from, 1, null));
+        assertThrows(IllegalStateException.class, () -> database.transfer(from, to, -1, null));
+        assertEquals(OptionalLong.of(100), join(database.getBalance(from)));
+        assertEquals(OptionalLong.of(0), join(database.getBalance(to)));
+        assertEquals(OptionalLong.empty(), join(database.getBalance(missing)));
+    }
+
+    @Test
+    void transferThatOverflowsChangesNothing() throws Exception {
+        UUID from = UUID.randomUUID(), to = UUID.randomUUID();
+        join(database.saveBalances(Map.of(from, 100L, to, Long.MAX_VALUE)));
+        assertThrows(ExecutionException.class, () -> join(database.transfer(from, to, 1, "overflow")));
+        assertEquals(OptionalLong.of(100), join(database.getBalance(from)));
+        assertEquals(OptionalLong.of(Long.MAX_VALUE), join(database.getBalance(to)));
+    }
+
+    @Test
+    void everyBalanceIsStreamedInUuidOrder() throws Exception {
+        // Enough rows for several full pages and a partial one
+        Map<UUID, Long> saved = new HashMap<>();
+        for (int i = 0; i < PAGE_SIZE * 3 + 1; i++) {
+            saved.put(UUID.randomUUID(), (long) i);
+        }
+        join(database.saveBalances(saved));
+
+        List<BalanceRow> rows = new ArrayList<>();
+        assertEquals(saved.size(), (long) join(database.forEachBalance(rows::add)));
+        Map<UUID, Long> read = new HashMap<>();
+        for (int i = 0; i < rows.size(); i++) {
+            read.put(rows.get(i).uuid(), rows.get(i).balance());
+            if (i > 0) {
+                assertTrue(Arrays.compareUnsigned(Database.toBytes(rows.get(i - 1).uuid()),
+                        Database.toBytes(rows.get(i).uuid())) < 0, "Rows are in uuid order");
+            }
+        }
+        assertEquals(saved, read);
+    }
+
+    @Test
+    void emptyTableStreamsNothing() throws Exception {
+        List<BalanceRow> rows = new ArrayList<>();
+        assertEquals(0, (long) join(database.forEachBalance(rows::add)));
+        assertTrue(rows.isEmpty());
+    }
+
+    @Test
+    void streamingStopsWhenTheConsumerThrows() throws Exception {
+        Map<UUID, Long> saved = new HashMap<>();
+        for (int i = 0; i < PAGE_SIZE * 2; i++) {
+            saved.put(UUID.randomUUID(), (long) i);
+        }
+        join(database.saveBalances(saved));
+        assertThrows(ExecutionException.class, () -> join(database.forEachBalance(row -> {
+            throw new IllegalStateException("Consumer failed");
+        })));
+    }
+
+    @Test
+    void versionedSaveOnlyOverwritesTheVersionItWasBasedOn() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        Map<UUID, Long> saved = join(database.compareAndSaveBalances(Map.of(uuid,
+                new VersionedBalance(10, VersionedBalance.ABSENT))));
+        assertEquals(Map.of(uuid, 1L), saved, "A new row starts at version 1");
+        assertEquals(new VersionedBalance(10, 1), join(database.getVersionedBalance(uuid)));
+
+        assertTrue(join(database.compareAndSaveBalances(Map.of(uuid,
+                new VersionedBalance(20, VersionedBalance.ABSENT)))).isEmpty(), "The row already exists");
+        assertEquals(Map.of(uuid, 2L), join(database.compareAndSaveBalances(Map.of(uuid,
+                new VersionedBalance(20, 1)))));
+        assertTrue(join(database.compareAndSaveBalances(Map.of(uuid,
+                new VersionedBalance(30, 1)))).isEmpty(), "The row moved on since version 1");
+        assertEquals(new VersionedBalance(20, 2), join(database.getVersionedBalance(uuid)));
+
+        assertEquals(Map.of(uuid, 3L), join(database.compareAndSaveBalances(Map.of(uuid,
+                new VersionedBalance(40, VersionedBalance.UNKNOWN)))), "An unknown version saves regardless");
+        assertTrue(join(database.applyDelta(uuid, 5, null)));
+        assertEquals(new VersionedBalance(45, 4), join(database.getVersionedBalance(uuid)));
+    }
+
+    @Test
+    void versionedSaveLeavesOutOnlyTheConflictingRows() throws Exception {
+        UUID current = UUID.randomUUID(), stale = UUID.randomUUID(), missing = UUID.randomUUID();
+        join(database.saveBalances(Map.of(current, 1L, stale, 1L)));
+        join(database.saveBalance(stale, 2));
+
+        Map<UUID, Long> saved = join(database.compareAndSaveBalances(Map.of(
+                current, new VersionedBalance(10, 1),
+                stale, new VersionedBalance(10, 1),
+                missing, new VersionedBalance(10, 1))));
+        assertEquals(Map.of(current, 2L), saved);
+        assertEquals(new VersionedBalance(10, 2), join(database.getVersionedBalance(current)));
+        assertEquals(new VersionedBalance(2, 2), join(database.getVersionedBalance(stale)));
+        assertNull(join(database.getVersionedBalance(missing)), "A row is only created from an absent version");
+    }
+
+    @Test
+    void everyWriteIsLogged() throws Exception {
+        UUID a = UUID.randomUUID(), b = UUID.randomUUID();
+        long last = join(database.getLastChangeId());
+        join(database.saveBalance(a, 1));
+        assertTrue(join(database.applyDelta(a, 2, null)));
+        join(database.compareAndSaveBalances(Map.of(b, new VersionedBalance(3, VersionedBalance.ABSENT))));
+
+        List<BalanceChange> changes = join(database.getChanges(last, 10));
+        assertEquals(3, changes.size());
+        assertChange(changes.get(0), a, 1, 1, false);
+        assertChange(changes.get(1), a, 3, 2, false);
+        assertChange(changes.get(2), b, 3, 1, true);
+        assertTrue(changes.get(0).id() > last);
+        assertTrue(changes.get(0).id() < changes.get(1).id() && changes.get(1).id() < changes.get(2).id());
+        assertEquals(changes.get(2).id(), (long) join(database.getLastChangeId()));
+
+        assertEquals(changes.subList(0, 2), join(database.getChanges(last, 2)));
+        assertEquals(changes.subList(2, 3), join(database.getChanges(changes.get(1).id(), 10)));
+        assertEquals(List.of(changes.get(0), changes.get(2)),
+                join(database.getChanges(List.of(changes.get(2).id(), changes.get(0).id()))));
+    }
+
+    @Test
+    void historyIsReadNewestFirst() throws Exception {
+        UUID target = UUID.randomUUID(), other = UUID.randomUUID();
+        long now = System.currentTimeMillis();
+        List<HistoryEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            entries.add(new HistoryEntry(0, now, null, target, i, i, "Deposit"));
+        }
+        entries.add(new HistoryEntry(0, now, null, other, 5, 5, "Deposit"));
+        entries.add(new HistoryEntry(0, now, other, null, 6, 0, "Give all"));
+        join(database.recordHistory(entries));
+
+        List<HistoryEntry> page = join(database.getHistory(target, Long.MAX_VALUE, 3));
+        assertEquals(List.of(6L, 3L, 2L), page.stream().map(HistoryEntry::delta).toList(),
+                "Changes to every balance are included");
+        assertEquals(other, page.get(0).actor());
+        page = join(database.getHistory(target, page.get(2).id(), 3));
+        assertEquals(List.of(1L, 0L), page.stream().map(HistoryEntry::delta).toList());
+    }
+
+    @Test
+    void historyOlderThanTheRetentionIsPruned() throws Exception {
+        UUID target = UUID.randomUUID();
+        long now = System.currentTimeMillis();
+        long expired = now - TimeUnit.DAYS.toMillis(HISTORY_RETENTION_DAYS + 1);
+        join(database.recordHistory(List.of(new HistoryEntry(0, expired, null, target, 1, 1, "Deposit"),
+                new HistoryEntry(0, now, null, target, 2, 3, "Deposit"))));
+        pruneHistory(database);
+
+        List<HistoryEntry> history = join(database.getHistory(target, Long.MAX_VALUE, 10));
+        assertEquals(List.of(2L), history.stream().map(HistoryEntry::delta).toList());
+    }
+
+    private static void assertChange(BalanceChange change, UUID uuid, long balance, long version, boolean local) {
+        assertEquals(uuid, change.uuid());
+        assertEquals(balance, change.balance());
+        assertEquals(version, change.version());
+        assertEquals(local, change.local());
+    }
+
+    /**
+     * Wait for a call, failing the test rather than hanging it if the call never completes
+     */
+    static <T> T join(CompletableFuture<T> future) throws Exception {
+        return future.get(30, TimeUnit.SECONDS);
+    }
+
+}
@@ -0,0 +1,327 @@
+package com.projecki.economy.manager;
+
+import com.projecki.economy.util.Config;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A short soak of the whole economy, checking in every build the invariants the longer soak test of the benchmarks
+ * reports on. Simulated players log in, join, change balances and quit against an H2 file, through the same
+ * {@link EconomyManager} a server runs, with flushes, evictions and change log polls on timers shortened so they race
+ * the players. Players rejoin both while their balance is still cached and as soon as it has been evicted, so a load
+ * races the save of the balance they quit with. Once the manager has shut down, the database is reopened and checked
+ */
+class EconomyManagerSoakTest {
+
+    private static final int PLAYERS = 200;
+    private static final int THREADS = 4;
+    private static final long DURATION_MILLIS = 3000;
+    private static final int MAX_AMOUNT = 1000;
+    private static final long STARTING_BALANCE = 10_000;
+
+    @TempDir
+    Path directory;
+
+    private final Logger logger = Logger.getLogger("EconomySoak");
+    private final SevereCounter severe = new SevereCounter();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final SimulatedPlayer[] players = new SimulatedPlayer[PLAYERS];
+    /**
+     * The number of joins that loaded a balance evicted since the player quit
+     */
+    private final LongAdder reloads = new LongAdder();
+    private Config config;
+    private EconomyManager manager;
+
+    @BeforeEach
+    void setUp() {
+        // Every join logs at INFO
+        logger.setLevel(Level.WARNING);
+        logger.addHandler(severe);
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.set("storage.type", "h2");
+        yaml.set("flush.interval", 1);
+        yaml.set("changes.poll-interval", 100);
+        yaml.set("cache.offline-ttl", 0);
+        yaml.set("cache.maximum-size", PLAYERS / 10);
+        config = new Config(yaml);
+        manager = new EconomyManager(null, host(), config);
+        for (int i = 0; i < PLAYERS; i++) {
+            players[i] = new SimulatedPlayer("soak" + i);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        logger.removeHandler(severe);
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void everyBalanceIsWhatItsChangesAddUpTo() throws Exception {
+        run(false);
+        manager.shutdown();
+        assertEquals(0, manager.getMetrics().getConnectionsInUse(), "A pooled connection was never returned");
+
+        Map<UUID, Long> stored = readBalances();
+        List<String> wrong = new ArrayList<>();
+        for (SimulatedPlayer player : players) {
+            // Players who never joined have no row, and their balance is 0
+            long balance = stored.getOrDefault(player.uuid, 0L);
+            if (balance != player.expected.get()) {
+                wrong.add(player.name + " has " + balance + ", expected " + player.expected.get());
+            }
+        }
+        assertTrue(wrong.isEmpty(), wrong.size() + " balances lost an update, such as " + wrong.subList(0,
+                Math.min(5, wrong.size())));
+        assertTrue(reloads.sum() > 0, "No player rejoined after their balance was evicted");
+        assertEquals(0, severe.count.sum(), "Errors such as failed saves were logged as severe");
+    }
+
+    @Test
+    void transfersConserveTheTotal() throws Exception {
+        run(true);
+        manager.shutdown();
+        assertEquals(0, manager.getMetrics().getConnectionsInUse(), "A pooled connection was never returned");
+
+        long seeded = 0;
+        for (SimulatedPlayer player : players) {
+            if (player.seeded) seeded += STARTING_BALANCE;
+        }
+        long total = 0;
+        for (long balance : readBalances().values()) {
+            total += balance;
+        }
+        assertEquals(seeded, total, "Money was created or destroyed by transfers");
+        assertTrue(reloads.sum() > 0, "No player rejoined after their balance was evicted");
+        assertEquals(0, severe.count.sum(), "Errors such as failed saves were logged as severe");
+    }
+
+    /**
+     * Drive the players until the duration has passed, then make every player still online quit
+     *
+     * @param transfersOnly Whether players only move money between each other, once given a starting balance
+     */
+    private void run(boolean transfersOnly) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS);
+        Thread[] workers = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            int worker = i;
+            workers[i] = new Thread(() -> drive(worker, end, transfersOnly), "soak-" + i);
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (SimulatedPlayer player : players) {
+            if (player.online) quit(player);
+        }
+    }
+
+    /**
+     * Drive the players owned by one worker, as a player only ever logs in once at a time. Other players are still
+     * the target of transfers
+     */
+    private void drive(int worker, long end, boolean transfersOnly) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int owned = (PLAYERS - worker + THREADS - 1) / THREADS;
+        while (System.nanoTime() < end) {
+            SimulatedPlayer player = players[worker + THREADS * random.nextInt(owned)];
+            if (!player.online) {
+                if (!player.awaitingEviction) {
+                    join(player, transfersOnly);
+                } else if (!manager.isCached(player.uuid)) {
+                    // Flushed and evicted since quitting, so the join loads the balance the flush saved
+                    player.awaitingEviction = false;
+                    join(player, transfersOnly);
+                    reloads.increment();
+                } else Thread.yield();
+                continue;
+            }
+            int roll = random.nextInt(100);
+            if (roll < 5) {
+                // A fast rejoin, while the balance just quit with is still cached and may be mid save
+                quit(player);
+                join(player, transfersOnly);
+            } else if (roll < 6) {
+                quit(player);
+                player.awaitingEviction = true;
+            } else if (roll < 10) {
+                quit(player);
+            } else if (roll < 30 && !transfersOnly) {
+                long amount = 1 + random.nextInt(MAX_AMOUNT);
+                if (manager.deposit(player.player, amount)) player.expected.addAndGet(amount);
+            } else if (roll < 50 && !transfersOnly) {
+                long amount = 1 + random.nextInt(MAX_AMOUNT);
+                if (manager.withdraw(player.player, amount)) player.expected.addAndGet(-amount);
+            } else {
+                SimulatedPlayer receiver = players[random.nextInt(PLAYERS)];
+                // A transfer would keep the balance of a player waiting for eviction changed, and so cached
+                if (receiver == player || receiver.awaitingEviction) continue;
+                long amount = 1 + random.nextInt(MAX_AMOUNT);
+                if (manager.transfer(player.player, receiver.player, amount)) {
+                    player.expected.addAndGet(-amount);
+                    receiver.expected.addAndGet(amount);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void join(SimulatedPlayer player, boolean seed) {
+        // Blocks until the balance is loaded, as it would the async login thread
+        manager.onPreLogin(new AsyncPlayerPreLoginEvent(player.name, InetAddress.getLoopbackAddress(), player.uuid));
+        player.online = true;
+        manager.onJoin(new PlayerJoinEvent(player.player, ""));
+        if (seed && !player.seeded && manager.deposit(player.player, STARTING_BALANCE)) {
+            player.seeded = true;
+            player.expected.addAndGet(STARTING_BALANCE);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void quit(SimulatedPlayer player) {
+        player.online = false;
+        manager.onQuit(new PlayerQuitEvent(player.player, ""));
+    }
+
+    /**
+     * Reopen the database the manager saved to, and read every balance
+     */
+    private Map<UUID, Long> readBalances() throws Exception {
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        Database database = Database.h2(logger, config, directory.resolve("economy"), () -> ready.complete(null));
+        try {
+            ready.get(30, TimeUnit.SECONDS);
+            Map<UUID, Long> stored = new HashMap<>();
+            database.forEachBalance(row -> stored.put(row.uuid(), row.balance())).get(30, TimeUnit.SECONDS);
+            return stored;
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * Stands in for the server, running the managers timers on a scheduler
+     */
+    private EconomyHost host() {
+        return new EconomyHost() {
+            @Override
+            public Logger getLogger() {
+                return logger;
+            }
+
+            @Override
+            public Path getDataFolder() {
+                return directory;
+            }
+
+            @Override
+            public Task runRepeatingAsync(@NotNull Runnable task, long periodTicks) {
+                long period = periodTicks * 50;
+                // A task that throws would silently stop repeating, where the server would log it and carry on
+                ScheduledFuture<?> future = scheduler.scheduleAtFixedRate(() -> {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "A repeating task failed", e);
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
+                return () -> future.cancel(false);
+            }
+        };
+    }
+
+    /**
+     * Counts every record logged as severe, which the economy only logs for errors like failed saves
+     */
+    private static final class SevereCounter extends Handler {
+
+        private final LongAdder count = new LongAdder();
+
+        @Override
+        public void publish(LogRecord record) {
+            if (record.getLevel().intValue() >= Level.SEVERE.intValue()) count.increment();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    /**
+     * A player, as far as the economy looks at one
+     */
+    private static final class SimulatedPlayer {
+
+        private final UUID uuid = UUID.randomUUID();
+        private final String name;
+        private final Player player;
+        /**
+         * The balance the successful changes to this player add up to
+         */
+        private final AtomicLong expected = new AtomicLong();
+        private volatile boolean online;
+        /**
+         * Whether the player quit to rejoin only once their balance has been evicted
+         */
+        private volatile boolean awaitingEviction;
+        /**
+         * Whether the player was given their starting balance, only changed by the worker owning them
+         */
+        private boolean seeded;
+
+        private SimulatedPlayer(String name) {
+            this.name = name;
+            this.player = (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class[]{Player.class},
+                    (proxy, method, args) -> switch (method.getName()) {
+                        case "getUniqueId" -> uuid;
+                        case "getName" -> this.name;
+                        case "isOnline" -> online;
+                        case "hashCode" -> uuid.hashCode();
+                        case "equals" -> proxy == args[0];
+                        case "toString" -> this.name;
+                        default -> throw new UnsupportedOperationException(method.getName());
+                    });
+        }
+
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.projecki.economy.manager;
+
+import com.projecki.economy.util.Config;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * Runs the database tests against an embedded H2 file, in the MySQL mode the plugin opens it in
+ */
+class H2DatabaseTest extends SqlDatabaseTest {
+
+    @TempDir
+    Path directory;
+
+    @Override
+    EconomyDatabase open(Config config) throws Exception {
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        Database database = Database.h2(Logger.getLogger("Economy"), config, file(), () -> ready.complete(null));
+        join(ready);
+        return database;
+    }
+
+    @Override
+    Connection connect() throws SQLException {
+        return DriverManager.getConnection("jdbc:h2:file:" + file().toAbsolutePath()
+                + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE");
+    }
+
+    private Path file() {
+        return directory.resolve("economy");
+    }
+
+}
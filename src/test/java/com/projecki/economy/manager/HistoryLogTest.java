@@ -0,0 +1,124 @@
+package com.projecki.economy.manager;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HistoryLogTest {
+
+    private static final UUID TARGET = UUID.randomUUID();
+
+    private final Logger logger = Logger.getLogger("EconomyHistoryTest");
+    /**
+     * Records every batch written, or fails them while down
+     */
+    private final FlakyDatabase database = new FlakyDatabase();
+
+    HistoryLogTest() {
+        // Failed batches log a warning with their stack trace
+        logger.setLevel(Level.SEVERE);
+    }
+
+    @Test
+    void entriesAreWrittenInBatchesInOrder() throws Exception {
+        HistoryLog history = new HistoryLog(database, logger, 100, 3);
+        for (int i = 0; i < 7; i++) {
+            history.record(null, TARGET, i, i, "Deposit");
+        }
+        assertEquals(7, history.getPending());
+        join(history.flush());
+
+        assertEquals(List.of(3, 3, 1), database.batches);
+        assertEquals(List.of(0L, 1L, 2L, 3L, 4L, 5L, 6L), database.deltas());
+        assertEquals(0, history.getPending());
+    }
+
+    @Test
+    void failedBatchIsRetriedFirst() throws Exception {
+        HistoryLog history = new HistoryLog(database, logger, 100, 2);
+        database.down = true;
+        for (int i = 0; i < 3; i++) {
+            history.record(null, TARGET, i, i, "Deposit");
+        }
+        join(history.flush());
+        assertEquals(3, history.getPending(), "A failed batch is kept");
+
+        history.record(null, TARGET, 3, 3, "Deposit");
+        database.down = false;
+        join(history.flush());
+        assertEquals(List.of(0L, 1L, 2L, 3L), database.deltas());
+        assertEquals(0, history.getPending());
+        assertEquals(0, history.getDropped());
+    }
+
+    @Test
+    void entriesBeyondTheQueueAreDropped() throws Exception {
+        HistoryLog history = new HistoryLog(database, logger, 2, 10);
+        for (int i = 0; i < 5; i++) {
+            history.record(null, TARGET, i, i, "Deposit");
+        }
+        assertEquals(3, history.getDropped());
+        join(history.flush());
+        assertEquals(List.of(0L, 1L), database.deltas(), "The oldest entries are kept");
+    }
+
+    @Test
+    void unwrittenEntriesAreDroppedAtClose() throws Exception {
+        HistoryLog history = new HistoryLog(database, logger, 100, 2);
+        database.down = true;
+        for (int i = 0; i < 3; i++) {
+            history.record(null, TARGET, i, i, "Deposit");
+        }
+        join(history.close(true));
+        assertEquals(0, history.getPending());
+        assertEquals(3, history.getDropped());
+    }
+
+    @Test
+    void waitingEntriesAreWrittenAtClose() throws Exception {
+        HistoryLog history = new HistoryLog(database, logger, 100, 2);
+        for (int i = 0; i < 3; i++) {
+            history.record(null, TARGET, i, i, "Deposit");
+        }
+        join(history.close(true));
+        assertEquals(List.of(0L, 1L, 2L), database.deltas());
+        assertEquals(0, history.getDropped());
+    }
+
+    private static void join(CompletableFuture<Void> future) throws Exception {
+        future.get(10, TimeUnit.SECONDS);
+    }
+
+    private static final class FlakyDatabase extends MemoryDatabase {
+
+        private final List<Integer> batches = new ArrayList<>();
+        private final List<HistoryEntry> written = new ArrayList<>();
+        private volatile boolean down;
+
+        private FlakyDatabase() {
+            super(100);
+        }
+
+        @Override
+        public synchronized CompletableFuture<Void> recordHistory(List<HistoryEntry> entries) {
+            if (down) return CompletableFuture.failedFuture(new IllegalStateException("The database is down"));
+            batches.add(entries.size());
+            written.addAll(entries);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        private synchronized List<Long> deltas() {
+            return written.stream().map(HistoryEntry::delta).toList();
+        }
+
+    }
+
+}
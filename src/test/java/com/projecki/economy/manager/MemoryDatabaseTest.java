@@ -0,0 +1,17 @@
+package com.projecki.economy.manager;
+
+import com.projecki.economy.util.Config;
+
+class MemoryDatabaseTest extends EconomyDatabaseTest {
+
+    @Override
+    EconomyDatabase open(Config config) {
+        return new MemoryDatabase(config.getScanPageSize());
+    }
+
+    @Override
+    void pruneHistory(EconomyDatabase database) {
+        // Pruned as entries are recorded
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.projecki.economy.manager;
+
+import com.projecki.economy.util.Config;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.AfterEach;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs the database tests against a MySQL server on port 3306, only when one is given, such as with
+ * {@code mvn test -Pmysql -Deconomy.test.mysql.host=localhost}. Each test gets a database of its own, dropped after
+ */
+class MySqlDatabaseTest extends SqlDatabaseTest {
+
+    private static final String HOST = System.getProperty("economy.test.mysql.host", "");
+    private static final String USERNAME = System.getProperty("economy.test.mysql.username", "root");
+    private static final String PASSWORD = System.getProperty("economy.test.mysql.password", "");
+
+    private final String name = "economy_test_" + Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 1);
+
+    @Override
+    YamlConfiguration config() {
+        YamlConfiguration yaml = super.config();
+        yaml.set("sql.host", HOST);
+        yaml.set("sql.database", name);
+        yaml.set("sql.username", USERNAME);
+        yaml.set("sql.password", PASSWORD);
+        return yaml;
+    }
+
+    @Override
+    EconomyDatabase open(Config config) throws Exception {
+        assumeTrue(!HOST.isEmpty(), "No MySQL server was given in economy.test.mysql.host");
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        Database database = Database.mysql(Logger.getLogger("Economy"), config, () -> ready.complete(null));
+        join(ready);
+        return database;
+    }
+
+    @Override
+    Connection connect() throws SQLException {
+        return DriverManager.getConnection("jdbc:mysql://" + HOST + ":3306/" + name, USERNAME, PASSWORD);
+    }
+
+    @AfterEach
+    void dropDatabase() throws SQLException {
+        if (HOST.isEmpty()) return;
+        try (Connection connection = DriverManager.getConnection("jdbc:mysql://" + HOST + ":3306/", USERNAME,
+                PASSWORD); Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DROP DATABASE IF EXISTS " + name);
+        }
+    }
+
+}
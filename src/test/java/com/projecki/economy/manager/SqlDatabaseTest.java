@@ -0,0 +1,124 @@
+package com.projecki.economy.manager;
+
+import com.projecki.economy.util.Config;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * The behaviour of the SQL database on top of that every database shares, such as migrating older schemas, run
+ * against each SQL dialect by a subclass
+ */
+abstract class SqlDatabaseTest extends EconomyDatabaseTest {
+
+    /**
+     * The schema version once every migration has run
+     */
+    private static final int SCHEMA_VERSION = 3;
+    private static final List<String> TABLES = List.of("economy", "economy_idempotency", "economy_schema",
+            "economy_binary", "economy_legacy", "economy_changes", "economy_history", "economy_names");
+
+    /**
+     * Connect to the database the tests open, bypassing the plugin
+     */
+    abstract Connection connect() throws SQLException;
+
+    @Override
+    void pruneHistory(EconomyDatabase database) throws Exception {
+        join(((Database) database).pruneHistory());
+    }
+
+    @Test
+    void legacyTableIsMigrated() throws Exception {
+        // Migrations hold their own connection, so finish them before dropping their tables
+        awaitMigrated();
+        database.close();
+        Map<UUID, Long> legacy = new HashMap<>();
+        try (Connection connection = connect()) {
+            try (Statement statement = connection.createStatement()) {
+                for (String table : TABLES) {
+                    statement.executeUpdate("DROP TABLE IF EXISTS " + table);
+                }
+                // The table as the first release of the plugin created it
+                statement.executeUpdate("CREATE TABLE economy (uuid VARCHAR(255) NOT NULL, balance BIGINT, "
+                        + "PRIMARY KEY (uuid))");
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO economy (uuid, balance) VALUES (?, ?)")) {
+                // Enough rows for several migration chunks
+                for (int i = 0; i < 7; i++) {
+                    UUID uuid = UUID.randomUUID();
+                    legacy.put(uuid, i * 10L);
+                    statement.setString(1, uuid.toString());
+                    statement.setLong(2, i * 10L);
+                    statement.executeUpdate();
+                }
+            }
+        }
+
+        database = open(new Config(config()));
+        // Written while the table may still be migrating, so mirrored into the new table
+        UUID joined = UUID.randomUUID();
+        join(database.saveBalance(joined, 5));
+        awaitMigrated();
+        assertTrue(database.isVersioned());
+
+        List<String> copied = legacy.keySet().stream().map(UUID::toString).toList();
+        legacy.put(joined, 5L);
+        Map<UUID, Long> read = new HashMap<>();
+        assertEquals(legacy.size(), (long) join(database.forEachBalance(row -> read.put(row.uuid(), row.balance()))));
+        assertEquals(legacy, read);
+        for (Map.Entry<UUID, Long> entry : legacy.entrySet()) {
+            assertEquals(OptionalLong.of(entry.getValue()), join(database.getBalance(entry.getKey())));
+        }
+
+        // Rows carried over start at the first version, and writes to them are logged from now on
+        long last = join(database.getLastChangeId());
+        assertEquals(Map.of(joined, 2L), join(database.compareAndSaveBalances(Map.of(joined,
+                new VersionedBalance(6, 1)))));
+        List<BalanceChange> changes = join(database.getChanges(last, 10));
+        assertEquals(1, changes.size());
+        assertEquals(joined, changes.get(0).uuid());
+
+        Set<String> kept = new HashSet<>();
+        try (Connection connection = connect(); Statement statement = connection.createStatement();
+             ResultSet r = statement.executeQuery("SELECT uuid FROM economy_legacy")) {
+            while (r.next()) {
+                kept.add(r.getString(1));
+            }
+        }
+        assertTrue(kept.containsAll(copied), "The old table is kept as a backup");
+    }
+
+    /**
+     * Wait for the migrations run in the background to finish
+     */
+    private void awaitMigrated() throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (true) {
+            try (Connection connection = connect(); Statement statement = connection.createStatement();
+                 ResultSet r = statement.executeQuery("SELECT MAX(version) FROM economy_schema")) {
+                if (r.next() && r.getInt(1) >= SCHEMA_VERSION) return;
+            }
+            if (System.currentTimeMillis() > deadline) fail("The economy schema wasn't migrated in time");
+            Thread.sleep(50);
+        }
+    }
+
+}